@@ -13,12 +13,17 @@ public class MoaDetectorAdapter implements UnivariateRealDetector {
 
     private ChangeDetector moaDetector;
     public MoaDetectorAdapter(ChangeDetector moaDetector) {
+        this(moaDetector, true);
+    }
+
+    private MoaDetectorAdapter(ChangeDetector moaDetector, boolean prepare) {
         this.moaDetector = moaDetector;
-        this.moaDetector.prepareForUse();
+        if(prepare)
+            this.moaDetector.prepareForUse();
     }
 
     @Override
-    public void update(Double example) {
+    public void update(double example) {
         moaDetector.input(example);
     }
 
@@ -27,6 +32,20 @@ public class MoaDetectorAdapter implements UnivariateRealDetector {
         return moaDetector.getChange();
     }
 
+    @Override
+    public void reset() {
+        moaDetector.resetLearning();
+    }
+
+    /**
+     * Copies the MOA detector with its own copy(), which goes through serialization. Its state is opaque, so snapshots
+     * are not supported.
+     */
+    @Override
+    public MoaDetectorAdapter copy() {
+        return new MoaDetectorAdapter(moaDetector.copy(), false);
+    }
+
     public static MoaDetectorAdapter cusum() {
         return new MoaDetectorAdapter(new CusumDM());
     }
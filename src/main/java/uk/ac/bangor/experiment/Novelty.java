@@ -2,9 +2,7 @@ package uk.ac.bangor.experiment;
 
 import uk.ac.bangor.novelty.*;
 import uk.ac.bangor.novelty.ensemble.FeatureWeightedSubsetEnsemble;
-import uk.ac.bangor.novelty.ensemble.MultivariateRealEnsemble;
-import uk.ac.bangor.novelty.ensemble.QuorumScheme;
-import uk.ac.bangor.novelty.windowing.FixedWindowPair;
+import uk.ac.bangor.novelty.windowing.FlatWindowPair;
 import weka.core.CommandlineRunnable;
 import weka.core.DenseInstance;
 import weka.core.Instance;
@@ -35,6 +33,12 @@ public class Novelty implements CommandlineRunnable {
 
     int m_Seed = 0;
 
+    // Reset detectors in place after a detection, rather than replacing them with new ones.
+    boolean m_ResetInPlace = false;
+
+    // Re-arm detectors after a detection, keeping their newest window as the next reference, rather than replacing them.
+    boolean m_WarmRearm = false;
+
     private double [] m_StandardDeviations = null;
 
     public boolean[] selectSubset(int n) {
@@ -143,23 +147,19 @@ public class Novelty implements CommandlineRunnable {
         int length = Integer.max(25, (stream.numAttributes() + 3)/2);
         switch (d) {
             case 0:
-                return new Hotelling(new FixedWindowPair<>(length, length, double[].class));
+                return new Hotelling(new FlatWindowPair(length, length));
             case 1:
-                return new KL(new FixedWindowPair<>(25, 25, double[].class), 3);
+                return new KL(new FlatWindowPair(25, 25), 3);
             case 2:
-                return new SPLL(new FixedWindowPair<>(25, 25, double[].class), 3);
+                return new SPLL(new FlatWindowPair(25, 25), 3);
             case 3:
-                MultivariateRealEnsemble ensemble = new MultivariateRealEnsemble(new QuorumScheme(1d/3));
-                for(int i = 0; i < stream.numAttributes(); i++) {
-                    ensemble.addUnivariate(new CUSUM(), i);
-                }
-                return ensemble;
+                return new CUSUMBank(stream.numAttributes(), 1d/3);
             case 4:
-                return new FeatureWeightedSubsetEnsemble(stream.numAttributes(), stream.numAttributes() / 2, 9, x -> new SPLL(new FixedWindowPair<>(25,25,double[].class),3), () -> new CUSUM());
+                return new FeatureWeightedSubsetEnsemble(stream.numAttributes(), stream.numAttributes() / 2, 9, x -> new SPLL(new FlatWindowPair(25, 25),3), () -> new CUSUM());
                 /*MultivariateRealEnsemble mvEnsemble = new MultivariateRealEnsemble();
-                mvEnsemble.addMultivariate(new Hotelling(new FixedWindowPair<>(length, length, double[].class)));
-                mvEnsemble.addMultivariate(new KL(new FixedWindowPair<>(25, 25, double[].class), 3));
-                mvEnsemble.addMultivariate(new SPLL(new FixedWindowPair<>(25, 25, double[].class), 3));
+                mvEnsemble.addMultivariate(new Hotelling(new FlatWindowPair(length, length)));
+                mvEnsemble.addMultivariate(new KL(new FlatWindowPair(25, 25), 3));
+                mvEnsemble.addMultivariate(new SPLL(new FlatWindowPair(25, 25), 3));
                 return mvEnsemble;*/
         }
         return null;
@@ -197,22 +197,30 @@ public class Novelty implements CommandlineRunnable {
                     } catch (Exception e) {
                         e.printStackTrace();
                     }
+                    double[][] rows = new double[stream.numInstances()][];
+                    for (int r = 0; r < rows.length; r++) {
+                        rows[r] = stream.instance(r).toDoubleArray();
+                    }
                     for (int d = 0; d < getNumDetectors(); d++) {
                         MultivariateRealDetector detector = getNewDetector(d, stream);
                         int arl = -1;
                         int ttd = -1;
                         int j = 0;
-                        for (Instance instance : stream) {
-                            double[] x = instance.toDoubleArray();
-                            detector.update(x);
-                            if (detector.isChangeDetected()) {
+                        while (j < rows.length) {
+                            j = detector.updateBatch(rows, j, rows.length, null);
+                            if (j < 0)
+                                break;
+                            if (m_WarmRearm)
+                                detector.rearm();
+                            else if (m_ResetInPlace)
+                                detector.reset();
+                            else
                                 detector = getNewDetector(d, stream);
-                                if (j < m_ChangePoint && arl < 0)
-                                    arl = j;
-                                if (j >= m_ChangePoint) {
-                                    ttd = j - m_ChangePoint;
-                                    break;
-                                }
+                            if (j < m_ChangePoint && arl < 0)
+                                arl = j;
+                            if (j >= m_ChangePoint) {
+                                ttd = j - m_ChangePoint;
+                                break;
                             }
                             j++;
                         }
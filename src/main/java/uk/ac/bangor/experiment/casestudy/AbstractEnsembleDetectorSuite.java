@@ -2,9 +2,11 @@ package uk.ac.bangor.experiment.casestudy;
 
 import uk.ac.bangor.novelty.MultivariateRealDetector;
 import uk.ac.bangor.novelty.UnivariateRealDetector;
+import uk.ac.bangor.novelty.ensemble.MultiQuorumEnsemble;
 import uk.ac.bangor.novelty.ensemble.MultivariateRealEnsemble;
 import uk.ac.bangor.novelty.ensemble.QuorumScheme;
 
+import java.util.Arrays;
 import java.util.function.Supplier;
 
 /**
@@ -33,6 +35,14 @@ public abstract class AbstractEnsembleDetectorSuite implements DetectorSuite {
         index++;
     }
 
+    /**
+     * A detector standing in for every detector left in the suite, from the current one on, which the case study can
+     * run in a single pass, or null if the detectors must be run one at a time.
+     */
+    public MultiQuorumEnsemble newRemainingDetectors(int features) {
+        return null;
+    }
+
     protected MultivariateRealDetector getEnsemble(int features, double quorum, Supplier<UnivariateRealDetector> supplier) {
         MultivariateRealEnsemble ensemble = new MultivariateRealEnsemble(new QuorumScheme(quorum));
         for(int i = 0; i < features; i++) {
@@ -41,6 +51,19 @@ public abstract class AbstractEnsembleDetectorSuite implements DetectorSuite {
         return ensemble;
     }
 
+    /**
+     * Ensembles of the same members at the quorums from the current detector on.
+     */
+    protected MultiQuorumEnsemble getMultiQuorumEnsemble(int features, double[] quorums, Supplier<UnivariateRealDetector> supplier) {
+        return new MultiQuorumEnsemble(Arrays.copyOfRange(quorums, index, quorums.length), () -> {
+            MultivariateRealEnsemble ensemble = new MultivariateRealEnsemble();
+            for(int i = 0; i < features; i++) {
+                ensemble.addUnivariate(supplier.get(), i);
+            }
+            return ensemble;
+        });
+    }
+
     @Override
     public boolean first() {
         return index == 0;
@@ -2,8 +2,9 @@ package uk.ac.bangor.experiment.casestudy;
 
 import uk.ac.bangor.experiment.MoaDetectorAdapter;
 import uk.ac.bangor.experiment.ProgressBar;
-import uk.ac.bangor.novelty.CUSUM;
+import uk.ac.bangor.novelty.CUSUMBank;
 import uk.ac.bangor.novelty.MultivariateRealDetector;
+import uk.ac.bangor.novelty.ensemble.MultiQuorumEnsemble;
 import moa.core.InstanceExample;
 import moa.streams.ArffFileStream;
 import weka.core.CommandlineRunnable;
@@ -20,9 +21,15 @@ import java.util.stream.Collectors;
  */
 public class CaseStudy implements CommandlineRunnable {
 
+    private static final int BLOCK_SIZE = 1000;
+
     ProgressBar progressBar = new ProgressBar('=',50);
-    List<ChangePoint> changePoints = new ArrayList<>();
-    List<Long> detections = new ArrayList<>();
+
+    // Reset detectors in place after a detection, rather than replacing them with new ones.
+    boolean resetInPlace = false;
+
+    // Re-arm detectors after a detection, keeping their newest window as the next reference, rather than replacing them.
+    boolean warmRearm = false;
 
     public static void main(String[] args) {
         CaseStudy obj = new CaseStudy();
@@ -32,7 +39,7 @@ public class CaseStudy implements CommandlineRunnable {
     @Override
     public void run(Object o, String[] strings) throws IllegalArgumentException {
         DetectorSuite mvSuite = SuiteBuilder.getMultivariateSuite();
-        DetectorSuite cusumSuite = SuiteBuilder.getEnsembleSuite("CUSUM-", () -> new CUSUM());
+        DetectorSuite cusumSuite = SuiteBuilder.getBankSuite("CUSUM-", CUSUMBank::new);
         DetectorSuite seq1Suite = SuiteBuilder.getEnsembleSuite("SEQ1-", () -> MoaDetectorAdapter.seq1());
         DetectorSuite seedSuite = SuiteBuilder.getEnsembleSuite("SEED-", () -> MoaDetectorAdapter.seed());
 
@@ -52,91 +59,155 @@ public class CaseStudy implements CommandlineRunnable {
         }
     }
 
+    /**
+     * Run the current detector of the suite over the stream, replacing it after each detection, and write
+     * its results. A suite of ensembles which can stand in for all its remaining detectors at once (see
+     * {@link AbstractEnsembleDetectorSuite#newRemainingDetectors(int)}) has them all run in this one pass.
+     */
     public void process(ArffFileStream fileStream, DetectorSuite suite) {
 
         int features = fileStream.getHeader().numInputAttributes();
         List<String> classAttributeValues = fileStream.getHeader().classAttribute().getAttributeValues();
 
-        MultivariateRealDetector detector = suite.newCurrentDetector(features);
+        MultiQuorumEnsemble remaining = suite instanceof AbstractEnsembleDetectorSuite
+                ? ((AbstractEnsembleDetectorSuite) suite).newRemainingDetectors(features) : null;
+        if(remaining != null) {
+            remaining.setResetInPlace(resetInPlace);
+            remaining.setWarmRearm(warmRearm);
+        }
+        MultivariateRealDetector detector = remaining != null ? remaining : suite.newCurrentDetector(features);
         String detectorName = suite.getDetectorName();
 
-        changePoints = new ArrayList<>();
-        detections = new ArrayList<>();
+        Results[] results = new Results[remaining != null ? remaining.size() : 1];
+        for(int r=0;r<results.length;r++)
+            results[r] = new Results();
 
         long total = 0;
         long count = 0;
 
-        long averageRunLength = 0;
-        int falsePositives = 0;
         int lastClassIndex = -1;
-        for(InstanceExample instance = fileStream.nextInstance(); fileStream.hasMoreInstances(); instance = fileStream.nextInstance()) {
 
-            if(count == total) {
-                long newTotal = fileStream.estimatedRemainingInstances();
-                if(newTotal > total)
-                    total = newTotal;
-            }
-
-            double[] data = instance.getData().toDoubleArray();
-            detector.update(data);
-            int classIndex = (int)data[data.length-1];
-            String label = classAttributeValues.get(classIndex);
-            if(detector.isChangeDetected()) {
-                if(detections.size() == 0) {
-                    averageRunLength += count;
-                } else {
-                    averageRunLength += (count - detections.get(detections.size()-1));
+        double[][] block = new double[BLOCK_SIZE][];
+        InstanceExample instance = fileStream.nextInstance();
+        while(fileStream.hasMoreInstances()) {
+
+            // Read ahead a block of instances, so the detector can be handed all of them at once.
+            int n = 0;
+            do {
+                if(count + n == total) {
+                    long newTotal = fileStream.estimatedRemainingInstances();
+                    if(newTotal > total)
+                        total = newTotal;
                 }
+                block[n++] = instance.getData().toDoubleArray();
+                instance = fileStream.nextInstance();
+            } while(n < block.length && fileStream.hasMoreInstances());
+
+            int from = 0;
+            while(from < n) {
+                int detectedAt = detector.updateBatch(block, from, n, null);
+                int to = detectedAt < 0 ? n : detectedAt + 1;
+
+                for(int i=from;i<to;i++) {
+                    double[] data = block[i];
+                    int classIndex = (int)data[data.length-1];
+                    String label = classAttributeValues.get(classIndex);
+                    if(i == detectedAt) {
+                        for(int r=0;r<results.length;r++) {
+                            if(remaining == null || remaining.isChangeDetected(r))
+                                results[r].detected(count);
+                        }
+
+                        // The multi-quorum ensemble restarts the quorums which detected by itself.
+                        if(remaining == null) {
+                            if(warmRearm)
+                                detector.rearm();
+                            else if(resetInPlace)
+                                detector.reset();
+                            else
+                                detector = suite.newCurrentDetector(features);
+                        }
+                    }
+                    count++;
+                    if(count % 1000 == 0) {
+                        progressBar.update(count, total, "Processing " + detectorName + "... (" + count + " / " + total + ")");
+                    }
 
-                if(changePoints.size() > 0) {
-                    int changePointIndex = changePoints.size() - 1;
-                    if(changePoints.get(changePointIndex).getDetected() != -1) {
-                        falsePositives++;
-                    } else {
-                        changePoints.get(changePointIndex).setDetected(count);
+                    if(lastClassIndex != classIndex && lastClassIndex != -1) {
+                        for(Results result : results)
+                            result.changePoints.add(new ChangePoint(count, classAttributeValues.get(lastClassIndex), label));
                     }
-                }
-                detections.add(count);
 
-                detector = suite.newCurrentDetector(features); // Reset
+                    lastClassIndex = classIndex;
+                }
+                from = to;
             }
-            count++;
-            if(count % 1000 == 0) {
-                progressBar.update(count, total, "Processing " + detectorName + "... (" + count + " / " + total + ")");
+        }
+
+        boolean first = suite.first();
+        String[] names = new String[results.length];
+        for(int r=0;r<results.length;r++) {
+            names[r] = suite.getDetectorName();
+            suite.advance();
+        }
+
+        try(PrintStream out = new PrintStream(new FileOutputStream("detections_" + fileStream.getHeader().getRelationName() + ".csv", true))) {
+            if(first) {
+                out.printf("detector, Mean TTD, Median TTD, Detection Ratio, ARL, False Positives out of %d\n", total);
             }
+            for(int r=0;r<results.length;r++)
+                results[r].print(out, names[r]);
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+        }
+
+        System.out.println();
+    }
 
-            if(lastClassIndex != classIndex && lastClassIndex != -1) {
-                changePoints.add(new ChangePoint(count, classAttributeValues.get(lastClassIndex), label));
+    /**
+     * The detections of one detector against the true change points.
+     */
+    private static class Results {
+        final List<ChangePoint> changePoints = new ArrayList<>();
+        final List<Long> detections = new ArrayList<>();
+        long averageRunLength = 0;
+        int falsePositives = 0;
+
+        void detected(long count) {
+            if(detections.size() == 0) {
+                averageRunLength += count;
+            } else {
+                averageRunLength += (count - detections.get(detections.size()-1));
             }
 
-            lastClassIndex = classIndex;
+            if(changePoints.size() > 0) {
+                int changePointIndex = changePoints.size() - 1;
+                if(changePoints.get(changePointIndex).getDetected() != -1) {
+                    falsePositives++;
+                } else {
+                    changePoints.get(changePointIndex).setDetected(count);
+                }
+            }
+            detections.add(count);
         }
 
-        double ARL = averageRunLength / (double)detections.size();
-
-        double meanTTD, medianTTD, detectionRatio;
-        meanTTD = medianTTD = detectionRatio = 0.0;
+        void print(PrintStream out, String detectorName) {
+            double ARL = averageRunLength / (double)detections.size();
 
-        if(this.detections.size() > 0) {
+            double meanTTD, medianTTD, detectionRatio;
+            meanTTD = medianTTD = detectionRatio = 0.0;
 
-            List<ChangePoint> detectedChangePoints = changePoints.stream().filter(cp -> cp.getDetected() != -1).collect(Collectors.toList());
-            meanTTD      = detectedChangePoints.stream().mapToLong(cp -> cp.getTtd()).summaryStatistics().getAverage();
-            medianTTD    = detectedChangePoints.get(detectedChangePoints.size()/2).getTtd();
+            if(this.detections.size() > 0) {
 
-            detectionRatio = detectedChangePoints.size() / (double) changePoints.size();
-        }
+                List<ChangePoint> detectedChangePoints = changePoints.stream().filter(cp -> cp.getDetected() != -1).collect(Collectors.toList());
+                meanTTD      = detectedChangePoints.stream().mapToLong(cp -> cp.getTtd()).summaryStatistics().getAverage();
+                medianTTD    = detectedChangePoints.get(detectedChangePoints.size()/2).getTtd();
 
-        try(PrintStream out = new PrintStream(new FileOutputStream("detections_" + fileStream.getHeader().getRelationName() + ".csv", true))) {
-            if(suite.first()) {
-                out.printf("detector, Mean TTD, Median TTD, Detection Ratio, ARL, False Positives out of %d\n", total);
+                detectionRatio = detectedChangePoints.size() / (double) changePoints.size();
             }
+
             out.printf("%s, %.2f, %.2f, %.2f, %.2f, %d\n", detectorName, meanTTD, medianTTD, detectionRatio, ARL, falsePositives);
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
         }
-
-        suite.advance();
-        System.out.println();
     }
 
     /**
@@ -1,8 +1,10 @@
 package uk.ac.bangor.experiment.casestudy;
 
-import uk.ac.bangor.novelty.windowing.FixedWindowPair;
+import uk.ac.bangor.novelty.windowing.FlatWindowPair;
 import uk.ac.bangor.novelty.*;
+import uk.ac.bangor.novelty.ensemble.MultiQuorumEnsemble;
 
+import java.util.function.BiFunction;
 import java.util.function.Supplier;
 
 /**
@@ -10,6 +12,12 @@ import java.util.function.Supplier;
  */
 public class SuiteBuilder {
 
+    private static final double[] QUORUMS = { 0.1, 0.2, 0.3, 0.4, 0.5 };
+
+    /**
+     * A suite of ensembles of univariate detectors, one on each feature, at quorums from 0.1 to 0.5. The whole suite
+     * can be run in one pass, see {@link AbstractEnsembleDetectorSuite#newRemainingDetectors(int)}.
+     */
     public static DetectorSuite getEnsembleSuite(String name, Supplier<UnivariateRealDetector> univariateRealDetectorSupplier) {
         return new AbstractEnsembleDetectorSuite() {
             @Override
@@ -19,19 +27,35 @@ public class SuiteBuilder {
 
             @Override
             public MultivariateRealDetector newCurrentDetector(int features) {
-                switch (index) {
-                    case 0:
-                        return getEnsemble(features, 0.1, univariateRealDetectorSupplier);
-                    case 1:
-                        return getEnsemble(features, 0.2, univariateRealDetectorSupplier);
-                    case 2:
-                        return getEnsemble(features, 0.3, univariateRealDetectorSupplier);
-                    case 3:
-                        return getEnsemble(features, 0.4, univariateRealDetectorSupplier);
-                    case 4:
-                        return getEnsemble(features, 0.5, univariateRealDetectorSupplier);
-                }
-                throw new IllegalArgumentException("No detector for index " + index);
+                if(index < 0 || index >= QUORUMS.length)
+                    throw new IllegalArgumentException("No detector for index " + index);
+                return getEnsemble(features, QUORUMS[index], univariateRealDetectorSupplier);
+            }
+
+            @Override
+            public MultiQuorumEnsemble newRemainingDetectors(int features) {
+                return getMultiQuorumEnsemble(features, QUORUMS, univariateRealDetectorSupplier);
+            }
+        };
+    }
+
+    /**
+     * A suite of control chart banks at the same quorums as {@link #getEnsembleSuite(String, Supplier)}.
+     * @param bankFactory
+     *          Builds a bank for the given number of features and quorum, e.g. CUSUMBank::new.
+     */
+    public static DetectorSuite getBankSuite(String name, BiFunction<Integer, Double, AbstractControlChartBank> bankFactory) {
+        return new AbstractEnsembleDetectorSuite() {
+            @Override
+            protected String[] detectorNames() {
+                return new String[] { name + 10, name + 20, name + 30, name + 40, name + 50 };
+            }
+
+            @Override
+            public MultivariateRealDetector newCurrentDetector(int features) {
+                if(index < 0 || index >= QUORUMS.length)
+                    throw new IllegalArgumentException("No detector for index " + index);
+                return bankFactory.apply(features, QUORUMS[index]);
             }
         };
     }
@@ -41,9 +65,9 @@ public class SuiteBuilder {
 
             String[] detectorNames = {"SPLL","KL","Hotelling"};
             Supplier<MultivariateRealDetector>[] detectors = new Supplier[] {
-                    () -> new SPLL(new FixedWindowPair<>(25,25,double[].class), 3),
-                    () -> new KL(new FixedWindowPair<>(25,25,double[].class),3),
-                    () -> new Hotelling(new FixedWindowPair<>(25,25,double[].class))
+                    () -> new SPLL(new FlatWindowPair(25, 25), 3),
+                    () -> new KL(new FlatWindowPair(25, 25),3),
+                    () -> new Hotelling(new FlatWindowPair(25, 25))
             };
             int detectorIndex = 0;
 
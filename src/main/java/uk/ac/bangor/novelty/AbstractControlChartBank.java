@@ -0,0 +1,230 @@
+package uk.ac.bangor.novelty;
+
+import uk.ac.bangor.novelty.util.Footprints;
+import uk.ac.bangor.novelty.util.Snapshots;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A bank of univariate control charts, one per feature of a multivariate stream, which votes on change by quorum.
+ *
+ * This is equivalent to a {@link uk.ac.bangor.novelty.ensemble.MultivariateRealEnsemble} of one univariate chart per
+ * feature under a {@link uk.ac.bangor.novelty.ensemble.QuorumScheme}, but the state of every chart is held in parallel
+ * primitive arrays indexed by feature, and all of the charts are updated in one loop over the incoming example. The
+ * per-feature decisions are kept as a bitset, with a running count of the features which signalled change.
+ *
+ * Subclasses implement {@link #step(double[], int, int)} for a run of at most 64 features at a time, and expose the
+ * arrays holding the state of their charts through {@link #getChartState()}, from which copies and snapshots are made.
+ */
+public abstract class AbstractControlChartBank implements MultivariateRealDetector {
+
+    private static final int SNAPSHOT_VERSION = 1;
+
+    protected final int features;
+    private final double quorum;
+    private final long[] decisions;
+    private int detections;
+    private boolean change;
+
+    /**
+     * The number of examples seen, including the current one while it is being processed.
+     */
+    protected long samples;
+
+    /**
+     * @param features
+     *          The number of features in the stream, and so the number of charts.
+     * @param quorum
+     *          A value between 0.0 and 1.0, the proportion of charts which must signal change for the bank to signal
+     *          change.
+     */
+    protected AbstractControlChartBank(int features, double quorum) {
+        if(features < 1)
+            throw new IllegalArgumentException("A bank needs at least one feature.");
+        if(quorum < 0 || quorum > 1.0)
+            throw new IllegalArgumentException("Quorum value must be between 0.0 and 1.0.");
+        this.features = features;
+        this.quorum = quorum;
+        this.decisions = new long[(features + 63) >>> 6];
+    }
+
+    @Override
+    public void update(double[] example) {
+        this.change = evaluate(example);
+    }
+
+    @Override
+    public int updateBatch(double[][] rows, int from, int to, boolean[] decisions) {
+        for(int i=from;i<to;i++) {
+            boolean detected = evaluate(rows[i]);
+            if(decisions != null)
+                decisions[i] = detected;
+            if(detected) {
+                this.change = true;
+                return i;
+            }
+        }
+        if(to > from)
+            this.change = false;
+        return -1;
+    }
+
+    private boolean evaluate(double[] example) {
+        if(example.length != features)
+            throw new IllegalArgumentException("Expected " + features + " features, but the example has " + example.length);
+
+        samples++;
+        int count = 0;
+        for(int word=0;word<decisions.length;word++) {
+            int from = word << 6;
+            long bits = step(example, from, Math.min(features, from + 64));
+            decisions[word] = bits;
+            count += Long.bitCount(bits);
+        }
+        detections = count;
+
+        return (double) count / features >= quorum;
+    }
+
+    /**
+     * Update the charts of a run of features with the example.
+     * @param example
+     *          The whole example.
+     * @param from
+     *          The first feature to update, inclusive.
+     * @param to
+     *          The last feature to update, exclusive. At most from + 64.
+     * @return
+     *          The decisions of the charts, with bit (i - from) set if the chart for feature i signalled change.
+     */
+    protected abstract long step(double[] example, int from, int to);
+
+    /**
+     * @return
+     *          The arrays holding the state of the charts, each with one element per feature.
+     */
+    protected abstract double[][] getChartState();
+
+    @Override
+    public abstract AbstractControlChartBank copy();
+
+    /**
+     * Copy the state of this bank into a new bank of the same type and configuration.
+     * @return
+     *          The copy.
+     */
+    protected <B extends AbstractControlChartBank> B copyStateTo(B copy) {
+        AbstractControlChartBank target = copy;
+        double[][] state = getChartState();
+        double[][] copyState = target.getChartState();
+        for(int a=0;a<state.length;a++)
+            System.arraycopy(state[a], 0, copyState[a], 0, features);
+        target.samples = samples;
+        System.arraycopy(decisions, 0, target.decisions, 0, decisions.length);
+        target.detections = detections;
+        target.change = change;
+        return copy;
+    }
+
+    @Override
+    public long estimatedFootprintBytes() {
+        long bytes = Footprints.object(getClass()) + Footprints.of(decisions);
+        for(double[] chart : getChartState())
+            bytes += Footprints.of(chart);
+        return bytes;
+    }
+
+    @Override
+    public boolean supportsSnapshots() {
+        return true;
+    }
+
+    @Override
+    public int snapshotSize() {
+        return Snapshots.HEADER_BYTES + 3 * Integer.BYTES + Long.BYTES + decisions.length * Long.BYTES + 1
+                + getChartState().length * features * Double.BYTES;
+    }
+
+    @Override
+    public void writeSnapshot(ByteBuffer buffer) {
+        double[][] state = getChartState();
+        Snapshots.writeHeader(buffer, this, SNAPSHOT_VERSION);
+        buffer.putInt(features);
+        buffer.putInt(state.length);
+        buffer.putLong(samples);
+        Snapshots.putLongs(buffer, decisions, decisions.length);
+        buffer.putInt(detections);
+        Snapshots.putBoolean(buffer, change);
+        for(double[] values : state)
+            Snapshots.putDoubles(buffer, values, 0, features);
+    }
+
+    @Override
+    public void readSnapshot(ByteBuffer buffer) {
+        double[][] state = getChartState();
+        Snapshots.readHeader(buffer, this, SNAPSHOT_VERSION);
+        Snapshots.checkEqual("features", features, buffer.getInt());
+        Snapshots.checkEqual("chart arrays", state.length, buffer.getInt());
+        samples = buffer.getLong();
+        Snapshots.getLongs(buffer, decisions, decisions.length);
+        detections = buffer.getInt();
+        change = Snapshots.getBoolean(buffer);
+        for(double[] values : state)
+            Snapshots.getDoubles(buffer, values, 0, features);
+    }
+
+    @Override
+    public boolean isChangeDetected() {
+        return change;
+    }
+
+    /**
+     * Subclasses which keep chart state of their own should clear it, and call this.
+     */
+    @Override
+    public void reset() {
+        samples = 0;
+        Arrays.fill(decisions, 0);
+        detections = 0;
+        change = false;
+    }
+
+    @Override
+    public boolean retainsExample() {
+        return false;
+    }
+
+    /**
+     * @return
+     *          True if the chart for the given feature signalled change on the last example.
+     */
+    public boolean isChangeDetected(int feature) {
+        return (decisions[feature >>> 6] & (1L << feature)) != 0;
+    }
+
+    /**
+     * @return
+     *          The features whose charts signalled change on the last example.
+     */
+    public BitSet getDecisions() {
+        return BitSet.valueOf(decisions);
+    }
+
+    /**
+     * @return
+     *          The number of charts which signalled change on the last example.
+     */
+    public int getDetections() {
+        return detections;
+    }
+
+    public int getFeatures() {
+        return features;
+    }
+
+    public double getQuorum() {
+        return quorum;
+    }
+}
@@ -1,26 +1,25 @@
 package uk.ac.bangor.novelty;
 
-import uk.ac.bangor.novelty.util.CollectionUtils;
+import uk.ac.bangor.novelty.clustering.IncrementalKMeans;
+import uk.ac.bangor.novelty.linalg.Cholesky;
+import uk.ac.bangor.novelty.linalg.LinearAlgebra;
+import uk.ac.bangor.novelty.util.Footprints;
+import uk.ac.bangor.novelty.util.Snapshots;
 import uk.ac.bangor.novelty.windowing.FixedWindowPair;
+import uk.ac.bangor.novelty.windowing.FlatWindowPair;
 import lombok.AccessLevel;
 import lombok.Getter;
-import org.apache.commons.math3.linear.Array2DRowRealMatrix;
-import org.apache.commons.math3.linear.MatrixUtils;
-import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.linear.SingularValueDecomposition;
 import org.apache.commons.math3.ml.clustering.CentroidCluster;
 import org.apache.commons.math3.ml.clustering.DoublePoint;
 import org.apache.commons.math3.ml.clustering.KMeansPlusPlusClusterer;
 import org.apache.commons.math3.ml.distance.EuclideanDistance;
 import org.apache.commons.math3.random.RandomGeneratorFactory;
-import org.apache.commons.math3.stat.correlation.Covariance;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.ThreadLocalRandom;
-import java.util.stream.Collectors;
 
 /**
  * @author Will Faithfull
@@ -32,26 +31,79 @@ import java.util.stream.Collectors;
  * Delegates the final decision for change to the implementing subclass, which is presented with a pair of discrete
  * probability distributions about which to reason.
  *
- * This uses the Apache commons KMeansPlusPlusClusterer for clustering, although in theory it should be straightforward
- * to substitute this for another clustering algorithm.
+ * By default, W1 is clustered afresh for every sample with the Apache commons KMeansPlusPlusClusterer. With a refit
+ * interval greater than one (see {@link #setRefitInterval(int)}), an {@link IncrementalKMeans} clustering is instead
+ * carried from sample to sample, updated for the observation which entered W1 and the one which left it. It is fitted
+ * from scratch again after the given number of samples, when a cluster empties, or when its within-cluster cost has
+ * grown by more than {@link #getRefitTolerance()} relative to the last fit, whichever comes first.
+ *
+ * The reference model built from W1 (the clustering, its pooled covariance and the factorisation of that covariance)
+ * is by default rebuilt for every sample, and every observation in W2 is assigned to its nearest cluster again. With a
+ * reference refresh interval greater than one (see {@link #setReferenceRefreshInterval(int)}), the reference model is
+ * only rebuilt on that schedule, and in between, the assignments of W2 are carried: only the observation which entered
+ * W2 is assigned, and the one promoted to W1 is forgotten, at O(K.d^2) per sample. On the samples where the reference
+ * model is rebuilt, the decision is exactly that of the default mode.
+ *
+ * With an evaluation stride of k (see {@link #setEvaluationStride(int)}), the windows, and any carried clustering and
+ * assignments, are updated with every sample, but the test is only performed on every k-th sample once both windows
+ * are full, starting with the first, or on the next sample after {@link #requestEvaluation()}. The reference refresh
+ * interval then counts tests rather than samples. {@link #isChangeDetected()} is false on the samples in between: a
+ * detection is reported once, on the sample whose test found it.
+ *
+ * {@link #reset()} empties the windows, and {@link #rearm()} keeps W2 as the start of the next reference. Both drop
+ * the carried clustering and assignments, but keep the clusterers and buffers for reuse.
+ *
+ * Copies (see {@link #copy()}) and snapshots hold the windows, the configuration of the schedules above and the outcome
+ * of the last test. The clustering and reference model are not part of them, and are built afresh on the next test.
  */
 public abstract class AbstractKMeansQuantizingDetector implements MultivariateRealDetector {
 
-    protected final FixedWindowPair<double[]> windowPair;
+    private static final double DEFAULT_REFIT_TOLERANCE = 0.2;
+    private static final int SNAPSHOT_VERSION = 1;
+
+    protected final FlatWindowPair windowPair;
     private final KMeansPlusPlusClusterer<DoublePoint> clusterer;
     protected final int K;
 
+    @Getter
+    private int refitInterval = 1;
+    @Getter
+    private double refitTolerance = DEFAULT_REFIT_TOLERANCE;
+    private IncrementalKMeans incrementalClusterer;
+    private int sinceRefit;
+
     @Getter
     private boolean change;
 
+    private EvaluationSchedule evaluation = new EvaluationSchedule();
+
     @Getter(AccessLevel.PROTECTED)
     private List<Double> classPriors;
     @Getter(AccessLevel.PROTECTED)
     private List<double[]> clusterMeans;
-    @Getter(AccessLevel.PROTECTED)
     private double[] minClusterToObservationDistances;
 
-    private List<RealMatrix> priorWeightedClusterCovariance;
+    @Getter
+    private int referenceRefreshInterval = 1;
+    private int sinceReferenceRefresh;
+    private boolean referenceValid;
+    private boolean factorised;
+    private double[] referencePriors;
+
+    // Nearest cluster and distance to it of the W2 observation in each slot of the window pair's backing array, with
+    // the cluster counts and total distance over W2.
+    private int[] w2Clusters;
+    private double[] w2Distances;
+    private int[] p2Counts;
+    private double distanceSum;
+    private boolean distancesInOrder;
+
+    // Sum of the prior weighted cluster covariances, d x d row-major, with its factorisation and scratch space.
+    private double[] finalCovariance;
+    private double[] inverseCovariance;
+    private Cholesky cholesky;
+    private double[] clusterMean;
+    private double[] difference;
 
     @Getter(AccessLevel.PROTECTED)
     private final int nObservations;
@@ -59,13 +111,28 @@ public abstract class AbstractKMeansQuantizingDetector implements MultivariateRe
     @Getter(AccessLevel.PROTECTED)
     private int nFeatures;
 
-    private double[][] covariance;
+    private double[][] window1Rows;
+    private double[] observation;
 
     public AbstractKMeansQuantizingDetector(FixedWindowPair<double[]> windowPair) {
         this(windowPair, 3);
     }
 
+    /**
+     * @param windowPair
+     *          Only the window capacities are used; the detector keeps its observations in a {@link FlatWindowPair}.
+     * @param K
+     *          The number of clusters.
+     */
     public AbstractKMeansQuantizingDetector(FixedWindowPair<double[]> windowPair, int K) {
+        this(new FlatWindowPair(windowPair.getWindow1().capacity(), windowPair.getWindow2().capacity()), K);
+    }
+
+    public AbstractKMeansQuantizingDetector(FlatWindowPair windowPair) {
+        this(windowPair, 3);
+    }
+
+    public AbstractKMeansQuantizingDetector(FlatWindowPair windowPair, int K) {
         this.windowPair = windowPair;
         this.K = K;
         clusterer = new KMeansPlusPlusClusterer<>(K, 100, new EuclideanDistance(), RandomGeneratorFactory.createRandomGenerator(new Random()), KMeansPlusPlusClusterer.EmptyClusterStrategy.FARTHEST_POINT);
@@ -82,12 +149,11 @@ public abstract class AbstractKMeansQuantizingDetector implements MultivariateRe
 
         classPriors = new ArrayList<>();
         clusterMeans = new ArrayList<>();
-        priorWeightedClusterCovariance = new ArrayList<>();
 
         int totalObservations   = w1.length;
         int nFeatures           = w1[0].length;
 
-        covariance = new Covariance(w1).getCovarianceMatrix().getData();
+        resetCovariance(nFeatures);
 
         // Calculate the REFERENCE distribution from Window 1
         for(CentroidCluster<DoublePoint> cluster : clusters) {
@@ -100,113 +166,292 @@ public abstract class AbstractKMeansQuantizingDetector implements MultivariateRe
 
             List<DoublePoint> data = cluster.getPoints();
 
-            RealMatrix clusterCovariance;
-
             // So, in the quite rare case where we have very little diversity in the clustering data, the clusterer
             // can fail to correctly follow the empty cluster strategy, and we end up with an empty cluster out here.
-            // It makes very little difference to us, be it empty cluster or singleton cluster, we will just initialise
-            // an empty covariance matrix, because we can't calculate a covariance matrix for either.
-            if(nObservations <= 1.0) {
-                clusterCovariance = new Array2DRowRealMatrix(nFeatures, nFeatures);
-            } else {
-                double[][] clusterData = CollectionUtils.toArray(data.stream().map(x -> x.getPoint()).collect(Collectors.toList()));
-                clusterCovariance = new Covariance(clusterData).getCovarianceMatrix();
-            }
+            // It makes very little difference to us, be it empty cluster or singleton cluster, it contributes an
+            // empty covariance matrix, because we can't calculate a covariance matrix for either.
+            if(nObservations > 1.0) {
+                LinearAlgebra.fill(clusterMean, nFeatures, 0);
+                for(DoublePoint point : data) {
+                    double[] x = point.getPoint();
+                    for(int j=0;j<nFeatures;j++)
+                        clusterMean[j] += x[j];
+                }
+                for(int j=0;j<nFeatures;j++)
+                    clusterMean[j] /= nObservations;
 
-            clusterCovariance = clusterCovariance.scalarMultiply(prior);
-            priorWeightedClusterCovariance.add(clusterCovariance);
+                // Bias corrected covariance of the cluster, weighted by its prior, straight into the sum.
+                for(DoublePoint point : data)
+                    LinearAlgebra.addCentredOuter(finalCovariance, nFeatures, point.getPoint(), 0, clusterMean, prior / (nObservations - 1), difference);
+            }
         }
+        LinearAlgebra.symmetrise(finalCovariance, nFeatures);
         return clusters;
     }
 
-    protected List<CentroidCluster<DoublePoint>> cluster(FixedWindowPair<double[]> windowPair) {
+    /**
+     * Cluster the observations currently in W1 of the given pair.
+     */
+    protected List<CentroidCluster<DoublePoint>> cluster(FlatWindowPair windowPair) {
+        FlatWindowPair.View window1 = windowPair.getWindow1();
 
-        List<DoublePoint> adaptedPoints = Arrays.asList(windowPair.getWindow1().getElements())
-                .stream()
-                .map(DoublePoint::new)
-                .collect(Collectors.toList());
+        // The clusterer keeps references to the rows only for the duration of the clustering, so the same rows can be
+        // reused for every sample.
+        if(window1Rows == null || window1Rows.length != window1.size() || window1Rows[0].length != windowPair.getDimensions())
+            window1Rows = new double[window1.size()][windowPair.getDimensions()];
+        for(int i=0;i<window1Rows.length;i++)
+            window1.copyRow(i, window1Rows[i]);
 
-        List<CentroidCluster<DoublePoint>> clusters = clusterer.cluster(adaptedPoints);
+        return cluster(window1Rows, null);
+    }
+
+    /**
+     * Cluster the observations currently in W1 incrementally, fitting from scratch when due.
+     * @return
+     *          The proportion of W1 in each cluster.
+     */
+    private double[] clusterIncrementally() {
+        FlatWindowPair.View window1 = windowPair.getWindow1();
+        int nFeatures = windowPair.getDimensions();
+
+        if(incrementalClusterer == null)
+            incrementalClusterer = new IncrementalKMeans(K, new Random());
+
+        if(!incrementalClusterer.isFitted()
+                || incrementalClusterer.isDegenerate()
+                || sinceRefit >= refitInterval
+                || incrementalClusterer.cost() > (1 + refitTolerance) * incrementalClusterer.getFittedCost()) {
+            incrementalClusterer.fit(window1);
+            sinceRefit = 0;
+        }
 
+        if(clusterMeans == null || clusterMeans.size() != K || clusterMeans.get(0).length != nFeatures) {
+            clusterMeans = new ArrayList<>();
+            for(int k=0;k<K;k++)
+                clusterMeans.add(new double[nFeatures]);
+        }
         classPriors = new ArrayList<>();
-        clusterMeans = new ArrayList<>();
-        priorWeightedClusterCovariance = new ArrayList<>();
+        resetCovariance(nFeatures);
 
-        int totalObservations   = windowPair.getWindow1().size();
-        int nFeatures           = windowPair.getWindow1().getOldest().length;
+        double[] p1 = new double[K];
+        double totalObservations = window1.size();
+        for(int k=0;k<K;k++) {
+            incrementalClusterer.centroid(k, clusterMeans.get(k));
+            double prior = incrementalClusterer.count(k) / totalObservations;
+            classPriors.add(prior);
+            p1[k] = prior;
+            incrementalClusterer.addCovariance(k, prior, finalCovariance);
+        }
+        LinearAlgebra.symmetrise(finalCovariance, nFeatures);
+        return p1;
+    }
 
-        double[][] dataArray = windowPair.getWindow1().getElements();
-        covariance = new Covariance(dataArray).getCovarianceMatrix().getData();
+    private void resetCovariance(int nFeatures) {
+        if(finalCovariance == null || finalCovariance.length != nFeatures * nFeatures) {
+            finalCovariance = new double[nFeatures * nFeatures];
+            inverseCovariance = new double[nFeatures * nFeatures];
+            cholesky = new Cholesky(nFeatures);
+            clusterMean = new double[nFeatures];
+            difference = new double[nFeatures];
+        }
+        LinearAlgebra.fill(finalCovariance, finalCovariance.length, 0);
+    }
 
-        // Calculate the REFERENCE distribution from Window 1
-        for(CentroidCluster<DoublePoint> cluster : clusters) {
-            double nObservations       = cluster.getPoints().size();
-            double[] center         = cluster.getCenter().getPoint();
+    /**
+     * @param refitInterval
+     *          1, the default, to cluster W1 from scratch for every sample. Otherwise, the number of samples after which
+     *          an incrementally updated clustering is fitted from scratch again.
+     */
+    public void setRefitInterval(int refitInterval) {
+        if(refitInterval < 1)
+            throw new IllegalArgumentException("Refit interval must be at least 1.");
+        this.refitInterval = refitInterval;
+        if(incrementalClusterer != null)
+            incrementalClusterer.invalidate();
+    }
 
-            clusterMeans.add(center);
-            double prior = nObservations / totalObservations;
-            classPriors.add(prior);
+    /**
+     * @param referenceRefreshInterval
+     *          1, the default, to rebuild the reference model and reassign all of W2 for every sample. Otherwise, the
+     *          number of samples between rebuilds, with the assignments of W2 carried in between.
+     */
+    public void setReferenceRefreshInterval(int referenceRefreshInterval) {
+        if(referenceRefreshInterval < 1)
+            throw new IllegalArgumentException("Reference refresh interval must be at least 1.");
+        this.referenceRefreshInterval = referenceRefreshInterval;
+        this.referenceValid = false;
+    }
 
-            List<DoublePoint> data = cluster.getPoints();
+    /**
+     * @param evaluationStride
+     *          The number of samples between tests, 1 by default.
+     */
+    public void setEvaluationStride(int evaluationStride) {
+        evaluation.setStride(evaluationStride);
+    }
 
-            double[][] clusterData = CollectionUtils.toArray(data.stream().map(x -> x.getPoint()).collect(Collectors.toList()));
+    public int getEvaluationStride() {
+        return evaluation.getStride();
+    }
 
-            RealMatrix clusterCovariance;
-            if(nObservations == 1.0) {
-                clusterCovariance = new Array2DRowRealMatrix(nFeatures, nFeatures);
-            } else {
-                clusterCovariance = new Covariance(clusterData).getCovarianceMatrix();
-            }
+    /**
+     * Test on the next sample, whatever the stride.
+     */
+    public void requestEvaluation() {
+        evaluation.request();
+    }
 
-            clusterCovariance = clusterCovariance.scalarMultiply(prior);
-            priorWeightedClusterCovariance.add(clusterCovariance);
-        }
-        return clusters;
+    /**
+     * @param refitTolerance
+     *          The relative growth in the within-cluster cost of an incrementally updated clustering, since it was last
+     *          fitted, at which it is fitted from scratch again regardless of the refit interval. 0.2 by default.
+     */
+    public void setRefitTolerance(double refitTolerance) {
+        if(!(refitTolerance >= 0))
+            throw new IllegalArgumentException("Refit tolerance must be non-negative.");
+        this.refitTolerance = refitTolerance;
     }
 
     ThreadLocalRandom random = ThreadLocalRandom.current();
 
-    public void update(double[] input) {
+    /**
+     * Update the window pair with the input and, if they are being carried, the incremental clustering of W1 and the
+     * assignments of W2.
+     */
+    private void slide(double[] input) {
+        boolean full = windowPair.size() == windowPair.capacity();
+        boolean carry = full
+                && refitInterval > 1
+                && incrementalClusterer != null
+                && incrementalClusterer.isFitted();
+        boolean carryAssignments = full && referenceRefreshInterval > 1 && referenceValid;
+
+        // The observation leaving W1 is overwritten by the update, so it must leave its cluster first.
+        if(carry) {
+            FlatWindowPair.View window1 = windowPair.getWindow1();
+            incrementalClusterer.remove(windowPair.getData(), window1.offset(0));
+            sinceRefit++;
+        }
+
+        // The oldest observation of W2 is about to be promoted to W1.
+        if(carryAssignments) {
+            int slot = windowPair.getWindow2().offset(0) / nFeatures;
+            p2Counts[w2Clusters[slot]]--;
+            distanceSum -= w2Distances[slot];
+        }
+
         windowPair.update(input);
 
+        if(carry) {
+            FlatWindowPair.View window1 = windowPair.getWindow1();
+            incrementalClusterer.add(windowPair.getData(), window1.offset(window1.size() - 1));
+        }
+
+        if(carryAssignments) {
+            FlatWindowPair.View window2 = windowPair.getWindow2();
+            assign(window2, window2.size() - 1);
+            distancesInOrder = false;
+        }
+    }
+
+    public void update(double[] input) {
+        slide(input);
+
         if(windowPair.size() != windowPair.capacity())
             return;
 
-        double[][] window1 = windowPair.getWindow1().getElements();
-        double[][] window2 = windowPair.getWindow2().getElements();
+        this.change = evaluation.due() && evaluate();
+    }
+
+    /**
+     * Windows the input without testing it. The carried clustering and W2 assignments are dropped, and rebuilt from the
+     * windows on the next update.
+     */
+    @Override
+    public void observe(double[] input) {
+        referenceValid = false;
+        if(incrementalClusterer != null)
+            incrementalClusterer.invalidate();
+        windowPair.update(input);
+    }
 
-        this.nFeatures = window1[0].length;
+    @Override
+    public int updateBatch(double[][] rows, int from, int to, boolean[] decisions) {
+        for(int i=from;i<to;i++) {
+            slide(rows[i]);
+
+            // Until both windows are full there is nothing to quantize.
+            boolean detected = windowPair.size() == windowPair.capacity() && evaluation.due() && evaluate();
+            if(decisions != null)
+                decisions[i] = detected;
+            if(detected) {
+                this.change = true;
+                return i;
+            }
+        }
+        if(to > from)
+            this.change = false;
+        return -1;
+    }
 
-        List<CentroidCluster<DoublePoint>> clusters = cluster(window1, window2);
-        double totalObservations = (double)window1.length;
+    private boolean evaluate() {
+        if(referenceRefreshInterval == 1 || !referenceValid || ++sinceReferenceRefresh >= referenceRefreshInterval) {
+            refreshReference();
+            sinceReferenceRefresh = 0;
+        }
+
+        // Fresh arrays, as the subclass is free to modify them.
+        double w2Observations = windowPair.getWindow2().size();
+        double[] p1 = referencePriors.clone();
+        double[] p2 = new double[p2Counts.length];
+        for(int i=0;i<p2.length;i++) {
+            p2[i] = p2Counts[i] / w2Observations;
+        }
+
+        return change(p1, p2);
+    }
+
+    /**
+     * Rebuild the reference model from W1, and assign every observation in W2 to it.
+     */
+    private void refreshReference() {
+        FlatWindowPair.View window2 = windowPair.getWindow2();
+
+        this.nFeatures = windowPair.getDimensions();
 
         /**
          * Calculate the reference distribution (P1) from window 1, i.e. the population of the K clusters.
          */
-        double[] p1 = clusters.stream().mapToDouble(c -> c.getPoints().size() / totalObservations).toArray();
-        double[] p2 = new double[clusters.size()];
-        minClusterToObservationDistances = new double[(int)totalObservations];
-
-        RealMatrix finalCovariance = new Array2DRowRealMatrix(nFeatures, nFeatures);
-        for(RealMatrix covarianceMatrix : priorWeightedClusterCovariance) {
-            finalCovariance = finalCovariance.add(covarianceMatrix);
+        if(refitInterval > 1) {
+            referencePriors = clusterIncrementally();
+        } else {
+            List<CentroidCluster<DoublePoint>> clusters = cluster(windowPair);
+            double totalObservations = (double)windowPair.getWindow1().size();
+            referencePriors = clusters.stream().mapToDouble(c -> c.getPoints().size() / totalObservations).toArray();
+        }
+        int nClusters = clusterMeans.size();
+        if(p2Counts == null || p2Counts.length != nClusters)
+            p2Counts = new int[nClusters];
+        if(minClusterToObservationDistances == null || minClusterToObservationDistances.length != window2.size())
+            minClusterToObservationDistances = new double[window2.size()];
+        if(observation == null || observation.length != nFeatures)
+            observation = new double[nFeatures];
+        int slots = windowPair.getData().length / nFeatures;
+        if(w2Clusters == null || w2Clusters.length != slots) {
+            w2Clusters = new int[slots];
+            w2Distances = new double[slots];
         }
 
-        SingularValueDecomposition decomposition = new SingularValueDecomposition(finalCovariance);
-        RealMatrix inverseCovariance;
-        if(decomposition.getSolver().isNonSingular())
-            inverseCovariance = decomposition.getSolver().getInverse();
-        else {
-            double[][] finalCov = finalCovariance.getData();
-            inverseCovariance = new Array2DRowRealMatrix(nFeatures, nFeatures);
-            for(int m=0;m<finalCov.length;m++) {
-                for(int n = 0; n<finalCov[m].length; n++) {
-                    double covMN = finalCov[m][n];
-                    if(covMN <= 0.0001d) {
-                        finalCov[m][n] += 0.0001 * random.nextDouble();
-                    }
-                    inverseCovariance.setEntry(m,n, 1/finalCov[m][n]);
+        // The covariance is a sum of covariances, so it can be factorised unless it is singular. Distances are then
+        // found by solving against the factor, without forming the inverse.
+        factorised = cholesky.decompose(finalCovariance);
+        if(!factorised) {
+            for(int m=0;m<nFeatures*nFeatures;m++) {
+                double covMN = finalCovariance[m];
+                if(covMN <= 0.0001d) {
+                    covMN += 0.0001 * random.nextDouble();
                 }
+                inverseCovariance[m] = 1/covMN;
             }
         }
 
@@ -214,54 +459,72 @@ public abstract class AbstractKMeansQuantizingDetector implements MultivariateRe
          * Calculate the new distribution (P2) - do the points in window 2 get distributed into roughly the same clusters as
          * we see in the window 1 clustering? If not, we may need to signal change.
          */
-        double w2Observations = window2.length;
-        for(int i=0;i<w2Observations;i++) {
-            double[] observation = window2[i];
-            double minDist = Double.POSITIVE_INFINITY;
-            int minDistIndex = -1;
-
-            RealMatrix observationVector = MatrixUtils.createRowRealMatrix(observation);
-
-            for(int k=0;k<clusters.size();k++) {
-                RealMatrix clusterCenterVector = MatrixUtils.createRowRealMatrix(clusterMeans.get(k));
-
-                double dist = mahalanobisDistance(clusterCenterVector, observationVector, inverseCovariance);
-
-                if(dist < minDist) {
-                    minDist = dist;
-                    minDistIndex = k;
-                }
-            }
-
-            minClusterToObservationDistances[i] = minDist;
-            p2[minDistIndex]++;
+        for(int k=0;k<nClusters;k++)
+            p2Counts[k] = 0;
+        distanceSum = 0;
+        for(int i=0;i<window2.size();i++) {
+            minClusterToObservationDistances[i] = assign(window2, i);
         }
+        distancesInOrder = true;
+        referenceValid = true;
+    }
 
-        for(int i=0;i<K;i++) {
-            p2[i] /= w2Observations;
+    /**
+     * Assign a W2 observation to its nearest cluster of the reference model.
+     * @return
+     *          The distance to the nearest cluster.
+     */
+    private double assign(FlatWindowPair.View window2, int row) {
+        window2.copyRow(row, observation);
+        double minDist = Double.POSITIVE_INFINITY;
+        int minDistIndex = -1;
+
+        for(int k=0;k<p2Counts.length;k++) {
+            double dist = mahalanobisDistance(clusterMeans.get(k), observation, factorised);
+
+            if(dist < minDist) {
+                minDist = dist;
+                minDistIndex = k;
+            }
         }
 
-        this.change = change(p1, p2);
+        int slot = window2.offset(row) / nFeatures;
+        w2Clusters[slot] = minDistIndex;
+        w2Distances[slot] = minDist;
+        p2Counts[minDistIndex]++;
+        distanceSum += minDist;
+        return minDist;
     }
 
-    private static double min(RealMatrix matrix) {
-        double min = Double.POSITIVE_INFINITY;
-        for (double[] row : matrix.getData()) {
-            for(double col : row) {
-                if(col < min) {
-                    min = col;
-                }
-            }
+    /**
+     * @return
+     *          The distance from each W2 observation, oldest first, to its nearest cluster in the reference model.
+     */
+    protected double[] getMinClusterToObservationDistances() {
+        if(!distancesInOrder) {
+            FlatWindowPair.View window2 = windowPair.getWindow2();
+            for(int i=0;i<window2.size();i++)
+                minClusterToObservationDistances[i] = w2Distances[window2.offset(i) / nFeatures];
+            distancesInOrder = true;
         }
-        return min;
+        return minClusterToObservationDistances;
     }
 
-    private double mahalanobisDistance(RealMatrix a, RealMatrix b, RealMatrix inverseCovarianceMatrix) {
+    /**
+     * @return
+     *          The mean distance from the W2 observations to their nearest clusters in the reference model.
+     */
+    protected double getMeanMinClusterToObservationDistance() {
+        return distanceSum / windowPair.getWindow2().size();
+    }
 
-        RealMatrix meanMinusObservation = a.subtract(b);
-        RealMatrix distance = meanMinusObservation.multiply(inverseCovarianceMatrix.multiply(meanMinusObservation.transpose()));
+    private double mahalanobisDistance(double[] a, double[] b, boolean factorised) {
+        LinearAlgebra.subtract(a, 0, b, nFeatures, difference);
+        double distance = factorised
+                ? cholesky.inverseQuadraticForm(difference)
+                : LinearAlgebra.quadraticForm(inverseCovariance, nFeatures, difference, difference);
 
-        double dist = Math.sqrt(Math.abs(distance.getEntry(0,0)));
+        double dist = Math.sqrt(Math.abs(distance));
         if(Double.isNaN(dist))
             throw new RuntimeException("Distance calculation included NaN term");
         return dist;
@@ -271,5 +534,111 @@ public abstract class AbstractKMeansQuantizingDetector implements MultivariateRe
         return change;
     }
 
+    @Override
+    public void reset() {
+        windowPair.clear();
+        clearTest();
+    }
+
+    @Override
+    public void rearm() {
+        windowPair.clearWindow1();
+        clearTest();
+    }
+
+    @Override
+    public abstract AbstractKMeansQuantizingDetector copy();
+
+    /**
+     * Copy the configuration and the outcome of the last test into a new detector of the same type, constructed on a
+     * copy of the window pair.
+     * @return
+     *          The copy.
+     */
+    protected <D extends AbstractKMeansQuantizingDetector> D copyStateTo(D copy) {
+        AbstractKMeansQuantizingDetector target = copy;
+        target.refitInterval = refitInterval;
+        target.refitTolerance = refitTolerance;
+        target.referenceRefreshInterval = referenceRefreshInterval;
+        target.evaluation = evaluation.copy();
+        target.change = change;
+        target.nFeatures = nFeatures;
+        return copy;
+    }
+
+    @Override
+    public long estimatedFootprintBytes() {
+        long bytes = Footprints.object(getClass()) + windowPair.estimatedFootprintBytes()
+                + evaluation.estimatedFootprintBytes()
+                + Footprints.of(minClusterToObservationDistances) + Footprints.of(referencePriors)
+                + Footprints.of(w2Clusters) + Footprints.of(w2Distances) + Footprints.of(p2Counts)
+                + Footprints.of(finalCovariance) + Footprints.of(inverseCovariance) + Footprints.of(clusterMean)
+                + Footprints.of(difference) + Footprints.of(window1Rows) + Footprints.of(observation);
+        // The clusterer's own state is small next to the clusters it produces.
+        bytes += Footprints.object(32);
+        if(clusterMeans != null) {
+            for(double[] mean : clusterMeans)
+                bytes += Footprints.of(mean) + 2 * Footprints.object(Double.BYTES);
+        }
+        if(incrementalClusterer != null)
+            bytes += incrementalClusterer.estimatedFootprintBytes();
+        if(cholesky != null)
+            bytes += cholesky.estimatedFootprintBytes();
+        return bytes;
+    }
+
+    @Override
+    public boolean supportsSnapshots() {
+        return true;
+    }
+
+    @Override
+    public int snapshotSize() {
+        return Snapshots.HEADER_BYTES + windowPair.snapshotSize() + EvaluationSchedule.SNAPSHOT_BYTES + 1;
+    }
+
+    /**
+     * Subclasses which keep the statistic of the last test should add it to the snapshot after this.
+     */
+    @Override
+    public void writeSnapshot(ByteBuffer buffer) {
+        Snapshots.writeHeader(buffer, this, SNAPSHOT_VERSION);
+        windowPair.writeSnapshot(buffer);
+        evaluation.writeSnapshot(buffer);
+        Snapshots.putBoolean(buffer, change);
+    }
+
+    @Override
+    public void readSnapshot(ByteBuffer buffer) {
+        Snapshots.readHeader(buffer, this, SNAPSHOT_VERSION);
+        windowPair.readSnapshot(buffer);
+        nFeatures = windowPair.getDimensions();
+        clearTest();
+        evaluation.readSnapshot(buffer);
+        change = Snapshots.getBoolean(buffer);
+    }
+
+    /**
+     * Forget the outcome of the last test, and the carried clustering and W2 assignments, which no longer describe the
+     * windows. Subclasses which keep the statistic of the last test should clear it, and call this.
+     */
+    protected void clearTest() {
+        change = false;
+        evaluation.reset();
+        referenceValid = false;
+        sinceReferenceRefresh = 0;
+        sinceRefit = 0;
+        if(incrementalClusterer != null)
+            incrementalClusterer.invalidate();
+    }
+
+    /**
+     * Examples are copied into the window pair, so the caller may reuse them.
+     */
+    @Override
+    public boolean retainsExample() {
+        return false;
+    }
+
     protected abstract boolean change(double[] p1, double[] p2);
 }
\ No newline at end of file
@@ -1,14 +1,23 @@
 package uk.ac.bangor.novelty;
 
+import uk.ac.bangor.novelty.util.Footprints;
+import uk.ac.bangor.novelty.util.Snapshots;
+
+import java.nio.ByteBuffer;
+
 /**
  * Created by wfaithfull on 08/09/16.
  */
 public class CUSUM implements UnivariateRealDetector {
 
+    private static final int SNAPSHOT_VERSION = 1;
+
     private final double h;
     private final double mszu;
     private final double mszl;
-    private final StatsProvider stats = new OnlineStatistics();
+    // The statistics as given, copied again on reset.
+    private final StatsProvider initialStats;
+    private StatsProvider stats;
     private double upper = 0;
     private double lower = 0;
 
@@ -48,13 +57,43 @@ public class CUSUM implements UnivariateRealDetector {
      *          The factor of change in lower mean we wish to detect. Usually between 0.5σ and 1.5σ
      */
     public CUSUM(double h, double mszu, double mszl) {
+        this(h, mszu, mszl, new OnlineStatistics());
+    }
+
+    private CUSUM(double h, double mszu, double mszl, StatsProvider stats) {
+        this(h, mszu, mszl, stats.copy(), stats);
+    }
+
+    private CUSUM(double h, double mszu, double mszl, StatsProvider initialStats, StatsProvider stats) {
         this.h = h;
         this.mszu = mszu;
         this.mszl = mszl;
+        this.initialStats = initialStats;
+        this.stats = stats;
     }
 
     @Override
-    public void update(Double example) {
+    public void update(double example) {
+        change = step(example);
+    }
+
+    @Override
+    public int updateBatch(double[] values, int from, int to, boolean[] decisions) {
+        for(int i=from;i<to;i++) {
+            boolean detected = step(values[i]);
+            if(decisions != null)
+                decisions[i] = detected;
+            if(detected) {
+                change = true;
+                return i;
+            }
+        }
+        if(to > from)
+            change = false;
+        return -1;
+    }
+
+    private boolean step(double example) {
         stats.update(example);
 
         double mean = stats.mean();
@@ -65,11 +104,62 @@ public class CUSUM implements UnivariateRealDetector {
         upper = Math.max(0, example - (mean+ku) + upper);
         lower = Math.min(0, example - (mean-kl) - lower);
 
-        change = upper > h*sd || lower < -h*sd;
+        return upper > h*sd || lower < -h*sd;
     }
 
     @Override
     public boolean isChangeDetected() {
         return change;
     }
+
+    @Override
+    public void reset() {
+        stats = initialStats.copy();
+        upper = 0;
+        lower = 0;
+        change = false;
+    }
+
+    @Override
+    public CUSUM copy() {
+        CUSUM copy = new CUSUM(h, mszu, mszl, initialStats, stats.copy());
+        copy.upper = upper;
+        copy.lower = lower;
+        copy.change = change;
+        return copy;
+    }
+
+    @Override
+    public long estimatedFootprintBytes() {
+        return Footprints.object(getClass()) + initialStats.estimatedFootprintBytes()
+                + stats.estimatedFootprintBytes();
+    }
+
+    @Override
+    public boolean supportsSnapshots() {
+        return true;
+    }
+
+    @Override
+    public int snapshotSize() {
+        return Snapshots.HEADER_BYTES + stats.snapshotSize() + 2 * Double.BYTES + 1;
+    }
+
+    @Override
+    public void writeSnapshot(ByteBuffer buffer) {
+        Snapshots.writeHeader(buffer, this, SNAPSHOT_VERSION);
+        stats.writeSnapshot(buffer);
+        buffer.putDouble(upper);
+        buffer.putDouble(lower);
+        Snapshots.putBoolean(buffer, change);
+    }
+
+    @Override
+    public void readSnapshot(ByteBuffer buffer) {
+        Snapshots.readHeader(buffer, this, SNAPSHOT_VERSION);
+        stats.readSnapshot(buffer);
+        upper = buffer.getDouble();
+        lower = buffer.getDouble();
+        change = Snapshots.getBoolean(buffer);
+    }
 }
@@ -0,0 +1,88 @@
+package uk.ac.bangor.novelty;
+
+import java.util.Arrays;
+
+/**
+ * A bank of {@link CUSUM} charts, one per feature.
+ */
+public class CUSUMBank extends AbstractControlChartBank {
+
+    private final double h;
+    private final double mszu;
+    private final double mszl;
+
+    // Running mean and sum of squared deviations, as OnlineStatistics, and the cumulative sums, per feature.
+    private final double[] mu;
+    private final double[] sq;
+    private final double[] upper;
+    private final double[] lower;
+
+    /**
+     * Construct a CUSUM bank with default parameters.
+     */
+    public CUSUMBank(int features, double quorum) {
+        this(features, quorum, 5, 1, 1);
+    }
+
+    /**
+     * @param h
+     *          Control threshold, see {@link CUSUM#CUSUM(double, double, double)}.
+     * @param mszu
+     *          The factor of change in upper mean we wish to detect.
+     * @param mszl
+     *          The factor of change in lower mean we wish to detect.
+     */
+    public CUSUMBank(int features, double quorum, double h, double mszu, double mszl) {
+        super(features, quorum);
+        this.h = h;
+        this.mszu = mszu;
+        this.mszl = mszl;
+        this.mu = new double[features];
+        this.sq = new double[features];
+        this.upper = new double[features];
+        this.lower = new double[features];
+    }
+
+    @Override
+    protected long step(double[] example, int from, int to) {
+        long n = samples;
+        long bits = 0;
+        for(int i=from;i<to;i++) {
+            double x = example[i];
+            double muNew = mu[i] + (x-mu[i])/n;
+            sq[i] += (x-mu[i])*(x-muNew);
+            mu[i] = muNew;
+
+            double mean = mu[i];
+            double sd = Math.sqrt(n > 1 ? sq[i]/n : 0.0);
+
+            double ku = (mszu * sd)/2;
+            double kl = (mszl * sd)/2;
+            upper[i] = Math.max(0, x - (mean+ku) + upper[i]);
+            lower[i] = Math.min(0, x - (mean-kl) - lower[i]);
+
+            if(upper[i] > h*sd || lower[i] < -h*sd)
+                bits |= 1L << (i - from);
+        }
+        return bits;
+    }
+
+    @Override
+    protected double[][] getChartState() {
+        return new double[][] { mu, sq, upper, lower };
+    }
+
+    @Override
+    public CUSUMBank copy() {
+        return copyStateTo(new CUSUMBank(features, getQuorum(), h, mszu, mszl));
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        Arrays.fill(mu, 0);
+        Arrays.fill(sq, 0);
+        Arrays.fill(upper, 0);
+        Arrays.fill(lower, 0);
+    }
+}
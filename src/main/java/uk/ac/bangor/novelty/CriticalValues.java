@@ -0,0 +1,85 @@
+package uk.ac.bangor.novelty;
+
+import lombok.EqualsAndHashCode;
+import lombok.RequiredArgsConstructor;
+import org.apache.commons.math3.distribution.ChiSquaredDistribution;
+import org.apache.commons.math3.distribution.FDistribution;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A shared cache of critical values for the test statistics used by the detectors.
+ *
+ * The detectors compare a statistic against a fixed significance level, with degrees of freedom that are fixed once
+ * their windows are full. Comparing the statistic against the critical value gives the same decision as comparing the
+ * p-value against the significance level, without evaluating a regularised incomplete beta or gamma function for every
+ * sample. Critical values are computed once for each (distribution, df1, df2, probability) and shared by all
+ * detectors.
+ */
+public final class CriticalValues {
+
+    private enum Distribution { F, CHI_SQUARED }
+
+    private static final ConcurrentMap<Key, Double> cache = new ConcurrentHashMap<>();
+
+    private CriticalValues() {}
+
+    /**
+     * @return
+     *          x such that P(X &gt; x) = alpha, where X follows an F distribution with the given degrees of freedom.
+     */
+    public static double fUpper(int df1, int df2, double alpha) {
+        return quantile(Distribution.F, df1, df2, 1 - alpha);
+    }
+
+    /**
+     * @return
+     *          x such that P(X &lt; x) = alpha, where X follows a chi-squared distribution with df degrees of freedom.
+     */
+    public static double chiSquaredLower(int df, double alpha) {
+        return quantile(Distribution.CHI_SQUARED, df, 0, alpha);
+    }
+
+    /**
+     * @return
+     *          x such that P(X &gt; x) = alpha, where X follows a chi-squared distribution with df degrees of freedom.
+     */
+    public static double chiSquaredUpper(int df, double alpha) {
+        return quantile(Distribution.CHI_SQUARED, df, 0, 1 - alpha);
+    }
+
+    static void checkSignificance(double alpha) {
+        if(!(alpha > 0 && alpha < 1))
+            throw new IllegalArgumentException("Significance level must be between 0.0 and 1.0, exclusive.");
+    }
+
+    private static double quantile(Distribution distribution, int df1, int df2, double p) {
+        Key key = new Key(distribution, df1, df2, p);
+        Double value = cache.get(key);
+        if(value == null) {
+            value = compute(key);
+            cache.putIfAbsent(key, value);
+        }
+        return value;
+    }
+
+    private static double compute(Key key) {
+        switch (key.distribution) {
+            case F:
+                return new FDistribution(key.df1, key.df2).inverseCumulativeProbability(key.p);
+            case CHI_SQUARED:
+                return new ChiSquaredDistribution(key.df1).inverseCumulativeProbability(key.p);
+        }
+        throw new IllegalArgumentException("Unknown distribution " + key.distribution);
+    }
+
+    @EqualsAndHashCode
+    @RequiredArgsConstructor
+    private static final class Key {
+        private final Distribution distribution;
+        private final int df1;
+        private final int df2;
+        private final double p;
+    }
+}
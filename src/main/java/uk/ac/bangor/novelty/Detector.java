@@ -1,13 +1,22 @@
 package uk.ac.bangor.novelty;
 
+import uk.ac.bangor.novelty.util.Snapshottable;
+import uk.ac.bangor.novelty.windowing.SharedWindowStatistics;
+
+import java.nio.ByteBuffer;
+
 /**
  * The basic abstraction for an online novelty detector. The expectation is that a detector will handle it's own
  * windowing scheme, and will be updated with examples from the stream. If the detector has not yet seen enough examples
  * to draw conclusions, it should return false from {@link #isChangeDetected()}.
+ *
+ * A detector's state can be forked with {@link #copy()}, and, if it {@link #supportsSnapshots() supports them}, written
+ * to a binary snapshot (see {@link Snapshottable}) to be read back into a detector of the same configuration, for
+ * example in another process.
  * @param <T>
  *              The stream example type.
  */
-public interface Detector<T> {
+public interface Detector<T> extends Snapshottable {
 
     /**
      * Update this detector with the next example from the stream.
@@ -23,4 +32,111 @@ public interface Detector<T> {
      */
     boolean isChangeDetected();
 
+    /**
+     * Take in the next example from the stream without testing it for change, for a caller which only needs decisions
+     * from time to time, such as a cascade of detectors. The decision about the last tested example is left as it was,
+     * and the next {@link #update(Object)} tests as if every example had been given to it.
+     *
+     * The default implementation simply updates. Detectors whose test costs much more than windowing an example
+     * should override it to skip the test.
+     * @param example
+     *          The next example from the stream.
+     */
+    default void observe(T example) {
+        update(example);
+    }
+
+    /**
+     * Return this detector to the state it was in before it saw any examples, keeping its configuration, so that it can
+     * be used again after a detection instead of being replaced. Buffers, clusterers and cached critical values are
+     * kept for reuse.
+     *
+     * The default implementation throws UnsupportedOperationException, for detectors which can only be replaced.
+     */
+    default void reset() {
+        throw new UnsupportedOperationException(getClass().getName() + " cannot be reset.");
+    }
+
+    /**
+     * Make this detector ready to test again after a detection, keeping the newest examples it holds as the reference
+     * for the next test where it can. A detector on a window pair promotes the contents of W2, which were seen after the
+     * change, towards W1, so it is ready again in |W1| fewer examples than after {@link #reset()}.
+     *
+     * The default implementation resets, which is all a detector without windows can do.
+     */
+    default void rearm() {
+        reset();
+    }
+
+    /**
+     * A detector with the same configuration and state as this one, sharing no mutable state with it, so that the two
+     * can be updated independently from now on, on different threads if need be.
+     */
+    Detector<T> copy();
+
+    /**
+     * A copy of this detector for an ensemble which is being copied along with the window statistics its members share
+     * (see {@link uk.ac.bangor.novelty.ensemble.MultivariateRealEnsemble#setSharedStatistics(SharedWindowStatistics)}).
+     * A detector which reads its windows from the statistics must read the copy from the same features.
+     *
+     * The default implementation is {@link #copy()}, for detectors which keep their own windows.
+     * @param statistics
+     *          The copy of the shared statistics.
+     */
+    default Detector<T> copy(SharedWindowStatistics statistics) {
+        return copy();
+    }
+
+    /**
+     * A rough estimate of the heap this detector occupies, including its windows and any state carried between tests,
+     * for deciding which detectors to keep in memory. It grows as the windows fill.
+     *
+     * The default is 0, for a detector which cannot tell, such as an adapter over another library's detector.
+     * @return
+     *          The estimated size in bytes.
+     */
+    default long estimatedFootprintBytes() {
+        return 0;
+    }
+
+    /**
+     * Whether this detector implements the {@link Snapshottable} methods. A caller must check this before taking or
+     * reading a snapshot.
+     *
+     * The default is false, and the snapshot methods then throw UnsupportedOperationException.
+     * @return
+     *          True if the detector can be written to a snapshot and read back from one.
+     */
+    default boolean supportsSnapshots() {
+        return false;
+    }
+
+    @Override
+    default int snapshotSize() {
+        throw new UnsupportedOperationException(getClass().getName() + " does not support snapshots.");
+    }
+
+    @Override
+    default void writeSnapshot(ByteBuffer buffer) {
+        throw new UnsupportedOperationException(getClass().getName() + " does not support snapshots.");
+    }
+
+    @Override
+    default void readSnapshot(ByteBuffer buffer) {
+        throw new UnsupportedOperationException(getClass().getName() + " does not support snapshots.");
+    }
+
+    /**
+     * Whether this detector may keep a reference to an example passed to {@link #update(Object)} after the call
+     * returns. A caller may only reuse the example's storage for the next example if this is false.
+     *
+     * The default is true, which is always safe. Detectors which copy what they need out of each example should
+     * override this to return false.
+     * @return
+     *          True if the detector may hold on to examples.
+     */
+    default boolean retainsExample() {
+        return true;
+    }
+
 }
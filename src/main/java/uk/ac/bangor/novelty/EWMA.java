@@ -1,10 +1,19 @@
 package uk.ac.bangor.novelty;
 
+import uk.ac.bangor.novelty.util.Footprints;
+import uk.ac.bangor.novelty.util.Snapshots;
+
+import java.nio.ByteBuffer;
+
 /**
  * Created by wfaithfull on 06/09/16.
  */
 public class EWMA implements UnivariateRealDetector {
 
+    private static final int SNAPSHOT_VERSION = 1;
+
+    // The statistics as given, copied again on reset.
+    private final StatsProvider initialStats;
     private StatsProvider stats;
     private static final int MINIMUM_SAMPLES = 10;
     private int samples;
@@ -16,33 +25,104 @@ public class EWMA implements UnivariateRealDetector {
     }
 
     public EWMA(double lambda, StatsProvider stats) {
+        this(lambda, stats.copy(), stats);
+    }
+
+    private EWMA(double lambda, StatsProvider initialStats, StatsProvider stats) {
         this.lambda = lambda;
+        this.initialStats = initialStats;
         this.stats = stats;
     }
 
     @Override
-    public void update(Double input) {
+    public void update(double input) {
+        this.change = step(input);
+    }
+
+    @Override
+    public int updateBatch(double[] values, int from, int to, boolean[] decisions) {
+        for(int i=from;i<to;i++) {
+            boolean detected = step(values[i]);
+            if(decisions != null)
+                decisions[i] = detected;
+            if(detected) {
+                this.change = true;
+                return i;
+            }
+        }
+        if(to > from)
+            this.change = false;
+        return -1;
+    }
+
+    private boolean step(double input) {
         stats.update(input);
         samples++;
 
-        if(samples < MINIMUM_SAMPLES) {
-            this.change = false;
-        } else {
-            double statistic = lambda * input + (1-lambda) * stats.mean();
-            double mean = stats.mean();
-            double std = stats.std();
+        if(samples < MINIMUM_SAMPLES)
+            return false;
 
-            double limit = std * Math.sqrt((lambda/(2-lambda)) * (1-Math.pow((1-lambda),2*samples)));
+        double statistic = lambda * input + (1-lambda) * stats.mean();
+        double mean = stats.mean();
+        double std = stats.std();
 
-            double lcl = mean - limit;
-            double ucl = mean + limit;
+        double limit = std * Math.sqrt((lambda/(2-lambda)) * (1-Math.pow((1-lambda),2*samples)));
 
-            this.change = statistic <= lcl || statistic >= ucl;
-        }
+        double lcl = mean - limit;
+        double ucl = mean + limit;
+
+        return statistic <= lcl || statistic >= ucl;
     }
 
     @Override
     public boolean isChangeDetected() {
         return this.change;
     }
+
+    @Override
+    public void reset() {
+        stats = initialStats.copy();
+        samples = 0;
+        change = false;
+    }
+
+    @Override
+    public EWMA copy() {
+        EWMA copy = new EWMA(lambda, initialStats, stats.copy());
+        copy.samples = samples;
+        copy.change = change;
+        return copy;
+    }
+
+    @Override
+    public long estimatedFootprintBytes() {
+        return Footprints.object(getClass()) + initialStats.estimatedFootprintBytes()
+                + stats.estimatedFootprintBytes();
+    }
+
+    @Override
+    public boolean supportsSnapshots() {
+        return true;
+    }
+
+    @Override
+    public int snapshotSize() {
+        return Snapshots.HEADER_BYTES + stats.snapshotSize() + Integer.BYTES + 1;
+    }
+
+    @Override
+    public void writeSnapshot(ByteBuffer buffer) {
+        Snapshots.writeHeader(buffer, this, SNAPSHOT_VERSION);
+        stats.writeSnapshot(buffer);
+        buffer.putInt(samples);
+        Snapshots.putBoolean(buffer, change);
+    }
+
+    @Override
+    public void readSnapshot(ByteBuffer buffer) {
+        Snapshots.readHeader(buffer, this, SNAPSHOT_VERSION);
+        stats.readSnapshot(buffer);
+        samples = buffer.getInt();
+        change = Snapshots.getBoolean(buffer);
+    }
 }
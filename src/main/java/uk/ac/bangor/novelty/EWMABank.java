@@ -0,0 +1,69 @@
+package uk.ac.bangor.novelty;
+
+import java.util.Arrays;
+
+/**
+ * A bank of {@link EWMA} charts, one per feature.
+ */
+public class EWMABank extends AbstractControlChartBank {
+
+    private static final int MINIMUM_SAMPLES = 10;
+
+    private final double lambda;
+
+    // Running mean and sum of squared deviations, as OnlineStatistics, per feature.
+    private final double[] mu;
+    private final double[] sq;
+
+    public EWMABank(int features, double quorum, double lambda) {
+        super(features, quorum);
+        this.lambda = lambda;
+        this.mu = new double[features];
+        this.sq = new double[features];
+    }
+
+    @Override
+    protected long step(double[] example, int from, int to) {
+        long n = samples;
+        for(int i=from;i<to;i++) {
+            double x = example[i];
+            double muNew = mu[i] + (x-mu[i])/n;
+            sq[i] += (x-mu[i])*(x-muNew);
+            mu[i] = muNew;
+        }
+
+        if(n < MINIMUM_SAMPLES)
+            return 0;
+
+        // The width of the limits, relative to the standard deviation, is the same for every feature.
+        double width = Math.sqrt((lambda/(2-lambda)) * (1-Math.pow((1-lambda),2*n)));
+
+        long bits = 0;
+        for(int i=from;i<to;i++) {
+            double mean = mu[i];
+            double statistic = lambda * example[i] + (1-lambda) * mean;
+            double limit = Math.sqrt(n > 1 ? sq[i]/n : 0.0) * width;
+
+            if(statistic <= mean - limit || statistic >= mean + limit)
+                bits |= 1L << (i - from);
+        }
+        return bits;
+    }
+
+    @Override
+    protected double[][] getChartState() {
+        return new double[][] { mu, sq };
+    }
+
+    @Override
+    public EWMABank copy() {
+        return copyStateTo(new EWMABank(features, getQuorum(), lambda));
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        Arrays.fill(mu, 0);
+        Arrays.fill(sq, 0);
+    }
+}
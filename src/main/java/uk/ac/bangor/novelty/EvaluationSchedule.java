@@ -0,0 +1,89 @@
+package uk.ac.bangor.novelty;
+
+import uk.ac.bangor.novelty.util.Footprints;
+import uk.ac.bangor.novelty.util.Snapshots;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decides on which samples a window-pair detector tests its windows, once they are full: every k-th sample, starting
+ * with the first, and the next sample after a test is requested out of turn.
+ */
+final class EvaluationSchedule {
+
+    static final int SNAPSHOT_BYTES = Integer.BYTES + 1;
+
+    private int stride = 1;
+    private int untilDue;
+    private boolean requested;
+
+    /**
+     * @param stride
+     *          The number of samples between tests, at least 1. The windows are still updated with every sample.
+     */
+    void setStride(int stride) {
+        if(stride < 1)
+            throw new IllegalArgumentException("Evaluation stride must be at least 1.");
+        this.stride = stride;
+        this.untilDue = Math.min(untilDue, stride - 1);
+    }
+
+    int getStride() {
+        return stride;
+    }
+
+    /**
+     * Test on the next sample, if the windows are full by then, whatever the stride. For a cheap trigger, such as a
+     * univariate detector on the same stream, to call when it fires.
+     */
+    void request() {
+        requested = true;
+    }
+
+    /**
+     * @return
+     *          True if the test is due on this sample, counting it towards the stride.
+     */
+    boolean due() {
+        if(untilDue > 0 && !requested) {
+            untilDue--;
+            return false;
+        }
+        untilDue = stride - 1;
+        requested = false;
+        return true;
+    }
+
+    /**
+     * Test on the next sample, as for the first.
+     */
+    void reset() {
+        untilDue = 0;
+        requested = false;
+    }
+
+    EvaluationSchedule copy() {
+        EvaluationSchedule copy = new EvaluationSchedule();
+        copy.stride = stride;
+        copy.untilDue = untilDue;
+        copy.requested = requested;
+        return copy;
+    }
+
+    long estimatedFootprintBytes() {
+        return Footprints.object(getClass());
+    }
+
+    /**
+     * The stride is configuration, and is not included.
+     */
+    void writeSnapshot(ByteBuffer buffer) {
+        buffer.putInt(untilDue);
+        Snapshots.putBoolean(buffer, requested);
+    }
+
+    void readSnapshot(ByteBuffer buffer) {
+        untilDue = buffer.getInt();
+        requested = Snapshots.getBoolean(buffer);
+    }
+}
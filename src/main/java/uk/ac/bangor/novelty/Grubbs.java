@@ -1,32 +1,38 @@
 package uk.ac.bangor.novelty;
 
-import uk.ac.bangor.novelty.windowing.FixedWindow;
-import uk.ac.bangor.novelty.windowing.Window;
-import org.apache.commons.lang3.ArrayUtils;
-import org.apache.commons.math3.stat.StatUtils;
+import uk.ac.bangor.novelty.util.Footprints;
+import uk.ac.bangor.novelty.util.Snapshots;
+
+import java.nio.ByteBuffer;
 
 /**
  * Created by wfaithfull on 06/09/16.
  */
 public class Grubbs implements UnivariateRealDetector {
 
+    private static final int SNAPSHOT_VERSION = 1;
+
     private boolean change;
-    private Window<Double> window;
+    private WindowedStatistics window;
     private final int sigmaThreshold;
 
     public Grubbs(int windowSize, int sigmaThreshold) {
-        this.window = new FixedWindow<>(windowSize, Double.class);
+        this(new WindowedStatistics(windowSize), sigmaThreshold);
+    }
+
+    private Grubbs(WindowedStatistics window, int sigmaThreshold) {
+        this.window = window;
         this.sigmaThreshold = sigmaThreshold;
     }
 
-    public void update(Double input) {
+    public void update(double input) {
         window.update(input);
 
-        if(window.size() != window.capacity())
+        if(!window.isFull())
             return;
 
-        double mu = StatUtils.mean(ArrayUtils.toPrimitive(window.getElements()));
-        double sigma = Math.sqrt(StatUtils.variance(ArrayUtils.toPrimitive(window.getElements())));
+        double mu = window.mean();
+        double sigma = window.std();
 
         double ucl = mu + (sigma*sigmaThreshold);
         double lcl = mu - (sigma*sigmaThreshold);
@@ -37,4 +43,46 @@ public class Grubbs implements UnivariateRealDetector {
     public boolean isChangeDetected() {
         return change;
     }
+
+    @Override
+    public void reset() {
+        window.reset();
+        change = false;
+    }
+
+    @Override
+    public Grubbs copy() {
+        Grubbs copy = new Grubbs(window.copy(), sigmaThreshold);
+        copy.change = change;
+        return copy;
+    }
+
+    @Override
+    public long estimatedFootprintBytes() {
+        return Footprints.object(getClass()) + window.estimatedFootprintBytes();
+    }
+
+    @Override
+    public boolean supportsSnapshots() {
+        return true;
+    }
+
+    @Override
+    public int snapshotSize() {
+        return Snapshots.HEADER_BYTES + window.snapshotSize() + 1;
+    }
+
+    @Override
+    public void writeSnapshot(ByteBuffer buffer) {
+        Snapshots.writeHeader(buffer, this, SNAPSHOT_VERSION);
+        window.writeSnapshot(buffer);
+        Snapshots.putBoolean(buffer, change);
+    }
+
+    @Override
+    public void readSnapshot(ByteBuffer buffer) {
+        Snapshots.readHeader(buffer, this, SNAPSHOT_VERSION);
+        window.readSnapshot(buffer);
+        change = Snapshots.getBoolean(buffer);
+    }
 }
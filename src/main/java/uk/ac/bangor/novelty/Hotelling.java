@@ -1,94 +1,578 @@
 package uk.ac.bangor.novelty;
 
-import uk.ac.bangor.novelty.util.CollectionUtils;
+import uk.ac.bangor.novelty.linalg.Cholesky;
+import uk.ac.bangor.novelty.linalg.LinearAlgebra;
+import uk.ac.bangor.novelty.util.Footprints;
+import uk.ac.bangor.novelty.util.Snapshots;
 import uk.ac.bangor.novelty.windowing.FixedWindowPair;
+import uk.ac.bangor.novelty.windowing.FlatWindowPair;
+import uk.ac.bangor.novelty.windowing.SharedWindowStatistics;
+import lombok.Getter;
 import org.apache.commons.math3.distribution.FDistribution;
-import org.apache.commons.math3.linear.MatrixUtils;
-import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.linear.SingularValueDecomposition;
-import org.apache.commons.math3.stat.correlation.Covariance;
+
+import java.nio.ByteBuffer;
 
 /**
+ * Hotelling's T-squared test between the two windows of a window pair.
+ *
+ * By default, the window means, pooled covariance and its inverse are recomputed from the windows for every sample,
+ * which costs O(m.d^2 + d^3) for windows of m observations in d dimensions. In incremental mode (see
+ * {@link #setIncremental(boolean)}) they are instead carried from one sample to the next. Each sample moves one
+ * observation from W2 to W1 and evicts one from W1, so the window sums and the pooled covariance change by a handful of
+ * rank-one terms, and the inverse is kept up to date with a Sherman-Morrison update for each, at O(d^2) per sample.
+ * Everything is recomputed from the windows every {@link #getRefreshInterval()} samples, or sooner if an update turns
+ * out to be numerically unsafe, which bounds the accumulated rounding error. The conditioning of the pooled covariance,
+ * which decides whether it is regularised to its diagonal, is only re-assessed on those full recomputations.
+ *
+ * The pooled covariance is factorised by Cholesky decomposition, and its conditioning estimated from the factor. A
+ * covariance which is not numerically positive definite is regularised, as is one whose estimated condition number
+ * exceeds the limit. Outside incremental mode the inverse is never formed, and the statistic is found by solving
+ * against the factor.
+ *
+ * With an evaluation stride of k (see {@link #setEvaluationStride(int)}), the windows are updated with every sample, but
+ * the test is only performed on every k-th sample once both windows are full, starting with the first, or on the next
+ * sample after {@link #requestEvaluation()}. {@link #isChangeDetected()} is false on the samples in between: a
+ * detection is reported once, on the sample whose test found it.
+ *
+ * A detector constructed on a {@link SharedWindowStatistics.Subspace} keeps no windows of its own. It reads the window
+ * means and pooled covariance of its features from statistics shared with other detectors, which are already carried
+ * incrementally, so incremental mode does not apply.
+ *
+ * {@link #reset()} empties the windows and {@link #rearm()} keeps W2 as the start of the next reference, both keeping
+ * the buffers and the cached critical value. On shared statistics the windows belong to the statistics, which the
+ * ensemble holding them resets or re-arms itself.
+ *
+ * {@link #copy()} duplicates the windows and any carried statistics, so the copy decides exactly as this detector
+ * would. A snapshot holds the windows and the outcome of the last test, and the carried statistics are recomputed from
+ * the windows after it is read back. A detector on shared statistics is copied (see
+ * {@link #copy(SharedWindowStatistics)}), and its snapshot read, along with the statistics by the ensemble which holds
+ * them.
+ *
  * @author Will Faithfull
  */
 public class Hotelling implements MultivariateRealDetector {
 
     private static final int MAX_CONDITION = 10000;
-    private FixedWindowPair<double[]> windowPair;
+    private static final double MIN_VARIANCE = 0.000001;
+    private static final int DEFAULT_REFRESH_INTERVAL = 1000;
+    private static final double MIN_DENOMINATOR = 1e-8;
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private FlatWindowPair windowPair;
+    private SharedWindowStatistics.Subspace subspace;
     private FDistribution fDistribution;
     private boolean change;
 
+    @Getter
+    private double significance = 0.05;
+    private double criticalValue = Double.NaN;
+    private int df1;
+    private int df2;
+
+    /**
+     * The T-squared statistic of the last test, or NaN if no test has been performed yet.
+     */
+    @Getter
+    private double statistic = Double.NaN;
+
+    @Getter
+    private boolean incremental = false;
+    @Getter
+    private int refreshInterval = DEFAULT_REFRESH_INTERVAL;
+
+    private EvaluationSchedule evaluation = new EvaluationSchedule();
+
+    private int d;
+    private double[] meanW1;
+    private double[] meanW2;
+
+    // Pooled covariance and its factor and, in incremental mode, unless it had to be regularised, its inverse.
+    // All d x d, row-major.
+    private double[] pooled;
+    private Cholesky cholesky;
+    private double[] inverse;
+    private boolean regularised;
+
+    // Incremental state: window sums about an anchor near the data, and scratch vectors.
+    private double[] anchor;
+    private double[] sumW1;
+    private double[] sumW2;
+    private double[] evicted;
+    private double[] u;
+    private double[] z;
+    private boolean stale = true;
+    private int sinceRefresh;
+
+    /**
+     * Construct a Hotelling detector with windows of the same sizes as the given pair.
+     * @param windowPair
+     *          Only the window capacities are used.
+     */
     public Hotelling(FixedWindowPair<double[]> windowPair) {
+        this(new FlatWindowPair(windowPair.getWindow1().capacity(), windowPair.getWindow2().capacity()));
+    }
+
+    public Hotelling(FlatWindowPair windowPair) {
         this.windowPair = windowPair;
     }
 
+    /**
+     * Construct a Hotelling detector on a subspace of shared window statistics. The statistics must be updated with
+     * each full example before this detector is updated, as
+     * {@link uk.ac.bangor.novelty.ensemble.MultivariateRealEnsemble#setSharedStatistics(SharedWindowStatistics)} does,
+     * and the example given to this detector is then ignored.
+     */
+    public Hotelling(SharedWindowStatistics.Subspace subspace) {
+        this.subspace = subspace;
+        this.windowPair = subspace.getStatistics().getWindowPair();
+    }
+
+    /**
+     * @param incremental
+     *          True to carry the window statistics and inverse covariance between samples, rather than recomputing
+     *          them from the windows for every sample.
+     */
+    public void setIncremental(boolean incremental) {
+        if(subspace != null && incremental)
+            throw new IllegalStateException("Shared window statistics are already incremental.");
+        this.incremental = incremental;
+        this.stale = true;
+    }
+
+    /**
+     * @param refreshInterval
+     *          In incremental mode, the number of samples between full recomputations of the window statistics.
+     */
+    public void setRefreshInterval(int refreshInterval) {
+        if(refreshInterval < 1)
+            throw new IllegalArgumentException("Refresh interval must be at least 1.");
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * @param evaluationStride
+     *          The number of samples between tests, 1 by default.
+     */
+    public void setEvaluationStride(int evaluationStride) {
+        evaluation.setStride(evaluationStride);
+    }
+
+    public int getEvaluationStride() {
+        return evaluation.getStride();
+    }
+
+    /**
+     * Test on the next sample, whatever the stride.
+     */
+    public void requestEvaluation() {
+        evaluation.request();
+    }
+
     @Override
     public void update(double[] input) {
+        if(slide(input))
+            this.change = evaluation.due() && evaluate();
+    }
 
-        windowPair.update(input);
+    @Override
+    public int updateBatch(double[][] rows, int from, int to, boolean[] decisions) {
+        for(int i=from;i<to;i++) {
+            // Until both windows are full there is nothing to test.
+            boolean detected = slide(rows[i]) && evaluation.due() && evaluate();
+            if(decisions != null)
+                decisions[i] = detected;
+            if(detected) {
+                this.change = true;
+                return i;
+            }
+        }
+        if(to > from)
+            this.change = false;
+        return -1;
+    }
+
+    @Override
+    public boolean isChangeDetected() {
+        return change;
+    }
 
-        if(windowPair.size() != windowPair.capacity())
+    /**
+     * Windows the input without testing it. In incremental mode the carried statistics are dropped, to be recomputed
+     * from the windows on the next update. On shared statistics there is nothing to do.
+     */
+    @Override
+    public void observe(double[] input) {
+        if(subspace != null)
             return;
+        windowPair.update(input);
+        stale = true;
+    }
 
-        double[][] w1 = windowPair.getWindow1().getElements();
-        double[][] w2 = windowPair.getWindow2().getElements();
+    @Override
+    public void reset() {
+        if(subspace == null)
+            windowPair.clear();
+        clearTest();
+    }
 
-        double m1 = w1.length;
-        double m2 = w2.length;
-        double n = w1[0].length;
+    @Override
+    public void rearm() {
+        if(subspace == null)
+            windowPair.clearWindow1();
+        clearTest();
+    }
 
-        RealMatrix covW1 = new Covariance(w1).getCovarianceMatrix().scalarMultiply(m1);
-        RealMatrix covW2 = new Covariance(w2).getCovarianceMatrix().scalarMultiply(m2);
+    /**
+     * Forget the outcome of the last test and any carried statistics, which no longer describe the windows.
+     */
+    private void clearTest() {
+        change = false;
+        statistic = Double.NaN;
+        evaluation.reset();
+        stale = true;
+        sinceRefresh = 0;
+    }
 
-        RealMatrix pooledCovariance = covW1.add(covW2).scalarMultiply(1/(m1 + m2 - 2));
-        double tsq = (m1+m2-n-1)*m1*m2 / ((m1+m2)*n*(m1+m2-n-1));
+    @Override
+    public Hotelling copy() {
+        if(subspace != null)
+            throw new IllegalStateException("A detector on shared statistics must be copied along with them.");
+        return copyTo(new Hotelling(windowPair.copy()));
+    }
 
-        RealMatrix meanW1 = MatrixUtils.createRowRealMatrix(CollectionUtils.colMean(w1));
-        RealMatrix meanW2 = MatrixUtils.createRowRealMatrix(CollectionUtils.colMean(w2));
+    /**
+     * A detector on shared statistics reads the same subspace of the copied statistics. One with its own windows is
+     * copied as by {@link #copy()}.
+     */
+    @Override
+    public Hotelling copy(SharedWindowStatistics statistics) {
+        if(subspace == null)
+            return copy();
+        return copyTo(new Hotelling(statistics.subspace(subspace.getFeatures())));
+    }
 
-        SingularValueDecomposition svd = new SingularValueDecomposition(pooledCovariance);
-        double[] diag = getDiagonal(pooledCovariance);
-        if(svd.getConditionNumber() > MAX_CONDITION) {
-            // Regularisation
-            pooledCovariance = MatrixUtils.createRealDiagonalMatrix(diag);
-            svd = new SingularValueDecomposition(pooledCovariance);
+    private Hotelling copyTo(Hotelling copy) {
+        copy.significance = significance;
+        copy.criticalValue = criticalValue;
+        copy.df1 = df1;
+        copy.df2 = df2;
+        copy.statistic = statistic;
+        copy.change = change;
+        copy.incremental = incremental;
+        copy.refreshInterval = refreshInterval;
+        copy.evaluation = evaluation.copy();
+        if(meanW1 != null) {
+            copy.allocate(d);
+            System.arraycopy(meanW1, 0, copy.meanW1, 0, d);
+            System.arraycopy(meanW2, 0, copy.meanW2, 0, d);
+            System.arraycopy(pooled, 0, copy.pooled, 0, d*d);
+            System.arraycopy(inverse, 0, copy.inverse, 0, d*d);
+            System.arraycopy(anchor, 0, copy.anchor, 0, d);
+            System.arraycopy(sumW1, 0, copy.sumW1, 0, d);
+            System.arraycopy(sumW2, 0, copy.sumW2, 0, d);
+            copy.regularised = regularised;
+            copy.stale = stale;
+            copy.sinceRefresh = sinceRefresh;
         }
+        return copy;
+    }
+
+    /**
+     * Detectors on shared statistics do not count the statistics, which their ensemble does.
+     */
+    @Override
+    public long estimatedFootprintBytes() {
+        long bytes = Footprints.object(getClass()) + evaluation.estimatedFootprintBytes()
+                + Footprints.of(meanW1) + Footprints.of(meanW2) + Footprints.of(pooled) + Footprints.of(inverse)
+                + Footprints.of(anchor) + Footprints.of(sumW1) + Footprints.of(sumW2) + Footprints.of(evicted)
+                + Footprints.of(u) + Footprints.of(z);
+        if(cholesky != null)
+            bytes += cholesky.estimatedFootprintBytes();
+        if(subspace == null)
+            bytes += windowPair.estimatedFootprintBytes();
+        return bytes;
+    }
+
+    @Override
+    public boolean supportsSnapshots() {
+        return true;
+    }
 
-        RealMatrix inverseCovariance;
-        if(CollectionUtils.min(diag) > 0.000001)
-            inverseCovariance = svd.getSolver().getInverse();
-        else
-            inverseCovariance = MatrixUtils.createRealIdentityMatrix((int)n);
+    @Override
+    public int snapshotSize() {
+        return Snapshots.HEADER_BYTES + 1 + (subspace == null ? windowPair.snapshotSize() : 0)
+                + Double.BYTES + 2 * Integer.BYTES + EvaluationSchedule.SNAPSHOT_BYTES + 1;
+    }
 
-        double dist = meanW1.multiply(inverseCovariance).multiply(meanW2.transpose()).getEntry(0,0);
+    @Override
+    public void writeSnapshot(ByteBuffer buffer) {
+        Snapshots.writeHeader(buffer, this, SNAPSHOT_VERSION);
+        Snapshots.putBoolean(buffer, subspace != null);
+        if(subspace == null)
+            windowPair.writeSnapshot(buffer);
+        buffer.putDouble(statistic);
+        buffer.putInt(df1);
+        buffer.putInt(df2);
+        evaluation.writeSnapshot(buffer);
+        Snapshots.putBoolean(buffer, change);
+    }
+
+    @Override
+    public void readSnapshot(ByteBuffer buffer) {
+        Snapshots.readHeader(buffer, this, SNAPSHOT_VERSION);
+        boolean shared = Snapshots.getBoolean(buffer);
+        if(shared != (subspace != null))
+            throw new IllegalArgumentException("Snapshot of a detector on " + (shared ? "shared statistics" : "its own windows"));
+        if(subspace == null)
+            windowPair.readSnapshot(buffer);
+        clearTest();
+        statistic = buffer.getDouble();
+        df1 = buffer.getInt();
+        df2 = buffer.getInt();
+        fDistribution = null;
+        evaluation.readSnapshot(buffer);
+        change = Snapshots.getBoolean(buffer);
+    }
+
+    /**
+     * Examples are copied into the window pair, so the caller may reuse them.
+     */
+    @Override
+    public boolean retainsExample() {
+        return false;
+    }
+
+    /**
+     * Update the window pair with the input and, in incremental mode, the window statistics.
+     * @return
+     *          True if both windows are full.
+     */
+    private boolean slide(double[] input) {
+        if(subspace != null)
+            return windowPair.size() == windowPair.capacity();
+
+        boolean wasFull = windowPair.size() == windowPair.capacity();
+        boolean carry = incremental && wasFull && !stale;
+        if(carry)
+            windowPair.getWindow1().copyRow(0, evicted);
+
+        windowPair.update(input);
+
+        if(carry)
+            slideStatistics();
+        return windowPair.size() == windowPair.capacity();
+    }
+
+    private boolean evaluate() {
+        if(!incremental || stale || sinceRefresh >= refreshInterval)
+            refresh();
+
+        double m1 = windowPair.getWindow1().size();
+        double m2 = windowPair.getWindow2().size();
+        int n = d;
+
+        double tsq = (m1+m2-n-1)*m1*m2 / ((m1+m2)*n*(m1+m2-n-1));
+
+        double minVariance = LinearAlgebra.minDiagonal(pooled, n);
+
+        double dist = 0;
+        if(!(minVariance > MIN_VARIANCE)) {
+            // Identity in place of the inverse covariance
+            for(int i=0;i<n;i++)
+                dist += meanW1[i] * meanW2[i];
+        } else if(regularised) {
+            for(int i=0;i<n;i++)
+                dist += meanW1[i] * meanW2[i] / pooled[i*n + i];
+        } else if(incremental) {
+            dist = LinearAlgebra.quadraticForm(inverse, n, meanW1, meanW2);
+        } else {
+            dist = cholesky.inverseBilinearForm(meanW1, meanW2);
+        }
 
         tsq = tsq * dist;
 
-        int df1 = (int)n;
-        int df2 = (int)(m1 + m2 - n - 1);
+        df1 = n;
+        df2 = (int)(m1 + m2 - n - 1);
+
+        // The degrees of freedom are fixed once the windows are full, so the critical value only needs finding once.
+        if(Double.isNaN(criticalValue))
+            criticalValue = CriticalValues.fUpper(df1, df2, significance);
 
+        this.statistic = tsq;
+        return tsq > criticalValue;
+    }
+
+    /**
+     * The p-value of the last test, computed on demand. The decision itself is made by comparing the statistic with a
+     * cached critical value, so this is only evaluated when asked for.
+     * @return
+     *          The probability of a T-squared statistic at least as large as the last, or NaN if no test has been
+     *          performed yet.
+     */
+    public double getPValue() {
+        if(Double.isNaN(statistic))
+            return Double.NaN;
         if(fDistribution == null)
             fDistribution = new FDistribution(df1, df2);
+        return 1-fDistribution.cumulativeProbability(statistic);
+    }
 
-        double pst = 1-fDistribution.cumulativeProbability(tsq);
+    /**
+     * @param significance
+     *          The significance level of the test, 0.05 by default.
+     */
+    public void setSignificance(double significance) {
+        CriticalValues.checkSignificance(significance);
+        this.significance = significance;
+        this.criticalValue = Double.NaN;
+    }
+
+    /**
+     * Recompute the window means, pooled covariance and its factorisation from the windows, and the inverse if it is
+     * going to be carried.
+     */
+    private void refresh() {
+        FlatWindowPair.View w1 = windowPair.getWindow1();
+        FlatWindowPair.View w2 = windowPair.getWindow2();
+
+        double m1 = w1.size();
+        double m2 = w2.size();
+
+        if(meanW1 == null)
+            allocate(subspace != null ? subspace.getDimensions() : windowPair.getDimensions());
+        int n = d;
+
+        if(subspace != null) {
+            subspace.meanW1(meanW1);
+            subspace.meanW2(meanW2);
+            subspace.pooledCovariance(pooled);
+        } else {
+            w1.colMean(meanW1);
+            w2.colMean(meanW2);
+
+            // (m1.C1 + m2.C2) / (m1+m2-2), for bias corrected window covariances Ci, accumulated in one pass.
+            LinearAlgebra.fill(pooled, n*n, 0);
+            accumulateScatter(w1, meanW1, m1 / ((m1 - 1) * (m1 + m2 - 2)));
+            accumulateScatter(w2, meanW2, m2 / ((m2 - 1) * (m1 + m2 - 2)));
+            LinearAlgebra.symmetrise(pooled, n);
+        }
 
-        this.change = pst < 0.05;
+        // A covariance which cannot be factorised is singular, or as near as makes no difference: regularise it.
+        regularised = !cholesky.decompose(pooled) || cholesky.conditionEstimate(pooled) > MAX_CONDITION;
+        if(!regularised && incremental)
+            cholesky.inverse(inverse);
+
+        for(int i=0;i<n;i++) {
+            anchor[i] = (m1*meanW1[i] + m2*meanW2[i]) / (m1 + m2);
+            sumW1[i] = m1 * (meanW1[i] - anchor[i]);
+            sumW2[i] = m2 * (meanW2[i] - anchor[i]);
+        }
+
+        stale = false;
+        sinceRefresh = 0;
     }
 
-    @Override
-    public boolean isChangeDetected() {
-        return change;
+    private void accumulateScatter(FlatWindowPair.View window, double[] mean, double weight) {
+        double[] data = window.getData();
+        for(int r=0;r<window.size();r++)
+            LinearAlgebra.addCentredOuter(pooled, d, data, window.offset(r), mean, weight, u);
+    }
+
+    /**
+     * Carry the window statistics across one slide of the window pair: the evicted row left W1, the oldest row of W2
+     * moved into W1, and the input joined W2.
+     *
+     * With centred scatter matrices C1 = Q1 - S1.S1'/m1 for sums S1 and raw scatter Q1 (likewise for W2), the pooled
+     * covariance is k.(c1.C1 + c2.C2) with k = 1/(m1+m2-2) and ci = mi/(mi-1). Each term of the change is rank-one. The
+     * terms which add to the covariance are applied first, so that every intermediate matrix is at least as large as
+     * the final one, and stays invertible if the final one is.
+     */
+    private void slideStatistics() {
+        FlatWindowPair.View w1 = windowPair.getWindow1();
+        FlatWindowPair.View w2 = windowPair.getWindow2();
+        double[] data = windowPair.getData();
+        int promoted = w1.offset(w1.size() - 1);
+        int added = w2.offset(w2.size() - 1);
+
+        double m1 = w1.size();
+        double m2 = w2.size();
+        double k = 1 / (m1 + m2 - 2);
+        double c1 = m1 / (m1 - 1);
+        double c2 = m2 / (m2 - 1);
+
+        // The promoted row enters the W1 scatter and leaves the W2 scatter
+        double promotedWeight = k * (c1 - c2);
+        if(promotedWeight > 0)
+            rankOne(anchored(data, promoted), promotedWeight);
+        rankOne(anchored(data, added), k * c2);
+        rankOne(copy(sumW1), k * c1 / m1);
+        rankOne(copy(sumW2), k * c2 / m2);
+
+        for(int i=0;i<d;i++) {
+            double p = data[promoted + i] - anchor[i];
+            sumW1[i] += p - (evicted[i] - anchor[i]);
+            sumW2[i] += (data[added + i] - anchor[i]) - p;
+        }
+
+        if(promotedWeight < 0)
+            rankOne(anchored(data, promoted), promotedWeight);
+        rankOne(anchored(evicted, 0), -k * c1);
+        rankOne(copy(sumW1), -k * c1 / m1);
+        rankOne(copy(sumW2), -k * c2 / m2);
+
+        for(int i=0;i<d;i++) {
+            meanW1[i] = anchor[i] + sumW1[i] / m1;
+            meanW2[i] = anchor[i] + sumW2[i] / m2;
+        }
+
+        sinceRefresh++;
     }
 
-    private double[] getDiagonal(RealMatrix matrix) {
-        if(!matrix.isSquare())
-            throw new RuntimeException("Matrix must be square to retrieve diagonal.");
-        double[][] data = matrix.getData();
-        double[] diagonal = new double[data.length];
-        int col = 0;
-        for(int i=0;i<data.length;i++) {
-            diagonal[col] = data[i][col++];
+    /**
+     * Apply pooled += weight.u.u', and the matching Sherman-Morrison update to its inverse.
+     */
+    private void rankOne(double[] u, double weight) {
+        LinearAlgebra.addOuter(pooled, d, u, weight);
+
+        if(regularised || stale)
+            return;
+
+        LinearAlgebra.multiply(inverse, d, u, z);
+        double quad = LinearAlgebra.dot(u, z, d);
+
+        double denominator = 1 + weight * quad;
+        if(!(Math.abs(denominator) > MIN_DENOMINATOR)) {
+            // The update would be numerically meaningless, so recompute from the windows on the next evaluation.
+            stale = true;
+            return;
         }
-        return diagonal;
+
+        LinearAlgebra.addOuter(inverse, d, z, -weight / denominator);
+    }
+
+    private double[] anchored(double[] data, int offset) {
+        for(int i=0;i<d;i++)
+            u[i] = data[offset + i] - anchor[i];
+        return u;
+    }
+
+    private double[] copy(double[] vector) {
+        System.arraycopy(vector, 0, u, 0, d);
+        return u;
+    }
+
+    private void allocate(int dimensions) {
+        d = dimensions;
+        meanW1 = new double[d];
+        meanW2 = new double[d];
+        pooled = new double[d*d];
+        cholesky = new Cholesky(d);
+        inverse = new double[d*d];
+        anchor = new double[d];
+        sumW1 = new double[d];
+        sumW2 = new double[d];
+        evicted = new double[d];
+        u = new double[d];
+        z = new double[d];
     }
 }
@@ -1,10 +1,11 @@
 package uk.ac.bangor.novelty;
 
-
 import uk.ac.bangor.novelty.windowing.FixedWindowPair;
+import uk.ac.bangor.novelty.windowing.FlatWindowPair;
 import lombok.Getter;
 import org.apache.commons.math3.util.FastMath;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.ThreadLocalRandom;
 
 /**
@@ -19,6 +20,10 @@ public class KL extends AbstractKMeansQuantizingDetector {
         super(windowPair, K);
     }
 
+    public KL(FlatWindowPair windowPair, int K) {
+        super(windowPair, K);
+    }
+
     private double logK = Math.log(K);
     private static double eps = 0.00001;
 
@@ -38,6 +43,36 @@ public class KL extends AbstractKMeansQuantizingDetector {
         return st > -logK - (sumlogP1/K);
     }
 
+    @Override
+    protected void clearTest() {
+        super.clearTest();
+        statistic = 0;
+    }
+
+    @Override
+    public KL copy() {
+        KL copy = copyStateTo(new KL(windowPair.copy(), K));
+        copy.statistic = statistic;
+        return copy;
+    }
+
+    @Override
+    public int snapshotSize() {
+        return super.snapshotSize() + Double.BYTES;
+    }
+
+    @Override
+    public void writeSnapshot(ByteBuffer buffer) {
+        super.writeSnapshot(buffer);
+        buffer.putDouble(statistic);
+    }
+
+    @Override
+    public void readSnapshot(ByteBuffer buffer) {
+        super.readSnapshot(buffer);
+        statistic = buffer.getDouble();
+    }
+
     private static ThreadLocalRandom random = ThreadLocalRandom.current();
 
     private static void addEps(double[] input) {
@@ -1,27 +1,47 @@
 package uk.ac.bangor.novelty;
 
+import uk.ac.bangor.novelty.util.Footprints;
+import uk.ac.bangor.novelty.util.Snapshots;
+
+import java.nio.ByteBuffer;
+
 /**
  * Created by wfaithfull on 06/09/16.
  */
 public class MovingRange implements UnivariateRealDetector {
+
+    private static final int SNAPSHOT_VERSION = 1;
+
     private boolean started = false;
-    private StatsProvider statsMovingRange = new OnlineStatistics();
-    private StatsProvider statsIndividuals = new OnlineStatistics();
+    // The statistics as given, copied again on reset.
+    private final StatsProvider initialMovingRange;
+    private final StatsProvider initialIndividuals;
+    private StatsProvider statsMovingRange;
+    private StatsProvider statsIndividuals;
     private double lastObservation;
     private boolean change;
 
     private final double d2 = 3/ControlChartConstants.d2(2);
     private final double D4 = ControlChartConstants.D4(2);
 
-    public MovingRange() {}
+    public MovingRange() {
+        this(new OnlineStatistics(), new OnlineStatistics());
+    }
 
     public MovingRange(StatsProvider mrStats, StatsProvider individualsStats) {
+        this(mrStats.copy(), individualsStats.copy(), mrStats, individualsStats);
+    }
+
+    private MovingRange(StatsProvider initialMovingRange, StatsProvider initialIndividuals, StatsProvider mrStats,
+                        StatsProvider individualsStats) {
+        this.initialMovingRange = initialMovingRange;
+        this.initialIndividuals = initialIndividuals;
         this.statsMovingRange = mrStats;
         this.statsIndividuals = individualsStats;
     }
 
     @Override
-    public void update(Double input) {
+    public void update(double input) {
         double mr = movingRange(input);
         if(!started) {
             started = true;
@@ -49,4 +69,61 @@ public class MovingRange implements UnivariateRealDetector {
     public boolean isChangeDetected() {
         return this.change;
     }
+
+    @Override
+    public void reset() {
+        started = false;
+        statsMovingRange = initialMovingRange.copy();
+        statsIndividuals = initialIndividuals.copy();
+        lastObservation = 0;
+        change = false;
+    }
+
+    @Override
+    public MovingRange copy() {
+        MovingRange copy = new MovingRange(initialMovingRange, initialIndividuals, statsMovingRange.copy(),
+                statsIndividuals.copy());
+        copy.started = started;
+        copy.lastObservation = lastObservation;
+        copy.change = change;
+        return copy;
+    }
+
+    @Override
+    public long estimatedFootprintBytes() {
+        return Footprints.object(getClass()) + initialMovingRange.estimatedFootprintBytes()
+                + initialIndividuals.estimatedFootprintBytes() + statsMovingRange.estimatedFootprintBytes()
+                + statsIndividuals.estimatedFootprintBytes();
+    }
+
+    @Override
+    public boolean supportsSnapshots() {
+        return true;
+    }
+
+    @Override
+    public int snapshotSize() {
+        return Snapshots.HEADER_BYTES + statsMovingRange.snapshotSize() + statsIndividuals.snapshotSize()
+                + Double.BYTES + 2;
+    }
+
+    @Override
+    public void writeSnapshot(ByteBuffer buffer) {
+        Snapshots.writeHeader(buffer, this, SNAPSHOT_VERSION);
+        statsMovingRange.writeSnapshot(buffer);
+        statsIndividuals.writeSnapshot(buffer);
+        Snapshots.putBoolean(buffer, started);
+        buffer.putDouble(lastObservation);
+        Snapshots.putBoolean(buffer, change);
+    }
+
+    @Override
+    public void readSnapshot(ByteBuffer buffer) {
+        Snapshots.readHeader(buffer, this, SNAPSHOT_VERSION);
+        statsMovingRange.readSnapshot(buffer);
+        statsIndividuals.readSnapshot(buffer);
+        started = Snapshots.getBoolean(buffer);
+        lastObservation = buffer.getDouble();
+        change = Snapshots.getBoolean(buffer);
+    }
 }
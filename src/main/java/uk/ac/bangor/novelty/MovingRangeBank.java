@@ -0,0 +1,68 @@
+package uk.ac.bangor.novelty;
+
+import java.util.Arrays;
+
+/**
+ * A bank of {@link MovingRange} charts, one per feature.
+ */
+public class MovingRangeBank extends AbstractControlChartBank {
+
+    private final double d2 = 3/ControlChartConstants.d2(2);
+    private final double D4 = ControlChartConstants.D4(2);
+
+    // Running means of the moving ranges and of the individuals, as OnlineStatistics, and the last observation, per
+    // feature. Only the means enter the limits.
+    private final double[] muRange;
+    private final double[] muIndividuals;
+    private final double[] lastObservation;
+
+    public MovingRangeBank(int features, double quorum) {
+        super(features, quorum);
+        this.muRange = new double[features];
+        this.muIndividuals = new double[features];
+        this.lastObservation = new double[features];
+    }
+
+    @Override
+    protected long step(double[] example, int from, int to) {
+        // As MovingRange, the first observation only starts the charts; it does not become the last observation.
+        if(samples == 1)
+            return 0;
+        long n = samples - 1;
+
+        long bits = 0;
+        for(int i=from;i<to;i++) {
+            double x = example[i];
+            double mr = Math.abs(x - lastObservation[i]);
+
+            muRange[i] += (mr-muRange[i])/n;
+            muIndividuals[i] += (x-muIndividuals[i])/n;
+
+            double uclMovingRange = muRange[i] * D4;
+            double ucl = muIndividuals[i] + d2 * muRange[i];
+            double lcl = muIndividuals[i] - d2 * muRange[i];
+            if(x >= ucl || x <= lcl || mr > uclMovingRange)
+                bits |= 1L << (i - from);
+            lastObservation[i] = x;
+        }
+        return bits;
+    }
+
+    @Override
+    protected double[][] getChartState() {
+        return new double[][] { muRange, muIndividuals, lastObservation };
+    }
+
+    @Override
+    public MovingRangeBank copy() {
+        return copyStateTo(new MovingRangeBank(features, getQuorum()));
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        Arrays.fill(muRange, 0);
+        Arrays.fill(muIndividuals, 0);
+        Arrays.fill(lastObservation, 0);
+    }
+}
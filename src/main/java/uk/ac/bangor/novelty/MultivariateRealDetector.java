@@ -4,4 +4,39 @@ package uk.ac.bangor.novelty;
  * @author Will Faithfull
  */
 public interface MultivariateRealDetector extends Detector<double[]> {
+
+    @Override
+    MultivariateRealDetector copy();
+
+    /**
+     * Update this detector with a block of examples, in order, stopping at the first example on which change is
+     * detected. This lets a driver hand over a whole block in one call, act on a detection (typically by starting a
+     * new detector) and then resume from the following row.
+     *
+     * The default implementation is equivalent to calling {@link #update(Object)} and {@link #isChangeDetected()} for
+     * each row. Implementations override it to process the block in a tighter loop.
+     * @param rows
+     *          The examples. Only rows[from] to rows[to - 1] are read.
+     * @param from
+     *          Index of the first row to process, inclusive.
+     * @param to
+     *          Index of the last row to process, exclusive.
+     * @param decisions
+     *          Optional, may be null. If supplied, decisions[i] receives the decision for rows[i] for every row that
+     *          was processed.
+     * @return
+     *          The index of the row on which change was detected, or -1 if every row was processed without detecting
+     *          change.
+     */
+    default int updateBatch(double[][] rows, int from, int to, boolean[] decisions) {
+        for(int i=from;i<to;i++) {
+            update(rows[i]);
+            boolean change = isChangeDetected();
+            if(decisions != null)
+                decisions[i] = change;
+            if(change)
+                return i;
+        }
+        return -1;
+    }
 }
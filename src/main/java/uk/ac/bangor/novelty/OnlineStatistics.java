@@ -1,10 +1,17 @@
 package uk.ac.bangor.novelty;
 
+import uk.ac.bangor.novelty.util.Footprints;
+import uk.ac.bangor.novelty.util.Snapshots;
+
+import java.nio.ByteBuffer;
+
 /**
  * Created by wfaithfull on 10/06/16.
  */
 public class OnlineStatistics implements StatsProvider {
 
+    private static final int SNAPSHOT_VERSION = 1;
+
     long n = 0;
     double mu = 0.0;
     double sq = 0.0;
@@ -24,4 +31,34 @@ public class OnlineStatistics implements StatsProvider {
         return n > 1 ? sq/n : 0.0;
     }
 
+    public OnlineStatistics copy() {
+        OnlineStatistics copy = new OnlineStatistics();
+        copy.n = n;
+        copy.mu = mu;
+        copy.sq = sq;
+        return copy;
+    }
+
+    public long estimatedFootprintBytes() {
+        return Footprints.object(getClass());
+    }
+
+    public int snapshotSize() {
+        return Snapshots.HEADER_BYTES + Long.BYTES + 2 * Double.BYTES;
+    }
+
+    public void writeSnapshot(ByteBuffer buffer) {
+        Snapshots.writeHeader(buffer, this, SNAPSHOT_VERSION);
+        buffer.putLong(n);
+        buffer.putDouble(mu);
+        buffer.putDouble(sq);
+    }
+
+    public void readSnapshot(ByteBuffer buffer) {
+        Snapshots.readHeader(buffer, this, SNAPSHOT_VERSION);
+        n = buffer.getLong();
+        mu = buffer.getDouble();
+        sq = buffer.getDouble();
+    }
+
 }
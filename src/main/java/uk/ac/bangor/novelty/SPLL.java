@@ -1,9 +1,13 @@
 package uk.ac.bangor.novelty;
 
 import uk.ac.bangor.novelty.windowing.FixedWindowPair;
+import uk.ac.bangor.novelty.windowing.FlatWindowPair;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.math3.distribution.ChiSquaredDistribution;
 
+import java.nio.ByteBuffer;
+
 /**
  * @author Will Faithfull
  */
@@ -12,34 +16,106 @@ public class SPLL extends AbstractKMeansQuantizingDetector {
 
     ChiSquaredDistribution cdf;
 
+    @Getter
+    private double significance = 0.05;
+    private double lowerCriticalValue = Double.NaN;
+    private double upperCriticalValue = Double.NaN;
+
+    /**
+     * The mean squared Mahalanobis distance from the W2 observations to their nearest cluster in the last test, or NaN
+     * if no test has been performed yet.
+     */
+    @Getter
+    private double statistic = Double.NaN;
+
     public SPLL(FixedWindowPair<double[]> windowPair, int K) {
         super(windowPair, K);
     }
 
+    public SPLL(FlatWindowPair windowPair, int K) {
+        super(windowPair, K);
+    }
+
     @Override
     protected boolean change(double[] p1, double[] p2) {
 
-        if(cdf == null) {
+        if(Double.isNaN(lowerCriticalValue)) {
             int df = getNFeatures();
 
             // If the data in W2 was generated by process P1, then the average of the squared mahalanobis distances
             // between the W2 observations and the cluster means should be distributed according to a chi-squared
-            // distribution with n degrees of freedom, where n is the dimensionality of the feature space.
-            cdf = new ChiSquaredDistribution(df);
+            // distribution with n degrees of freedom, where n is the dimensionality of the feature space. The test
+            // is two-tailed, so change is signalled when the average falls in either tail.
+            lowerCriticalValue = CriticalValues.chiSquaredLower(df, significance);
+            upperCriticalValue = CriticalValues.chiSquaredUpper(df, significance);
         }
 
-        double[] distances = getMinClusterToObservationDistances();
-        double likelihoodTerm = 0;
-        for(int i=0;i<distances.length;i++) {
-            likelihoodTerm += distances[i];
-        }
-        likelihoodTerm = likelihoodTerm / distances.length;
+        double likelihoodTerm = getMeanMinClusterToObservationDistance();
+
+        this.statistic = likelihoodTerm;
+        return likelihoodTerm < lowerCriticalValue || likelihoodTerm > upperCriticalValue;
+    }
+
+    @Override
+    protected void clearTest() {
+        super.clearTest();
+        statistic = Double.NaN;
+    }
+
+    @Override
+    public SPLL copy() {
+        SPLL copy = copyStateTo(new SPLL(windowPair.copy(), K));
+        copy.significance = significance;
+        copy.lowerCriticalValue = lowerCriticalValue;
+        copy.upperCriticalValue = upperCriticalValue;
+        copy.statistic = statistic;
+        return copy;
+    }
 
-        double cumulativeProbability = cdf.cumulativeProbability(likelihoodTerm);
+    @Override
+    public int snapshotSize() {
+        return super.snapshotSize() + Double.BYTES;
+    }
+
+    @Override
+    public void writeSnapshot(ByteBuffer buffer) {
+        super.writeSnapshot(buffer);
+        buffer.putDouble(statistic);
+    }
+
+    @Override
+    public void readSnapshot(ByteBuffer buffer) {
+        super.readSnapshot(buffer);
+        statistic = buffer.getDouble();
+    }
+
+    /**
+     * The p-value of the last test, computed on demand. The decision itself is made by comparing the statistic with
+     * cached critical values, so this is only evaluated when asked for.
+     * @return
+     *          The probability, in the nearer tail, of a statistic at least as extreme as the last, or NaN if no test
+     *          has been performed yet.
+     */
+    public double getPValue() {
+        if(Double.isNaN(statistic))
+            return Double.NaN;
+        if(cdf == null)
+            cdf = new ChiSquaredDistribution(getNFeatures());
+
+        double cumulativeProbability = cdf.cumulativeProbability(statistic);
         if((1-cumulativeProbability) < cumulativeProbability)
             cumulativeProbability = 1-cumulativeProbability;
+        return cumulativeProbability;
+    }
 
-        return cumulativeProbability < 0.05;
+    /**
+     * @param significance
+     *          The significance level of each tail of the test, 0.05 by default.
+     */
+    public void setSignificance(double significance) {
+        CriticalValues.checkSignificance(significance);
+        this.significance = significance;
+        this.lowerCriticalValue = this.upperCriticalValue = Double.NaN;
     }
 
 }
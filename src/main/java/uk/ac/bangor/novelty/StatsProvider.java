@@ -1,9 +1,11 @@
 package uk.ac.bangor.novelty;
 
+import uk.ac.bangor.novelty.util.Snapshottable;
+
 /**
  * @author Will Faithfull
  */
-public interface StatsProvider {
+public interface StatsProvider extends Snapshottable {
 
     void update(double input);
 
@@ -11,6 +13,18 @@ public interface StatsProvider {
 
     double var();
 
+    /**
+     * @return
+     *          An independent provider with the same state.
+     */
+    StatsProvider copy();
+
+    /**
+     * @return
+     *          A rough estimate of the heap these statistics occupy, in bytes.
+     */
+    long estimatedFootprintBytes();
+
     default double std() {
         return Math.sqrt(var());
     }
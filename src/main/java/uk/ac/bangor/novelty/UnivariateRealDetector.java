@@ -1,7 +1,64 @@
 package uk.ac.bangor.novelty;
 
 /**
+ * A detector over a stream of real values.
+ *
+ * Implementations receive observations through the primitive {@link #update(double)}, so that callers holding a
+ * {@code double} (for example an ensemble picking a single feature out of a multivariate example) never box it. The
+ * boxed {@link #update(Double)} required by {@link Detector} is kept only as a bridge.
  * @author Will Faithfull
  */
 public interface UnivariateRealDetector extends Detector<Double> {
+
+    /**
+     * Update this detector with the next observation from the stream.
+     * @param example
+     *          The next observation from the stream.
+     */
+    void update(double example);
+
+    /**
+     * Bridge for callers holding a boxed observation. Delegates to {@link #update(double)}.
+     * @param example
+     *          The next observation from the stream.
+     */
+    @Override
+    default void update(Double example) {
+        update(example.doubleValue());
+    }
+
+    @Override
+    UnivariateRealDetector copy();
+
+    /**
+     * Update this detector with a block of observations, in order, stopping at the first observation on which change
+     * is detected.
+     *
+     * The default implementation is equivalent to calling {@link #update(double)} and {@link #isChangeDetected()} for
+     * each observation. Implementations override it to process the block in a tighter loop.
+     * @param values
+     *          The observations. Only values[from] to values[to - 1] are read.
+     * @param from
+     *          Index of the first observation to process, inclusive.
+     * @param to
+     *          Index of the last observation to process, exclusive.
+     * @param decisions
+     *          Optional, may be null. If supplied, decisions[i] receives the decision for values[i] for every
+     *          observation that was processed.
+     * @return
+     *          The index of the observation on which change was detected, or -1 if every observation was processed
+     *          without detecting change.
+     * @see MultivariateRealDetector#updateBatch(double[][], int, int, boolean[])
+     */
+    default int updateBatch(double[] values, int from, int to, boolean[] decisions) {
+        for(int i=from;i<to;i++) {
+            update(values[i]);
+            boolean change = isChangeDetected();
+            if(decisions != null)
+                decisions[i] = change;
+            if(change)
+                return i;
+        }
+        return -1;
+    }
 }
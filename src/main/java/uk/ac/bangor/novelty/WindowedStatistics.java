@@ -0,0 +1,197 @@
+package uk.ac.bangor.novelty;
+
+import uk.ac.bangor.novelty.util.Footprints;
+import uk.ac.bangor.novelty.util.Snapshots;
+import uk.ac.bangor.novelty.windowing.FixedDoubleWindow;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Mean and variance over a sliding window of the most recent observations, maintained in O(1) per update.
+ *
+ * Rather than scanning the window, this keeps running sums of the observations and of their squares, adding each new
+ * observation and subtracting the one it evicts. The sums are taken about an anchor close to the mean, to avoid the
+ * cancellation that makes the naive sum of squares formula unreliable, and are accumulated with compensated
+ * (Kahan-Neumaier) summation. Every so often the anchor is moved to the current mean and the sums are recomputed from
+ * the window, so rounding error cannot build up over a long stream.
+ */
+public class WindowedStatistics implements StatsProvider {
+
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private final FixedDoubleWindow window;
+    private final int reanchorInterval;
+
+    private double anchor;
+    private double sum;
+    private double sumCompensation;
+    private double sumSq;
+    private double sumSqCompensation;
+    private int sinceReanchor;
+
+    /**
+     * @param size
+     *          The number of most recent observations to summarise. The sums are recomputed once per window.
+     */
+    public WindowedStatistics(int size) {
+        this(size, size);
+    }
+
+    /**
+     * @param size
+     *          The number of most recent observations to summarise.
+     * @param reanchorInterval
+     *          The number of updates between full recomputations of the running sums. Each costs O(size).
+     */
+    public WindowedStatistics(int size, int reanchorInterval) {
+        if(reanchorInterval < 1)
+            throw new IllegalArgumentException("Re-anchor interval must be at least 1.");
+        this.window = new FixedDoubleWindow(size);
+        this.reanchorInterval = reanchorInterval;
+    }
+
+    private WindowedStatistics(FixedDoubleWindow window, int reanchorInterval) {
+        this.window = window;
+        this.reanchorInterval = reanchorInterval;
+    }
+
+    @Override
+    public void update(double input) {
+        if(window.size() == 0)
+            anchor = input;
+
+        if(window.size() == window.capacity()) {
+            double evicted = window.getOldestValue() - anchor;
+            addToSum(-evicted);
+            addToSumSq(-(evicted * evicted));
+        }
+
+        window.update(input);
+        double deviation = input - anchor;
+        addToSum(deviation);
+        addToSumSq(deviation * deviation);
+
+        if(++sinceReanchor >= reanchorInterval)
+            reanchor();
+    }
+
+    @Override
+    public double mean() {
+        int n = window.size();
+        return n == 0 ? 0.0 : anchor + total() / n;
+    }
+
+    /**
+     * @return
+     *          The bias corrected sample variance of the window, or 0 if it holds fewer than two observations.
+     */
+    @Override
+    public double var() {
+        int n = window.size();
+        if(n < 2)
+            return 0.0;
+        double total = total();
+        double var = ((sumSq + sumSqCompensation) - total * total / n) / (n - 1.0);
+        return var > 0 ? var : 0.0;
+    }
+
+    /**
+     * Forget every observation.
+     */
+    public void reset() {
+        window.clear();
+        anchor = sum = sumCompensation = sumSq = sumSqCompensation = 0;
+        sinceReanchor = 0;
+    }
+
+    @Override
+    public WindowedStatistics copy() {
+        WindowedStatistics copy = new WindowedStatistics(window.copy(), reanchorInterval);
+        copy.anchor = anchor;
+        copy.sum = sum;
+        copy.sumCompensation = sumCompensation;
+        copy.sumSq = sumSq;
+        copy.sumSqCompensation = sumSqCompensation;
+        copy.sinceReanchor = sinceReanchor;
+        return copy;
+    }
+
+    @Override
+    public long estimatedFootprintBytes() {
+        return Footprints.object(getClass()) + window.estimatedFootprintBytes();
+    }
+
+    @Override
+    public int snapshotSize() {
+        return Snapshots.HEADER_BYTES + window.snapshotSize() + 5 * Double.BYTES + Integer.BYTES;
+    }
+
+    @Override
+    public void writeSnapshot(ByteBuffer buffer) {
+        Snapshots.writeHeader(buffer, this, SNAPSHOT_VERSION);
+        window.writeSnapshot(buffer);
+        buffer.putDouble(anchor);
+        buffer.putDouble(sum);
+        buffer.putDouble(sumCompensation);
+        buffer.putDouble(sumSq);
+        buffer.putDouble(sumSqCompensation);
+        buffer.putInt(sinceReanchor);
+    }
+
+    @Override
+    public void readSnapshot(ByteBuffer buffer) {
+        Snapshots.readHeader(buffer, this, SNAPSHOT_VERSION);
+        window.readSnapshot(buffer);
+        anchor = buffer.getDouble();
+        sum = buffer.getDouble();
+        sumCompensation = buffer.getDouble();
+        sumSq = buffer.getDouble();
+        sumSqCompensation = buffer.getDouble();
+        sinceReanchor = buffer.getInt();
+    }
+
+    public boolean isFull() {
+        return window.size() == window.capacity();
+    }
+
+    public int size() {
+        return window.size();
+    }
+
+    public int capacity() {
+        return window.capacity();
+    }
+
+    private double total() {
+        return sum + sumCompensation;
+    }
+
+    private void reanchor() {
+        anchor = mean();
+        sum = sumCompensation = sumSq = sumSqCompensation = 0;
+        for(int i=0;i<window.size();i++) {
+            double deviation = window.get(i) - anchor;
+            addToSum(deviation);
+            addToSumSq(deviation * deviation);
+        }
+        sinceReanchor = 0;
+    }
+
+    private void addToSum(double value) {
+        double t = sum + value;
+        if(Math.abs(sum) >= Math.abs(value))
+            sumCompensation += (sum - t) + value;
+        else
+            sumCompensation += (value - t) + sum;
+        sum = t;
+    }
+
+    private void addToSumSq(double value) {
+        double t = sumSq + value;
+        if(Math.abs(sumSq) >= Math.abs(value))
+            sumSqCompensation += (sumSq - t) + value;
+        else
+            sumSqCompensation += (value - t) + sumSq;
+        sumSq = t;
+    }
+}
@@ -0,0 +1,268 @@
+package uk.ac.bangor.novelty.checkpoint;
+
+import uk.ac.bangor.novelty.MultivariateRealDetector;
+import uk.ac.bangor.novelty.util.Footprints;
+import lombok.Getter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A detector registered with a {@link Checkpointer}, which it updates and persists.
+ *
+ * An update hands the sample to the checkpointer's writer through a bounded ring, and every so many samples writes a
+ * snapshot of the detector into a buffer for the writer to pick up. Neither waits for the writer: if the ring is full,
+ * the sample is left out of the journal and a checkpoint is taken instead, and while the writer holds the snapshot
+ * buffer, a checkpoint which falls due is put off until it hands the buffer back, so at most one snapshot is taken for
+ * each one written. Apart from the snapshot, an update only copies the sample.
+ *
+ * Once the checkpointer is closed or its writer has failed, updates go to the detector alone.
+ *
+ * Like any detector, it must only be updated by one thread at a time.
+ */
+public class CheckpointedDetector implements MultivariateRealDetector {
+
+    /**
+     * A snapshot on its way from the updating thread to the writer.
+     */
+    static final class Capture {
+        byte[] bytes = new byte[0];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int length;
+        long sequence;
+    }
+
+    @Getter
+    private final String name;
+    final int id;
+    private final MultivariateRealDetector detector;
+    private final int checkpointInterval;
+
+    // The sequence number of the latest sample, counting from 0 for the first the detector ever saw.
+    @Getter
+    private long sequence;
+    private int untilCheckpoint;
+    private volatile boolean checkpointRequested;
+    // Set once nothing more will be written.
+    private volatile boolean detached;
+
+    // Samples for the journal, written by the updating thread at head and read by the writer at tail.
+    private final double[][] samples;
+    private final int[] lengths;
+    private final long[] sequences;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    // The snapshot buffer, which is either spare, pending for the writer, being written, or returned by it.
+    private Capture spare = new Capture();
+    private final AtomicReference<Capture> pending = new AtomicReference<>();
+    private final AtomicReference<Capture> returned = new AtomicReference<>();
+
+    // Written by the writer once the detector has an entry in the state file.
+    boolean persisted;
+
+    CheckpointedDetector(String name, int id, MultivariateRealDetector detector, long sequence,
+                         int checkpointInterval, int journalCapacity, boolean checkpointDue) {
+        this.name = name;
+        this.id = id;
+        this.detector = detector;
+        this.sequence = sequence;
+        this.checkpointInterval = checkpointInterval;
+        this.untilCheckpoint = checkpointDue ? 0 : checkpointInterval;
+        this.samples = new double[journalCapacity][];
+        this.lengths = new int[journalCapacity];
+        this.sequences = new long[journalCapacity];
+    }
+
+    @Override
+    public void update(double[] example) {
+        detector.update(example);
+        advance(example);
+    }
+
+    @Override
+    public void observe(double[] example) {
+        detector.observe(example);
+        advance(example);
+    }
+
+    @Override
+    public boolean isChangeDetected() {
+        return detector.isChangeDetected();
+    }
+
+    /**
+     * Resetting cannot be journaled, so the sample count moves on by one, which stops a restore replaying later samples
+     * onto the state from before the reset, and a checkpoint is taken as soon as possible.
+     */
+    @Override
+    public void reset() {
+        detector.reset();
+        skip();
+    }
+
+    @Override
+    public void rearm() {
+        detector.rearm();
+        skip();
+    }
+
+    /**
+     * @return
+     *          A copy of the detector, which is not registered.
+     */
+    @Override
+    public MultivariateRealDetector copy() {
+        return detector.copy();
+    }
+
+    /**
+     * Counts the detector, the samples waiting for the writer and the snapshot buffers.
+     */
+    @Override
+    public long estimatedFootprintBytes() {
+        long bytes = detector.estimatedFootprintBytes() + Footprints.object(getClass())
+                + Footprints.of(samples) + Footprints.of(lengths) + Footprints.of(sequences);
+        // The buffer changes hands concurrently, so count it at the size of the latest snapshot.
+        bytes += Footprints.object(Capture.class) + detector.snapshotSize();
+        return bytes;
+    }
+
+    /**
+     * Only detectors which support snapshots can be registered.
+     */
+    @Override
+    public boolean supportsSnapshots() {
+        return true;
+    }
+
+    @Override
+    public int snapshotSize() {
+        return detector.snapshotSize();
+    }
+
+    @Override
+    public void writeSnapshot(ByteBuffer buffer) {
+        detector.writeSnapshot(buffer);
+    }
+
+    /**
+     * Reading a snapshot cannot be journaled either, so it is treated like {@link #reset()}.
+     */
+    @Override
+    public void readSnapshot(ByteBuffer buffer) {
+        detector.readSnapshot(buffer);
+        skip();
+    }
+
+    @Override
+    public boolean retainsExample() {
+        return detector.retainsExample();
+    }
+
+    /**
+     * @return
+     *          The registered detector. Updating it directly bypasses the checkpoints.
+     */
+    public MultivariateRealDetector getDetector() {
+        return detector;
+    }
+
+    /**
+     * Take a checkpoint on the next update, whatever the interval.
+     */
+    public void requestCheckpoint() {
+        checkpointRequested = true;
+    }
+
+    private void advance(double[] example) {
+        sequence++;
+        if(detached)
+            return;
+        journal(example);
+        if(untilCheckpoint > 0)
+            untilCheckpoint--;
+        if(untilCheckpoint == 0 || checkpointRequested)
+            capture();
+    }
+
+    private void skip() {
+        sequence++;
+        if(!detached)
+            capture();
+    }
+
+    private void journal(double[] example) {
+        long h = head.get();
+        if(h - tail.get() >= samples.length) {
+            // The writer has fallen behind. The journal now has a gap, which only a checkpoint can close.
+            untilCheckpoint = 0;
+            return;
+        }
+        int slot = (int)(h % samples.length);
+        if(samples[slot] == null || samples[slot].length < example.length)
+            samples[slot] = new double[example.length];
+        System.arraycopy(example, 0, samples[slot], 0, example.length);
+        lengths[slot] = example.length;
+        sequences[slot] = sequence;
+        head.lazySet(h + 1);
+    }
+
+    private void capture() {
+        if(spare == null && returned.get() != null)
+            spare = returned.getAndSet(null);
+        if(spare == null) {
+            // The writer has not finished with the last snapshot, so try again on the next update.
+            untilCheckpoint = 0;
+            return;
+        }
+
+        int size = detector.snapshotSize();
+        if(spare.bytes.length < size) {
+            spare.bytes = new byte[size + size / 2];
+            spare.buffer = ByteBuffer.wrap(spare.bytes);
+        }
+        spare.buffer.clear();
+        detector.writeSnapshot(spare.buffer);
+        spare.length = spare.buffer.position();
+        spare.sequence = sequence;
+        pending.set(spare);
+        spare = null;
+
+        untilCheckpoint = checkpointInterval;
+        checkpointRequested = false;
+    }
+
+    /**
+     * Called by the writer to append the samples handed to it since the last call to the journal.
+     */
+    void drain(Journal journal) throws IOException {
+        long t = tail.get();
+        long h = head.get();
+        for(;t<h;t++) {
+            int slot = (int)(t % samples.length);
+            journal.append(id, sequences[slot], samples[slot], lengths[slot]);
+        }
+        tail.lazySet(h);
+    }
+
+    /**
+     * Called by the writer to take the latest snapshot, if there is a new one. It must be released after writing.
+     */
+    Capture takeCapture() {
+        return pending.getAndSet(null);
+    }
+
+    void release(Capture capture) {
+        returned.compareAndSet(null, capture);
+    }
+
+    /**
+     * Called once the checkpointer is closed or its writer has failed, to stop handing it samples and snapshots.
+     */
+    void detach() {
+        detached = true;
+    }
+}
@@ -0,0 +1,303 @@
+package uk.ac.bangor.novelty.checkpoint;
+
+import uk.ac.bangor.novelty.MultivariateRealDetector;
+import uk.ac.bangor.novelty.util.Snapshots;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Persists the state of a set of named detectors in a directory, so that they can carry on where they left off after
+ * a restart instead of refilling their windows.
+ *
+ * Each detector's snapshot (see {@link uk.ac.bangor.novelty.util.Snapshottable}) is checkpointed every so many samples
+ * into a memory-mapped state file, and every sample since is appended to a journal. On opening, the state file and
+ * journal are read; {@link #register(String, MultivariateRealDetector)} restores a detector from its latest checkpoint
+ * and replays the samples after it, without testing them, so it is in the state it was in when the last sample reached
+ * the journal. The detector given must have the same configuration as the one checkpointed; to start afresh, use a new
+ * name or directory.
+ *
+ * All file I/O happens on a background writer, which picks up samples and snapshots from the registered detectors
+ * every 100 milliseconds. Updates never wait for it (see {@link CheckpointedDetector}). Samples reach the journal on
+ * disk within about one writer cycle; checkpoints are only written when a detector is updated, so an idle detector's
+ * latest samples are kept in the journal. A crash loses at most the samples of the last cycle, and a restore stops at
+ * the first sample the journal lacks.
+ *
+ * Journal segments are deleted once the checkpoints of all the detectors with samples in them cover those samples.
+ * When a new segment is started, the detectors whose samples keep the oldest segment are asked for a checkpoint on
+ * their next update. A detector which is idle, or no longer registered, cannot take one, so once there are more than
+ * {@value #RETAINED_SEGMENTS} segments, the samples which keep the oldest are copied to the current segment and the
+ * oldest is deleted. The journal is thereby bounded by a few segments and the samples since each detector's
+ * checkpoint.
+ */
+@Slf4j
+public class Checkpointer implements Closeable {
+
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 10_000;
+    public static final int DEFAULT_JOURNAL_CAPACITY = 1024;
+
+    private static final String STATE_FILE = "state.bin";
+    public static final long DEFAULT_SEGMENT_BYTES = 64L << 20;
+    private static final int RETAINED_SEGMENTS = 3;
+    private static final long WRITER_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final int checkpointInterval;
+    private final int journalCapacity;
+
+    // The files are used by the writer, and briefly by threads registering detectors.
+    private final Object lock = new Object();
+    private final StateFile stateFile;
+    private final Journal journal;
+    private final Map<Integer, Long> durable;
+
+    private final Map<String, CheckpointedDetector> detectors = new ConcurrentHashMap<>();
+    private final List<CheckpointedDetector> writing = new CopyOnWriteArrayList<>();
+    private final Thread writer;
+    private volatile boolean running = true;
+    private final AtomicLong flushRequests = new AtomicLong();
+    private volatile long flushed;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    public Checkpointer(Path directory) throws IOException {
+        this(directory, DEFAULT_CHECKPOINT_INTERVAL, DEFAULT_JOURNAL_CAPACITY);
+    }
+
+    /**
+     * @param directory
+     *          The directory for the state file and journal, created if need be.
+     * @param checkpointInterval
+     *          The number of samples between checkpoints of a detector, which bounds the samples replayed on restore.
+     * @param journalCapacity
+     *          The number of samples per detector waiting for the writer, beyond which samples are left out of the
+     *          journal and a checkpoint is taken instead. It should comfortably exceed the samples a detector sees in
+     *          one writer cycle.
+     */
+    public Checkpointer(Path directory, int checkpointInterval, int journalCapacity) throws IOException {
+        this(directory, checkpointInterval, journalCapacity, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * @param segmentBytes
+     *          The size at which a journal segment is closed and a new one started.
+     * @see #Checkpointer(Path, int, int)
+     */
+    public Checkpointer(Path directory, int checkpointInterval, int journalCapacity, long segmentBytes)
+            throws IOException {
+        if(checkpointInterval < 1)
+            throw new IllegalArgumentException("Checkpoint interval must be at least 1.");
+        if(journalCapacity < 1)
+            throw new IllegalArgumentException("Journal capacity must be at least 1.");
+        if(segmentBytes < 1)
+            throw new IllegalArgumentException("Segment size must be at least 1.");
+        this.checkpointInterval = checkpointInterval;
+        this.journalCapacity = journalCapacity;
+
+        Files.createDirectories(directory);
+        stateFile = new StateFile(directory.resolve(STATE_FILE));
+        durable = new HashMap<>(stateFile.checkpointSequences());
+        journal = new Journal(directory, segmentBytes, durable);
+
+        writer = new Thread(this::write, "checkpoint-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Register a detector under a name, restoring the state persisted under that name, if any.
+     * @param detector
+     *          A detector which supports snapshots, with the same configuration as any persisted under the name, which
+     *          from now on should only be updated through the detector returned.
+     * @return
+     *          The detector to update.
+     * @throws IllegalArgumentException
+     *          If the detector does not support snapshots, a detector is already registered under the name, or the
+     *          persisted state does not fit the detector.
+     */
+    public CheckpointedDetector register(String name, MultivariateRealDetector detector) {
+        if(!running)
+            throw new IllegalStateException("Checkpointer is closed.");
+        if(!detector.supportsSnapshots())
+            throw new IllegalArgumentException(detector.getClass().getName() + " does not support snapshots.");
+
+        int id;
+        StateFile.Checkpoint checkpoint;
+        Journal.Replay replay;
+        synchronized (lock) {
+            if(detectors.containsKey(name))
+                throw new IllegalArgumentException("A detector is already registered as " + name);
+            id = stateFile.id(name);
+            checkpoint = stateFile.takeCheckpoint(name);
+            replay = journal.takeReplay(id);
+        }
+
+        long sequence = -1;
+        if(checkpoint != null) {
+            Snapshots.restore(detector, checkpoint.snapshot);
+            sequence = checkpoint.sequence;
+        }
+        boolean checkpointDue = false;
+        if(replay != null) {
+            for(double[] sample : replay.samples)
+                detector.observe(sample);
+            // Number on from the newest sample in the journal, even if it could not be replayed, so that samples
+            // from now on are never confused with it. A checkpoint straight away covers the journal read.
+            sequence = replay.newest;
+            checkpointDue = true;
+        }
+
+        CheckpointedDetector registered = new CheckpointedDetector(name, id, detector, sequence, checkpointInterval,
+                journalCapacity, checkpointDue);
+        if(detectors.putIfAbsent(name, registered) != null)
+            throw new IllegalArgumentException("A detector is already registered as " + name);
+        writing.add(registered);
+        if(!running)
+            // Closed while registering, so the writer may not have seen it.
+            registered.detach();
+        return registered;
+    }
+
+    /**
+     * @return
+     *          The detector registered under the name, or null if there is none.
+     */
+    public CheckpointedDetector get(String name) {
+        return detectors.get(name);
+    }
+
+    /**
+     * Take a checkpoint of every detector on its next update.
+     */
+    public void requestCheckpoints() {
+        for(CheckpointedDetector detector : writing)
+            detector.requestCheckpoint();
+    }
+
+    /**
+     * Wait until everything the detectors have handed to the writer so far is on disk.
+     * @throws RuntimeException
+     *          If the writer has failed.
+     */
+    public void flush() {
+        long request = flushRequests.incrementAndGet();
+        LockSupport.unpark(writer);
+        while(flushed < request && writer.isAlive())
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(1));
+        checkFailure();
+    }
+
+    /**
+     * Write out what the detectors have handed to the writer, and stop it. The detectors can still be updated, but
+     * nothing more is persisted, and they no longer journal samples or take snapshots.
+     */
+    @Override
+    public void close() throws IOException {
+        if(!running)
+            return;
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        detachAll();
+        synchronized (lock) {
+            journal.close();
+            stateFile.close();
+        }
+        checkFailure();
+    }
+
+    private void checkFailure() {
+        Throwable cause = failure.get();
+        if(cause != null)
+            throw new RuntimeException("Checkpoint writer failed.", cause);
+    }
+
+    private void write() {
+        while(true) {
+            long request = flushRequests.get();
+            boolean stopping = !running;
+            try {
+                synchronized (lock) {
+                    writeCycle();
+                }
+            } catch (Throwable t) {
+                log.error("Checkpoint writer failed, nothing more will be persisted.", t);
+                failure.compareAndSet(null, t);
+                detachAll();
+                return;
+            }
+            flushed = request;
+            if(stopping)
+                return;
+            if(flushRequests.get() == request)
+                LockSupport.parkNanos(this, WRITER_INTERVAL);
+        }
+    }
+
+    private void detachAll() {
+        for(CheckpointedDetector detector : writing)
+            detector.detach();
+    }
+
+    private void writeCycle() throws IOException {
+        // A detector needs an entry in the state file before its samples are journaled, so that its id is not given to
+        // another detector after a restart.
+        boolean created = false;
+        for(CheckpointedDetector detector : writing) {
+            if(!detector.persisted) {
+                stateFile.ensureEntry(detector.getName(), detector.id, 0);
+                detector.persisted = true;
+                created = true;
+            }
+        }
+        if(created)
+            stateFile.force();
+
+        for(CheckpointedDetector detector : writing)
+            detector.drain(journal);
+        journal.flush();
+        journal.force();
+        if(journal.takeRotated()) {
+            Set<Integer> pinning = journal.pinningOldest(durable);
+            for(CheckpointedDetector detector : writing)
+                if(pinning.contains(detector.id))
+                    detector.requestCheckpoint();
+        }
+
+        boolean checkpointed = false;
+        for(CheckpointedDetector detector : writing) {
+            CheckpointedDetector.Capture capture = detector.takeCapture();
+            if(capture == null)
+                continue;
+            try {
+                StateFile.Entry entry = stateFile.ensureEntry(detector.getName(), detector.id, capture.length);
+                stateFile.write(entry, capture.sequence, capture.bytes, capture.length);
+                durable.put(detector.id, capture.sequence);
+                checkpointed = true;
+            } finally {
+                detector.release(capture);
+            }
+        }
+        if(checkpointed) {
+            stateFile.force();
+            journal.deleteCovered(durable);
+        }
+        if(journal.segmentCount() > RETAINED_SEGMENTS)
+            journal.relocateOldest(durable);
+    }
+}
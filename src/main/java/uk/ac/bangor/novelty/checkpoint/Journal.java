@@ -0,0 +1,324 @@
+package uk.ac.bangor.novelty.checkpoint;
+
+import uk.ac.bangor.novelty.util.Snapshots;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * The append-only journal of the samples every detector has seen since its last checkpoint, in numbered segment files.
+ *
+ * Record layout: detector id, sequence number of the sample, number of features, the features, then a CRC32 of the
+ * rest of the record. A record torn by a crash fails its checksum, and the segment is read up to it. A segment is
+ * deleted once every detector with samples in it has a checkpoint covering them, or once the samples which are not
+ * covered have been relocated to the current segment (see {@link #relocateOldest(Map)}). A sample may therefore be
+ * found more than once, and a detector's samples out of order across segments; they are replayed in order of sequence
+ * number.
+ *
+ * Only used by one thread at a time: the thread opening the {@link Checkpointer}, then its writer.
+ */
+final class Journal implements Closeable {
+
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".log";
+    private static final int RECORD_HEADER = Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+    private static final class Segment {
+        final Path path;
+        final long number;
+        // The last sequence number of each detector in the segment.
+        final Map<Integer, Long> lastSequences = new HashMap<>();
+
+        Segment(Path path, long number) {
+            this.path = path;
+            this.number = number;
+        }
+    }
+
+    /**
+     * The samples of a detector found in the journal on opening, which follow its checkpoint without a gap.
+     */
+    static final class Replay {
+        final List<double[]> samples = new ArrayList<>();
+        // The sequence number of the last sample to replay, and the last found at all.
+        long last;
+        long newest;
+        // Samples after the checkpoint by sequence number, while the segments are read.
+        private TreeMap<Long, double[]> found = new TreeMap<>();
+
+        Replay(long checkpoint) {
+            this.last = checkpoint;
+            this.newest = checkpoint;
+        }
+
+        /**
+         * Keep the samples which follow the checkpoint without a gap.
+         */
+        private void complete() {
+            for(Map.Entry<Long, double[]> sample : found.entrySet()) {
+                if(sample.getKey() != last + 1)
+                    break;
+                samples.add(sample.getValue());
+                last = sample.getKey();
+            }
+            found = null;
+        }
+    }
+
+    /**
+     * Receives the records of a segment.
+     */
+    private interface RecordVisitor {
+        /**
+         * @param record
+         *          Positioned at the start of the record, whose features start RECORD_HEADER bytes in.
+         */
+        void visit(int id, long sequence, int length, ByteBuffer record) throws IOException;
+    }
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final List<Segment> segments = new ArrayList<>();
+    private Segment current;
+    private FileChannel channel;
+    private long written;
+    private boolean unforced;
+    private boolean rotated;
+    private ByteBuffer staging = ByteBuffer.allocate(1 << 16);
+    private final CRC32 crc = new CRC32();
+
+    private final Map<Integer, Replay> replays = new HashMap<>();
+
+    /**
+     * Read the existing segments, then start a new one.
+     * @param checkpoints
+     *          The sequence number of the checkpoint of each detector, by id. Samples up to it are not replayed.
+     */
+    Journal(Path directory, long segmentBytes, Map<Integer, Long> checkpoints) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+
+        List<Segment> found = new ArrayList<>();
+        try(DirectoryStream<Path> paths = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for(Path path : paths) {
+                String name = path.getFileName().toString();
+                try {
+                    found.add(new Segment(path, Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()))));
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        }
+        found.sort((a, b) -> Long.compare(a.number, b.number));
+        for(Segment segment : found) {
+            read(segment, checkpoints);
+            segments.add(segment);
+        }
+        for(Replay replay : replays.values())
+            replay.complete();
+        open(found.isEmpty() ? 0 : found.get(found.size() - 1).number + 1);
+    }
+
+    private void read(Segment segment, Map<Integer, Long> checkpoints) throws IOException {
+        visit(segment, (id, sequence, length, record) -> {
+            segment.lastSequences.merge(id, sequence, Math::max);
+            Replay replay = replays.computeIfAbsent(id, i -> new Replay(checkpoints.getOrDefault(i, -1L)));
+            replay.newest = Math.max(replay.newest, sequence);
+            if(sequence <= replay.last || replay.found.containsKey(sequence))
+                return;
+            double[] sample = new double[length];
+            record.position(record.position() + RECORD_HEADER);
+            Snapshots.getDoubles(record, sample, 0, length);
+            replay.found.put(sequence, sample);
+        });
+    }
+
+    /**
+     * Pass every intact record of a segment to the visitor, in order, stopping at the first which is torn.
+     */
+    private void visit(Segment segment, RecordVisitor visitor) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(segment.path));
+        while(buffer.remaining() >= RECORD_HEADER + Integer.BYTES) {
+            int start = buffer.position();
+            int id = buffer.getInt();
+            long sequence = buffer.getLong();
+            int length = buffer.getInt();
+            if(length < 0 || length > (buffer.remaining() - Integer.BYTES) / Double.BYTES)
+                break;
+            buffer.position(buffer.position() + length * Double.BYTES);
+            crc.reset();
+            crc.update(buffer.array(), start, buffer.position() - start);
+            if(buffer.getInt() != (int) crc.getValue())
+                break;
+
+            int end = buffer.position();
+            buffer.position(start);
+            visitor.visit(id, sequence, length, buffer);
+            buffer.position(end);
+        }
+    }
+
+    /**
+     * @return
+     *          The samples of the detector found on opening, or null if there were none. They are only returned once.
+     */
+    Replay takeReplay(int id) {
+        return replays.remove(id);
+    }
+
+    /**
+     * Append a sample. It is only durable after {@link #force()}.
+     */
+    void append(int id, long sequence, double[] sample, int length) throws IOException {
+        int size = RECORD_HEADER + length * Double.BYTES + Integer.BYTES;
+        if(staging.remaining() < size) {
+            flush();
+            if(staging.capacity() < size)
+                staging = ByteBuffer.allocate(size);
+        }
+        int start = staging.position();
+        staging.putInt(id).putLong(sequence).putInt(length);
+        Snapshots.putDoubles(staging, sample, 0, length);
+        crc.reset();
+        crc.update(staging.array(), start, staging.position() - start);
+        staging.putInt((int) crc.getValue());
+        current.lastSequences.merge(id, sequence, Math::max);
+    }
+
+    /**
+     * Write out the appended samples, and start a new segment if the current one is full.
+     */
+    void flush() throws IOException {
+        if(staging.position() == 0)
+            return;
+        staging.flip();
+        while(staging.hasRemaining())
+            written += channel.write(staging);
+        staging.clear();
+        unforced = true;
+        if(written >= segmentBytes) {
+            force();
+            channel.close();
+            open(current.number + 1);
+            rotated = true;
+        }
+    }
+
+    /**
+     * @return
+     *          True if a new segment has been started since the last call.
+     */
+    boolean takeRotated() {
+        boolean wasRotated = rotated;
+        rotated = false;
+        return wasRotated;
+    }
+
+    /**
+     * @return
+     *          The number of segments, including the current one.
+     */
+    int segmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * @param checkpoints
+     *          The sequence number of the latest durable checkpoint of each detector, by id.
+     * @return
+     *          The ids of the detectors with samples in the oldest segment, other than the current one, which their
+     *          checkpoints do not cover.
+     */
+    Set<Integer> pinningOldest(Map<Integer, Long> checkpoints) {
+        Set<Integer> pinning = new HashSet<>();
+        if(segments.size() > 1) {
+            for(Map.Entry<Integer, Long> last : segments.get(0).lastSequences.entrySet())
+                if(checkpoints.getOrDefault(last.getKey(), -1L) < last.getValue())
+                    pinning.add(last.getKey());
+        }
+        return pinning;
+    }
+
+    /**
+     * Copy the samples of the oldest segment, other than the current one, which checkpoints do not cover, to the
+     * current segment, and delete it. This bounds the journal when a detector is not checkpointed for a long time, for
+     * example because it is no longer updated.
+     * @param checkpoints
+     *          The sequence number of the latest durable checkpoint of each detector, by id.
+     */
+    void relocateOldest(Map<Integer, Long> checkpoints) throws IOException {
+        if(segments.size() < 2)
+            return;
+        Segment oldest = segments.get(0);
+        double[][] sample = { new double[0] };
+        visit(oldest, (id, sequence, length, record) -> {
+            if(sequence <= checkpoints.getOrDefault(id, -1L))
+                return;
+            if(sample[0].length < length)
+                sample[0] = new double[length];
+            record.position(record.position() + RECORD_HEADER);
+            Snapshots.getDoubles(record, sample[0], 0, length);
+            append(id, sequence, sample[0], length);
+        });
+        flush();
+        force();
+        Files.deleteIfExists(oldest.path);
+        segments.remove(oldest);
+    }
+
+    void force() throws IOException {
+        if(unforced)
+            channel.force(false);
+        unforced = false;
+    }
+
+    /**
+     * Delete the segments, other than the current one, whose samples are all covered by checkpoints.
+     * @param checkpoints
+     *          The sequence number of the latest durable checkpoint of each detector, by id.
+     */
+    void deleteCovered(Map<Integer, Long> checkpoints) throws IOException {
+        for(int i=0;i<segments.size()-1;i++) {
+            Segment segment = segments.get(i);
+            boolean covered = true;
+            for(Map.Entry<Integer, Long> last : segment.lastSequences.entrySet()) {
+                if(checkpoints.getOrDefault(last.getKey(), -1L) < last.getValue()) {
+                    covered = false;
+                    break;
+                }
+            }
+            if(covered) {
+                Files.deleteIfExists(segment.path);
+                segments.remove(i--);
+            }
+        }
+    }
+
+    private void open(long number) throws IOException {
+        current = new Segment(directory.resolve(String.format("%s%016d%s", PREFIX, number, SUFFIX)), number);
+        segments.add(current);
+        channel = FileChannel.open(current.path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        written = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        force();
+        channel.close();
+    }
+}
@@ -0,0 +1,245 @@
+package uk.ac.bangor.novelty.checkpoint;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The memory-mapped file holding the latest checkpoint of every detector.
+ *
+ * The file is a sequence of entries, one per detector, each with two slots for snapshots. A checkpoint overwrites the
+ * older slot and leaves the newer one alone, so a write torn by a crash loses at most that checkpoint, which its
+ * checksum reveals. A detector whose snapshot outgrows its slots gets a new, larger entry at the end of the file; its
+ * old entry is still read on startup, so its last checkpoint is kept until the new entry has one. Entries are never
+ * removed.
+ *
+ * Entry layout: magic, id, slot capacity, name length, name in UTF-8, then the two slots. Slot layout: sequence number
+ * of the last sample in the snapshot (or -1 if empty), length, CRC32 of the sequence, length and snapshot, then the
+ * snapshot padded to the capacity.
+ *
+ * Only used by one thread at a time: the thread opening the {@link Checkpointer}, then its writer.
+ */
+final class StateFile implements Closeable {
+
+    private static final int ENTRY_MAGIC = 0x4e564331;
+    private static final int ENTRY_HEADER = 3 * Integer.BYTES + Short.BYTES;
+    private static final int SLOT_HEADER = Long.BYTES + 2 * Integer.BYTES;
+    private static final int MIN_CAPACITY = 256;
+    private static final int MIN_MAPPING = 1 << 16;
+
+    /**
+     * The newest entry of each detector, which checkpoints are written to.
+     */
+    static final class Entry {
+        final String name;
+        final int id;
+        final int capacity;
+        final long position;
+        private final int nameLength;
+        final long[] sequences = {-1, -1};
+
+        Entry(String name, int nameLength, int id, int capacity, long position) {
+            this.name = name;
+            this.nameLength = nameLength;
+            this.id = id;
+            this.capacity = capacity;
+            this.position = position;
+        }
+
+        long slotPosition(int slot) {
+            return position + ENTRY_HEADER + nameLength + (long) slot * (SLOT_HEADER + capacity);
+        }
+    }
+
+    /**
+     * The newest valid checkpoint of a detector found when the file was opened.
+     */
+    static final class Checkpoint {
+        final long sequence;
+        final byte[] snapshot;
+
+        Checkpoint(long sequence, byte[] snapshot) {
+            this.sequence = sequence;
+            this.snapshot = snapshot;
+        }
+    }
+
+    private final FileChannel channel;
+    private MappedByteBuffer map;
+    private long end;
+    private int nextId;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<String, Checkpoint> checkpoints = new HashMap<>();
+    private final Map<Integer, Long> checkpointSequences = new HashMap<>();
+    private final CRC32 crc = new CRC32();
+    private final ByteBuffer slotHeader = ByteBuffer.allocate(Long.BYTES + Integer.BYTES);
+
+    StateFile(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        remap(Math.max(channel.size(), MIN_MAPPING));
+        scan();
+    }
+
+    /**
+     * Read every entry, up to the first which is incomplete, keeping the newest valid checkpoint of each detector.
+     */
+    private void scan() {
+        long position = 0;
+        while(position + ENTRY_HEADER <= map.capacity()) {
+            map.position((int) position);
+            if(map.getInt() != ENTRY_MAGIC)
+                break;
+            int id = map.getInt();
+            int capacity = map.getInt();
+            int nameLength = map.getShort();
+            long size = entrySize(nameLength, capacity);
+            if(capacity < 0 || nameLength < 0 || position + size > map.capacity())
+                break;
+            byte[] name = new byte[nameLength];
+            map.get(name);
+
+            Entry entry = new Entry(new String(name, StandardCharsets.UTF_8), nameLength, id, capacity, position);
+            for(int slot=0;slot<2;slot++)
+                readSlot(entry, slot);
+            entries.put(entry.name, entry);
+            nextId = Math.max(nextId, id + 1);
+            position += size;
+        }
+        end = position;
+    }
+
+    private void readSlot(Entry entry, int slot) {
+        map.position((int) entry.slotPosition(slot));
+        long sequence = map.getLong();
+        int length = map.getInt();
+        int checksum = map.getInt();
+        if(sequence < 0 || length < 0 || length > entry.capacity)
+            return;
+        byte[] snapshot = new byte[length];
+        map.get(snapshot);
+        if(checksum(sequence, snapshot, length) != checksum)
+            return;
+
+        entry.sequences[slot] = sequence;
+        checkpointSequences.merge(entry.id, sequence, Math::max);
+        Checkpoint newest = checkpoints.get(entry.name);
+        if(newest == null || sequence > newest.sequence)
+            checkpoints.put(entry.name, new Checkpoint(sequence, snapshot));
+    }
+
+    /**
+     * @return
+     *          The newest checkpoint of the named detector when the file was opened, or null if it has none. It is
+     *          only returned once.
+     */
+    Checkpoint takeCheckpoint(String name) {
+        return checkpoints.remove(name);
+    }
+
+    /**
+     * @return
+     *          The sequence number of every checkpoint found when the file was opened, by detector id.
+     */
+    Map<Integer, Long> checkpointSequences() {
+        return checkpointSequences;
+    }
+
+    /**
+     * @return
+     *          The id of the named detector, allocating one if it has no entry yet.
+     */
+    int id(String name) {
+        Entry entry = entries.get(name);
+        return entry != null ? entry.id : nextId++;
+    }
+
+    /**
+     * Make sure the named detector has an entry with room for a snapshot of the given size.
+     */
+    Entry ensureEntry(String name, int id, int snapshotSize) throws IOException {
+        Entry entry = entries.get(name);
+        if(entry != null && entry.capacity >= snapshotSize)
+            return entry;
+
+        int capacity = Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(snapshotSize, 1) - 1) << 1);
+        byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+        if(encoded.length > Short.MAX_VALUE)
+            throw new IllegalArgumentException("Detector name is too long.");
+        long size = entrySize(encoded.length, capacity);
+        if(end + size > map.capacity())
+            remap(Math.max(end + size, 2L * map.capacity()));
+
+        map.position((int) end + Integer.BYTES);
+        map.putInt(id);
+        map.putInt(capacity);
+        map.putShort((short) encoded.length);
+        map.put(encoded);
+        for(int slot=0;slot<2;slot++) {
+            map.putLong(-1L);
+            map.putInt(0);
+            map.putInt(0);
+            map.position(map.position() + capacity);
+        }
+        // The magic goes last, so that an entry is only read once the rest of it is in place.
+        map.force();
+        map.putInt((int) end, ENTRY_MAGIC);
+
+        Entry created = new Entry(name, encoded.length, id, capacity, end);
+        entries.put(name, created);
+        end += size;
+        return created;
+    }
+
+    /**
+     * Write a snapshot over the older slot of the detector's entry. It is only durable after {@link #force()}.
+     */
+    void write(Entry entry, long sequence, byte[] snapshot, int length) {
+        int slot = entry.sequences[0] <= entry.sequences[1] ? 0 : 1;
+        int position = (int) entry.slotPosition(slot);
+        // Invalidate the slot first, so that a torn write is never taken for a checkpoint.
+        map.putLong(position, -1L);
+        map.putInt(position + Long.BYTES, length);
+        map.putInt(position + Long.BYTES + Integer.BYTES, checksum(sequence, snapshot, length));
+        map.position(position + SLOT_HEADER);
+        map.put(snapshot, 0, length);
+        map.putLong(position, sequence);
+        entry.sequences[slot] = sequence;
+    }
+
+    void force() {
+        map.force();
+    }
+
+    private int checksum(long sequence, byte[] snapshot, int length) {
+        crc.reset();
+        slotHeader.clear();
+        slotHeader.putLong(sequence).putInt(length);
+        crc.update(slotHeader.array(), 0, slotHeader.position());
+        crc.update(snapshot, 0, length);
+        return (int) crc.getValue();
+    }
+
+    private void remap(long size) throws IOException {
+        if(size > Integer.MAX_VALUE)
+            throw new IOException("Checkpoint file would exceed 2GB.");
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private static long entrySize(int nameLength, int capacity) {
+        return ENTRY_HEADER + nameLength + 2L * (SLOT_HEADER + capacity);
+    }
+
+    @Override
+    public void close() throws IOException {
+        map.force();
+        channel.close();
+    }
+}
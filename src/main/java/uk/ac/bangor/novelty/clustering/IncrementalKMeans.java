@@ -0,0 +1,401 @@
+package uk.ac.bangor.novelty.clustering;
+
+import uk.ac.bangor.novelty.util.Footprints;
+import uk.ac.bangor.novelty.windowing.FlatWindowPair;
+
+import java.util.Random;
+
+/**
+ * K-means clustering of a sliding window, which can follow the window one observation at a time.
+ *
+ * {@link #fit(FlatWindowPair.View)} clusters the window from scratch, with k-means++ seeding and Lloyd iterations,
+ * moving the farthest point into any cluster which empties. After that, {@link #add(double[], int)} and
+ * {@link #remove(double[], int)} apply sequential (MacQueen) updates for an observation entering or leaving the window:
+ * the observation joins the nearest centroid, or leaves the cluster it belongs to, and that centroid moves to the new
+ * mean of its members. Memberships are not revisited between fits, so the clustering slowly drifts from what a fresh
+ * fit would give; {@link #cost()} can be compared with {@link #getFittedCost()} to decide when to fit again.
+ *
+ * Cluster memberships are recorded against the storage slot of each observation in the window pair's backing array,
+ * so observations are identified by their offset in {@link FlatWindowPair#getData()} and nothing is copied. Each
+ * cluster also carries the sum and scatter of its members, about an anchor fixed at the last fit, from which its
+ * covariance is available at any time in O(d^2).
+ */
+public class IncrementalKMeans {
+
+    private static final int MAX_ITERATIONS = 100;
+
+    private final int k;
+    private final Random random;
+
+    private int d;
+    private int n;
+    private double[] centroids;
+    private int[] counts;
+    private double[] sums;
+    private double[] scatter;
+    private double[] anchor;
+    private double[] scratch;
+
+    // Cluster of the observation in each slot of the backing array, or -1.
+    private int[] labels;
+    // Per row of the window being fitted.
+    private double[] distances;
+
+    private boolean fitted;
+    private boolean degenerate;
+    private double fittedCost;
+
+    public IncrementalKMeans(int k, Random random) {
+        if(k < 1)
+            throw new IllegalArgumentException("There must be at least one cluster.");
+        this.k = k;
+        this.random = random;
+    }
+
+    /**
+     * @return
+     *          A rough estimate of the heap this clusterer occupies, in bytes, not counting its random generator.
+     */
+    public long estimatedFootprintBytes() {
+        return Footprints.object(getClass()) + Footprints.of(centroids) + Footprints.of(counts)
+                + Footprints.of(sums) + Footprints.of(scatter) + Footprints.of(anchor) + Footprints.of(scratch)
+                + Footprints.of(labels) + Footprints.of(distances);
+    }
+
+    /**
+     * Cluster the observations in the window from scratch.
+     * @param window
+     *          A window of a {@link FlatWindowPair}, holding at least K observations.
+     */
+    public void fit(FlatWindowPair.View window) {
+        n = window.size();
+        if(n < k)
+            throw new IllegalArgumentException("Cannot fit " + k + " clusters to " + n + " observations.");
+        allocate(window.getDimensions(), window.getData().length / window.getDimensions(), n);
+        double[] data = window.getData();
+
+        for(int i=0;i<labels.length;i++)
+            labels[i] = -1;
+
+        for(int j=0;j<d;j++)
+            anchor[j] = 0;
+        for(int r=0;r<n;r++) {
+            int offset = window.offset(r);
+            for(int j=0;j<d;j++)
+                anchor[j] += data[offset + j];
+        }
+        for(int j=0;j<d;j++)
+            anchor[j] /= n;
+
+        seed(window, data);
+
+        for(int iteration=0;iteration<MAX_ITERATIONS;iteration++) {
+            boolean changed = false;
+            for(int r=0;r<n;r++) {
+                int offset = window.offset(r);
+                int nearest = nearest(data, offset);
+                int slot = offset / d;
+                if(labels[slot] != nearest) {
+                    labels[slot] = nearest;
+                    changed = true;
+                }
+                distances[r] = distanceSquared(data, offset, nearest);
+            }
+            if(!changed)
+                break;
+
+            for(int c=0;c<k*d;c++)
+                centroids[c] = 0;
+            for(int c=0;c<k;c++)
+                counts[c] = 0;
+            for(int r=0;r<n;r++) {
+                int offset = window.offset(r);
+                int cluster = labels[offset / d];
+                counts[cluster]++;
+                for(int j=0;j<d;j++)
+                    centroids[cluster * d + j] += data[offset + j];
+            }
+
+            for(int c=0;c<k;c++)
+                if(counts[c] == 0)
+                    stealFarthest(window, data, c);
+
+            for(int c=0;c<k;c++)
+                for(int j=0;j<d;j++)
+                    centroids[c * d + j] /= counts[c];
+        }
+
+        accumulate(window, data);
+        fitted = true;
+        degenerate = false;
+        fittedCost = cost();
+    }
+
+    /**
+     * Assign an observation which has entered the window to its nearest cluster, and move that cluster's centroid.
+     * @param data
+     *          The backing array of the window pair.
+     * @param offset
+     *          The offset of the observation in data.
+     * @return
+     *          The cluster the observation was assigned to.
+     */
+    public int add(double[] data, int offset) {
+        checkFitted();
+        int cluster = nearest(data, offset);
+        labels[offset / d] = cluster;
+        n++;
+        counts[cluster]++;
+        accumulate(cluster, data, offset, 1);
+        moveCentroid(cluster);
+        return cluster;
+    }
+
+    /**
+     * Remove an observation which is leaving the window from its cluster, and move that cluster's centroid. This must be
+     * called while the observation is still in the backing array.
+     */
+    public void remove(double[] data, int offset) {
+        checkFitted();
+        int slot = offset / d;
+        int cluster = labels[slot];
+        if(cluster < 0)
+            throw new IllegalStateException("The observation at offset " + offset + " is not in any cluster.");
+        labels[slot] = -1;
+        n--;
+        counts[cluster]--;
+        accumulate(cluster, data, offset, -1);
+        if(counts[cluster] == 0)
+            degenerate = true;
+        else
+            moveCentroid(cluster);
+    }
+
+    /**
+     * The within-cluster sum of squared distances to the centroids, divided by the number of observations. For a fresh
+     * fit this is the quantity which k-means minimises.
+     */
+    public double cost() {
+        double total = 0;
+        for(int c=0;c<k;c++) {
+            if(counts[c] == 0)
+                continue;
+            int base = c * d * d;
+            double sumSquares = 0;
+            for(int j=0;j<d;j++) {
+                double s = sums[c * d + j];
+                total += scatter[base + j * d + j];
+                sumSquares += s * s;
+            }
+            total -= sumSquares / counts[c];
+        }
+        return n == 0 ? 0 : Math.max(0, total) / n;
+    }
+
+    /**
+     * Add weight times the bias corrected covariance of a cluster's members to the lower triangle of a d x d row-major
+     * matrix. Clusters with fewer than two members contribute nothing.
+     */
+    public void addCovariance(int cluster, double weight, double[] destination) {
+        int m = counts[cluster];
+        if(m <= 1)
+            return;
+        int base = cluster * d * d;
+        int sumBase = cluster * d;
+        double scale = weight / (m - 1);
+        for(int i=0;i<d;i++) {
+            double si = sums[sumBase + i] / m;
+            for(int j=0;j<=i;j++)
+                destination[i * d + j] += scale * (scatter[base + i * d + j] - si * sums[sumBase + j]);
+        }
+    }
+
+    /**
+     * Copy the centroid of a cluster into the destination array.
+     * @return
+     *          destination
+     */
+    public double[] centroid(int cluster, double[] destination) {
+        System.arraycopy(centroids, cluster * d, destination, 0, d);
+        return destination;
+    }
+
+    public int count(int cluster) {
+        return counts[cluster];
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    public int size() {
+        return n;
+    }
+
+    public boolean isFitted() {
+        return fitted;
+    }
+
+    /**
+     * @return
+     *          True if a cluster has lost all of its members since the last fit.
+     */
+    public boolean isDegenerate() {
+        return degenerate;
+    }
+
+    /**
+     * @return
+     *          The {@link #cost()} immediately after the last fit.
+     */
+    public double getFittedCost() {
+        return fittedCost;
+    }
+
+    /**
+     * Forget the clustering, so that it must be fitted again before it can be updated.
+     */
+    public void invalidate() {
+        fitted = false;
+    }
+
+    private void seed(FlatWindowPair.View window, double[] data) {
+        int first = window.offset(random.nextInt(n));
+        System.arraycopy(data, first, centroids, 0, d);
+        for(int r=0;r<n;r++)
+            distances[r] = distanceSquared(data, window.offset(r), 0);
+
+        for(int c=1;c<k;c++) {
+            double total = 0;
+            for(int r=0;r<n;r++)
+                total += distances[r];
+
+            // With D^2 weighting; if every point sits on a centroid already, any point will do.
+            int chosen = n - 1;
+            if(total > 0) {
+                double target = random.nextDouble() * total;
+                for(int r=0;r<n;r++) {
+                    target -= distances[r];
+                    if(target < 0) {
+                        chosen = r;
+                        break;
+                    }
+                }
+            } else {
+                chosen = random.nextInt(n);
+            }
+            System.arraycopy(data, window.offset(chosen), centroids, c * d, d);
+
+            for(int r=0;r<n;r++)
+                distances[r] = Math.min(distances[r], distanceSquared(data, window.offset(r), c));
+        }
+    }
+
+    /**
+     * Give an empty cluster the point farthest from the centroid it was assigned to. Expects centroids to hold the
+     * unnormalised sums of the latest assignment.
+     */
+    private void stealFarthest(FlatWindowPair.View window, double[] data, int empty) {
+        int farthest = -1;
+        for(int r=0;r<n;r++) {
+            int cluster = labels[window.offset(r) / d];
+            if(counts[cluster] > 1 && (farthest < 0 || distances[r] > distances[farthest]))
+                farthest = r;
+        }
+        if(farthest < 0)
+            return;
+
+        int offset = window.offset(farthest);
+        int from = labels[offset / d];
+        counts[from]--;
+        for(int j=0;j<d;j++) {
+            centroids[from * d + j] -= data[offset + j];
+            centroids[empty * d + j] = data[offset + j];
+        }
+        counts[empty] = 1;
+        labels[offset / d] = empty;
+        distances[farthest] = 0;
+    }
+
+    private void accumulate(FlatWindowPair.View window, double[] data) {
+        for(int c=0;c<k;c++)
+            counts[c] = 0;
+        for(int c=0;c<k*d;c++)
+            sums[c] = 0;
+        for(int c=0;c<k*d*d;c++)
+            scatter[c] = 0;
+
+        for(int r=0;r<n;r++) {
+            int offset = window.offset(r);
+            int cluster = labels[offset / d];
+            counts[cluster]++;
+            accumulate(cluster, data, offset, 1);
+        }
+        for(int c=0;c<k;c++)
+            if(counts[c] > 0)
+                moveCentroid(c);
+    }
+
+    private void accumulate(int cluster, double[] data, int offset, double sign) {
+        for(int j=0;j<d;j++)
+            scratch[j] = data[offset + j] - anchor[j];
+
+        int sumBase = cluster * d;
+        int base = cluster * d * d;
+        for(int i=0;i<d;i++) {
+            double xi = sign * scratch[i];
+            sums[sumBase + i] += xi;
+            for(int j=0;j<=i;j++)
+                scatter[base + i * d + j] += xi * scratch[j];
+        }
+    }
+
+    private void moveCentroid(int cluster) {
+        for(int j=0;j<d;j++)
+            centroids[cluster * d + j] = anchor[j] + sums[cluster * d + j] / counts[cluster];
+    }
+
+    private int nearest(double[] data, int offset) {
+        int nearest = 0;
+        double minimum = Double.POSITIVE_INFINITY;
+        for(int c=0;c<k;c++) {
+            double distance = distanceSquared(data, offset, c);
+            if(distance < minimum) {
+                minimum = distance;
+                nearest = c;
+            }
+        }
+        return nearest;
+    }
+
+    private double distanceSquared(double[] data, int offset, int cluster) {
+        double sum = 0;
+        int base = cluster * d;
+        for(int j=0;j<d;j++) {
+            double difference = data[offset + j] - centroids[base + j];
+            sum += difference * difference;
+        }
+        return sum;
+    }
+
+    private void allocate(int dimensions, int slots, int rows) {
+        if(centroids == null || d != dimensions) {
+            d = dimensions;
+            centroids = new double[k * d];
+            counts = new int[k];
+            sums = new double[k * d];
+            scatter = new double[k * d * d];
+            anchor = new double[d];
+            scratch = new double[d];
+        }
+        if(labels == null || labels.length != slots)
+            labels = new int[slots];
+        if(distances == null || distances.length < rows)
+            distances = new double[rows];
+    }
+
+    private void checkFitted() {
+        if(!fitted)
+            throw new IllegalStateException("The clustering has not been fitted.");
+    }
+}
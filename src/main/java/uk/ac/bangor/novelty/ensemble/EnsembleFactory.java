@@ -1,6 +1,7 @@
 package uk.ac.bangor.novelty.ensemble;
 
 import uk.ac.bangor.novelty.MultivariateRealDetector;
+import uk.ac.bangor.novelty.windowing.SharedWindowStatistics;
 
 import java.util.Collections;
 import java.util.Stack;
@@ -104,20 +105,74 @@ public class EnsembleFactory {
             throw new IllegalArgumentException("Subspace cannot be larger than the feature space.");
 
         for(int i = 0; i<nSubspaces; i++) {
-            Stack<Integer> availableFeatures = new Stack<>();
-            for(int j=0;j<nFeatures;j++)
-                availableFeatures.push(j);
+            int[] features = randomSubspace(nFeatures, subspaceSize);
+            ensemble.addMultivariate(detectorFunction.apply(features.length), features);
+        }
 
-            Collections.shuffle(availableFeatures);
+        return ensemble;
+    }
 
-            int[] features = new int[subspaceSize];
-            for(int j=0;j<subspaceSize;j++) {
-                features[j]=availableFeatures.pop();
-            }
+    /**
+     * {@link #buildSharedRandomSubspaceEnsemble(MultivariateRealEnsemble, int, int, int, SharedWindowStatistics, Function)}
+     */
+    public static MultivariateRealEnsemble buildSharedRandomSubspaceEnsemble(int nFeatures,
+                                                                             int subspaceSize,
+                                                                             int nSubspaces,
+                                                                             SharedWindowStatistics statistics,
+                                                                             Function<SharedWindowStatistics.Subspace,MultivariateRealDetector> detectorFunction) {
+        return buildSharedRandomSubspaceEnsemble(new MultivariateRealEnsemble(), nFeatures, subspaceSize, nSubspaces, statistics, detectorFunction);
+    }
 
-            ensemble.addMultivariate(detectorFunction.apply(features.length), features);
+    /**
+     * As {@link #buildRandomSubspaceEnsemble(MultivariateRealEnsemble, int, int, int, Function)}, but the members are
+     * constructed on subspaces of one set of window statistics, which the ensemble keeps up to date, instead of each
+     * keeping windows of its own.
+     *
+     * @param ensemble
+     *                  The ensemble to which the detectors should be added.
+     * @param nFeatures
+     *                  The size of the feature space.
+     * @param subspaceSize
+     *                  The size of the subspaces.
+     * @param nSubspaces
+     *                  The number of subspaces
+     * @param statistics
+     *                  The shared window statistics, which must not be updated by anything but the ensemble.
+     * @param detectorFunction
+     *                  A factory providing a new instance of the multivariate detector on a subspace of the statistics,
+     *                  such as Hotelling::new.
+     * @return
+     *                  The provided ensemble with the mapped detectors added.
+     */
+    public static MultivariateRealEnsemble buildSharedRandomSubspaceEnsemble(MultivariateRealEnsemble ensemble,
+                                                                             int nFeatures,
+                                                                             int subspaceSize,
+                                                                             int nSubspaces,
+                                                                             SharedWindowStatistics statistics,
+                                                                             Function<SharedWindowStatistics.Subspace,MultivariateRealDetector> detectorFunction) {
+        if(subspaceSize > nFeatures)
+            throw new IllegalArgumentException("Subspace cannot be larger than the feature space.");
+
+        ensemble.setSharedStatistics(statistics);
+        for(int i = 0; i<nSubspaces; i++) {
+            int[] features = randomSubspace(nFeatures, subspaceSize);
+            ensemble.addMultivariate(detectorFunction.apply(statistics.subspace(features)), features);
         }
 
         return ensemble;
     }
+
+    private static int[] randomSubspace(int nFeatures, int subspaceSize) {
+        Stack<Integer> availableFeatures = new Stack<>();
+        for(int j=0;j<nFeatures;j++)
+            availableFeatures.push(j);
+
+        Collections.shuffle(availableFeatures);
+
+        int[] features = new int[subspaceSize];
+        for(int j=0;j<subspaceSize;j++) {
+            features[j]=availableFeatures.pop();
+        }
+        return features;
+    }
 }
@@ -2,6 +2,8 @@ package uk.ac.bangor.novelty.ensemble;
 
 
 import uk.ac.bangor.novelty.Detector;
+import uk.ac.bangor.novelty.util.Footprints;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 
@@ -13,6 +15,10 @@ public class FeatureMapping {
     int[] features;
     boolean isAllFeatures = false;
 
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private double[] buffer;
+
     public static FeatureMapping of(int... features) {
         return new FeatureMapping(features);
     }
@@ -33,19 +39,53 @@ public class FeatureMapping {
         isAllFeatures = true;
     }
 
+    /**
+     * Pass the mapped features of the example to the detector. Unless the detector retains its examples (see
+     * {@link Detector#retainsExample()}), they are gathered into a buffer owned by this mapping, which is reused for
+     * every example, so a mapping must not be shared between detectors which are updated concurrently.
+     */
     public void update(double[] example, Detector<double[]> detector) {
-        if(isAllFeatures) {
-            detector.update(example);
-            return;
+        detector.update(project(example, detector));
+    }
+
+    /**
+     * Pass the mapped features of the example to the detector's {@link Detector#observe(Object)}, as
+     * {@link #update(double[], Detector)} does to its update.
+     */
+    public void observe(double[] example, Detector<double[]> detector) {
+        detector.observe(project(example, detector));
+    }
+
+    private double[] project(double[] example, Detector<double[]> detector) {
+        if(isAllFeatures)
+            return example;
+
+        double[] trimmed;
+        if(detector.retainsExample()) {
+            trimmed = new double[count()];
+        } else {
+            if(buffer == null || buffer.length != count())
+                buffer = new double[count()];
+            trimmed = buffer;
         }
 
-        double[] trimmed = new double[count()];
         int counter = 0;
         for(int feature : features) {
             trimmed[counter++] = example[feature];
         }
+        return trimmed;
+    }
+
+    /**
+     * @return
+     *          A mapping of the same features with a buffer of its own, for a copy of the detector this one feeds.
+     */
+    public FeatureMapping copy() {
+        return isAllFeatures ? ofAllFeatures() : of(features);
+    }
 
-        detector.update(trimmed);
+    long estimatedFootprintBytes() {
+        return Footprints.object(getClass()) + Footprints.of(features) + Footprints.of(buffer);
     }
 
     public boolean mapsFeature(int feature) {
@@ -1,14 +1,41 @@
 package uk.ac.bangor.novelty.ensemble;
 
-import uk.ac.bangor.novelty.Detector;
 import uk.ac.bangor.novelty.MultivariateRealDetector;
 import uk.ac.bangor.novelty.UnivariateRealDetector;
+import uk.ac.bangor.novelty.util.Footprints;
+import uk.ac.bangor.novelty.util.Snapshots;
+import lombok.Getter;
 
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
 /**
+ * An ensemble of subspace detectors, each weighted by the number of its features whose guardian, a univariate detector
+ * on that feature alone, currently signals change.
+ *
+ * The weights are maintained from an index of the members which map each feature: when a guardian's decision flips,
+ * only those members' weights change, by one.
+ *
+ * In cascade mode (see {@link #enableCascade(int, int, int)}) the guardians act as a gate in front of the members, which
+ * are typically far more expensive. The guardians are updated first, and a member only runs its test while at least a
+ * given number of its features' guardians signal change, or on a background cadence. While it is not tested, a member
+ * does no work at all: the ensemble keeps the latest examples, and a member which becomes active first catches up on
+ * the examples it missed, up to a bound, through {@link uk.ac.bangor.novelty.Detector#observe(Object)}, which windows
+ * them without testing. A member which is not tested votes against change. For members whose state is their windows,
+ * and a catch-up bound at least the size of their windows, a member which is active decides exactly as it would have
+ * had it been updated on every example; with the default activation of one guardian, so does the ensemble, since a
+ * member with no changed features has no weight.
+ *
+ * On {@link #reset()} or {@link #rearm()} the guardians are reset, so no feature is changed and every member's weight is
+ * zero until its guardians signal change again. In cascade mode, members are caught up before they are re-armed, so
+ * that W2 holds the latest examples, and afterwards none catches up on examples from before.
+ *
+ * A copy or snapshot carries the guardians, and in cascade mode the latest examples and how far each member has seen,
+ * so the copy goes on catching members up exactly as the original would. A snapshot must be read back into an ensemble
+ * built with the same members and cascade configuration.
+ *
  * @author Will Faithfull
  */
 public class FeatureWeightedSubsetEnsemble extends MultivariateRealEnsemble {
@@ -18,6 +45,26 @@ public class FeatureWeightedSubsetEnsemble extends MultivariateRealEnsemble {
     private Supplier<UnivariateRealDetector> guardianSupplier;
     private boolean[] featureChanges;
 
+    // The members which map each feature, once per mapping of it, and the members which map all features.
+    private int[][] membersByFeature;
+    private int[] allFeatureMembers;
+    private int[] scores;
+
+    @Getter
+    private boolean cascade;
+    @Getter
+    private int activation;
+    @Getter
+    private int backgroundInterval;
+    @Getter
+    private int catchUp;
+    // The latest catchUp + 1 examples, by sample number modulo their length, and the last sample each member saw.
+    private double[][] recent;
+    private long[] lastSeen;
+    private long samples = -1;
+
+    private static final int SNAPSHOT_VERSION = 1;
+
     public FeatureWeightedSubsetEnsemble(int nFeatures,
                                          int subspaceSize,
                                          int nSubspaces,
@@ -33,27 +80,308 @@ public class FeatureWeightedSubsetEnsemble extends MultivariateRealEnsemble {
         EnsembleFactory.buildRandomSubspaceEnsemble(this, nFeatures, subspaceSize, nSubspaces, detectorFunction);
     }
 
+    private FeatureWeightedSubsetEnsemble(FeatureWeightedSubsetEnsemble original) {
+        super(original.getVotingScheme().copy());
+        this.nFeatures = original.nFeatures;
+        this.guardianSupplier = original.guardianSupplier;
+        guardians = new UnivariateRealDetector[nFeatures];
+        for(int i=0;i<nFeatures;i++) {
+            guardians[i] = original.guardians[i].copy();
+        }
+        featureChanges = original.featureChanges.clone();
+    }
+
     @Override
-    public void update(double[] example) {
-        if(example.length != nFeatures)
-            throw new RuntimeException("You cannot change the number of features without recreating the ensemble.");
+    public FeatureWeightedSubsetEnsemble copy() {
+        FeatureWeightedSubsetEnsemble copy = copyTo(new FeatureWeightedSubsetEnsemble(this));
+        // The index is rebuilt whenever membership changes, so it can be shared.
+        copy.membersByFeature = membersByFeature;
+        copy.allFeatureMembers = allFeatureMembers;
+        copy.scores = scores != null ? scores.clone() : null;
+        copy.cascade = cascade;
+        copy.activation = activation;
+        copy.backgroundInterval = backgroundInterval;
+        copy.catchUp = catchUp;
+        if(recent != null) {
+            copy.recent = new double[recent.length][];
+            for(int i=0;i<recent.length;i++)
+                copy.recent[i] = recent[i].clone();
+        }
+        copy.lastSeen = lastSeen != null ? lastSeen.clone() : null;
+        copy.samples = samples;
+        return copy;
+    }
 
+    @Override
+    public long estimatedFootprintBytes() {
+        long bytes = super.estimatedFootprintBytes() + Footprints.of(guardians) + Footprints.of(featureChanges)
+                + Footprints.of(allFeatureMembers) + Footprints.of(scores) + Footprints.of(recent)
+                + Footprints.of(lastSeen);
+        for(UnivariateRealDetector guardian : guardians)
+            bytes += guardian.estimatedFootprintBytes();
+        if(membersByFeature != null) {
+            bytes += Footprints.of(membersByFeature);
+            for(int[] members : membersByFeature)
+                bytes += Footprints.of(members);
+        }
+        return bytes;
+    }
+
+    /**
+     * True if every member and every guardian supports snapshots.
+     */
+    @Override
+    public boolean supportsSnapshots() {
+        for(UnivariateRealDetector guardian : guardians)
+            if(!guardian.supportsSnapshots())
+                return false;
+        return super.supportsSnapshots();
+    }
+
+    @Override
+    public int snapshotSize() {
+        int bytes = super.snapshotSize() + Snapshots.HEADER_BYTES + nFeatures + 1 + Long.BYTES + 1;
+        for(UnivariateRealDetector guardian : guardians)
+            bytes += guardian.snapshotSize();
+        if(cascade) {
+            bytes += 1 + (lastSeen != null ? Integer.BYTES + Long.BYTES * lastSeen.length : 0);
+            bytes += Double.BYTES * recent.length * nFeatures;
+        }
+        return bytes;
+    }
+
+    @Override
+    public void writeSnapshot(ByteBuffer buffer) {
+        super.writeSnapshot(buffer);
+        Snapshots.writeHeader(buffer, this, SNAPSHOT_VERSION);
+        for(UnivariateRealDetector guardian : guardians)
+            guardian.writeSnapshot(buffer);
+        Snapshots.putBooleans(buffer, featureChanges, nFeatures);
+        Snapshots.putBoolean(buffer, scores != null);
+        buffer.putLong(samples);
+        Snapshots.putBoolean(buffer, cascade);
+        if(cascade) {
+            Snapshots.putBoolean(buffer, lastSeen != null);
+            if(lastSeen != null) {
+                buffer.putInt(lastSeen.length);
+                Snapshots.putLongs(buffer, lastSeen, lastSeen.length);
+            }
+            for(double[] row : recent)
+                Snapshots.putDoubles(buffer, row, 0, nFeatures);
+        }
+    }
+
+    @Override
+    public void readSnapshot(ByteBuffer buffer) {
+        super.readSnapshot(buffer);
+        Snapshots.readHeader(buffer, this, SNAPSHOT_VERSION);
+        for(UnivariateRealDetector guardian : guardians)
+            guardian.readSnapshot(buffer);
+        Snapshots.getBooleans(buffer, featureChanges, nFeatures);
+        if(Snapshots.getBoolean(buffer))
+            updateWeights();
+        else
+            scores = null;
+        samples = buffer.getLong();
+        boolean cascaded = Snapshots.getBoolean(buffer);
+        if(cascaded != cascade)
+            throw new IllegalArgumentException("Snapshot of an ensemble " + (cascaded ? "in" : "not in") + " cascade mode.");
+        if(cascade) {
+            lastSeen = Snapshots.getBoolean(buffer) ? new long[buffer.getInt()] : null;
+            if(lastSeen != null)
+                Snapshots.getLongs(buffer, lastSeen, lastSeen.length);
+            for(double[] row : recent)
+                Snapshots.getDoubles(buffer, row, 0, nFeatures);
+        }
+    }
+
+    @Override
+    public void update(double[] example) {
+        checkFeatures(example);
         super.update(example);
+    }
+
+    @Override
+    public int updateBatch(double[][] rows, int from, int to, boolean[] decisions) {
+        for(int i=from;i<to;i++) {
+            checkFeatures(rows[i]);
+        }
+        return super.updateBatch(rows, from, to, decisions);
+    }
+
+    /**
+     * Put the members behind the guardians, so that they are only tested while enough of their guardians signal
+     * change.
+     * @param activation
+     *          The number of a member's features whose guardians must signal change for it to be tested, at least 1.
+     * @param backgroundInterval
+     *          Every member is also tested once in this many samples, staggered between members, or never if 0.
+     * @param catchUp
+     *          The number of missed examples a member catches up on when it becomes active. To decide as if it had
+     *          been updated throughout, this should be at least the capacity of the member's windows.
+     */
+    public void enableCascade(int activation, int backgroundInterval, int catchUp) {
+        if(activation < 1)
+            throw new IllegalArgumentException("Activation must be at least one guardian.");
+        if(backgroundInterval < 0)
+            throw new IllegalArgumentException("Background interval must be non-negative.");
+        if(catchUp < 0)
+            throw new IllegalArgumentException("Catch-up must be non-negative.");
+        if(cascade)
+            disableCascade();
+
+        this.activation = activation;
+        this.backgroundInterval = backgroundInterval;
+        this.catchUp = catchUp;
+        this.recent = new double[catchUp + 1][nFeatures];
+        this.lastSeen = null;
+        this.cascade = true;
+    }
+
+    /**
+     * Update every member with every example again, after catching each up on the examples it missed.
+     */
+    public void disableCascade() {
+        if(!cascade)
+            return;
+        cascade = false;
+        for(int id=0;id<size();id++)
+            catchUp(id, samples);
+        recent = null;
+        lastSeen = null;
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        resetGuardians();
+    }
+
+    @Override
+    public void rearm() {
+        if(cascade) {
+            for(int id=0;id<size();id++)
+                catchUp(id, samples);
+        }
+        super.rearm();
+        resetGuardians();
+    }
+
+    private void resetGuardians() {
+        for(UnivariateRealDetector guardian : guardians)
+            guardian.reset();
+        Arrays.fill(featureChanges, false);
+        updateWeights();
+        lastSeen = null;
+    }
+
+    @Override
+    protected void beforeMembersUpdated(double[] example) {
+        samples++;
+        if(!cascade)
+            return;
+
+        System.arraycopy(example, 0, recent[(int)(samples % recent.length)], 0, nFeatures);
+        if(lastSeen == null || lastSeen.length != size()) {
+            long[] seen = new long[size()];
+            Arrays.fill(seen, samples - 1);
+            if(lastSeen != null)
+                System.arraycopy(lastSeen, 0, seen, 0, Math.min(lastSeen.length, seen.length));
+            lastSeen = seen;
+        }
+        updateGuardians(example);
+    }
+
+    @Override
+    protected boolean activate(int id) {
+        if(!cascade || !(getMember(id) instanceof MultivariateRealDetector))
+            return true;
+
+        boolean due = scores[id] >= activation
+                || (backgroundInterval > 0 && (samples + id) % backgroundInterval == 0);
+        if(!due)
+            return false;
+
+        catchUp(id, samples - 1);
+        lastSeen[id] = samples;
+        return true;
+    }
+
+    /**
+     * Window the examples a member missed, up to the catch-up bound, without testing them.
+     * @param through
+     *          The last sample to catch up on.
+     */
+    private void catchUp(int id, long through) {
+        if(lastSeen == null || id >= lastSeen.length || !(getMember(id) instanceof MultivariateRealDetector))
+            return;
+        MultivariateRealDetector member = (MultivariateRealDetector) getMember(id);
+        FeatureMapping mapping = getMapping(id);
+        for(long s=Math.max(lastSeen[id] + 1, through - catchUp + 1);s<=through;s++)
+            mapping.observe(recent[(int)(s % recent.length)], member);
+        lastSeen[id] = through;
+    }
+
+    @Override
+    protected void afterMembersUpdated(double[] example) {
+        if(!cascade)
+            updateGuardians(example);
+    }
+
+    /**
+     * A new member, or a member's new mapping, leaves the index and scores stale, so they are rebuilt before the
+     * guardians are next updated.
+     */
+    @Override
+    protected void membersChanged() {
+        scores = null;
+    }
+
+    private void updateGuardians(double[] example) {
+        if(scores == null)
+            updateWeights();
+
         for(int i=0;i<guardians.length;i++) {
             guardians[i].update(example[i]);
-            featureChanges[i] = guardians[i].isChangeDetected();
+            boolean changed = guardians[i].isChangeDetected();
+            if(changed != featureChanges[i]) {
+                featureChanges[i] = changed;
+                int delta = changed ? 1 : -1;
+                adjustScores(membersByFeature[i], delta);
+                adjustScores(allFeatureMembers, delta);
+            }
         }
+    }
 
-        updateWeights();
+    private void adjustScores(int[] members, int delta) {
+        for(int id : members) {
+            scores[id] += delta;
+            setWeight(id, (double)scores[id]);
+        }
     }
 
-    public void updateWeights() {
-        VotingScheme votingScheme = this.getVotingScheme();
+    /**
+     * @return
+     *          True if the guardian of the given feature signalled change on the last example.
+     */
+    protected boolean isFeatureChanged(int feature) {
+        return featureChanges[feature];
+    }
+
+    private void checkFeatures(double[] example) {
+        if(example.length != nFeatures)
+            throw new RuntimeException("You cannot change the number of features without recreating the ensemble.");
+    }
 
-        //Map<Detector, Double> scores = new HashMap<>();
+    /**
+     * Rebuild the feature index and recompute every member's weight from the current guardian decisions.
+     */
+    public void updateWeights() {
+        buildIndex();
+        scores = new int[size()];
 
-        for(Map.Entry<Detector, FeatureMapping> entry : this.detectors.entrySet()) {
-            FeatureMapping mapping = entry.getValue();
+        for(int id=0;id<size();id++) {
+            FeatureMapping mapping = getMapping(id);
 
             int score = 0;
             if(mapping.isAllFeatures) {
@@ -65,12 +393,43 @@ public class FeatureWeightedSubsetEnsemble extends MultivariateRealEnsemble {
                 }
             }
 
-            //scores.put(entry.getKey(), (double)score);
-            votingScheme.setWeight(entry.getKey(), (double)score);
+            scores[id] = score;
+            setWeight(id, (double)score);
         }
 
     }
 
+    private void buildIndex() {
+        int[] counts = new int[nFeatures];
+        int allFeatures = 0;
+        for(int id=0;id<size();id++) {
+            FeatureMapping mapping = getMapping(id);
+            if(mapping.isAllFeatures) {
+                allFeatures++;
+            } else {
+                for(int feature : mapping.getFeatures())
+                    counts[feature]++;
+            }
+        }
+
+        membersByFeature = new int[nFeatures][];
+        for(int i=0;i<nFeatures;i++)
+            membersByFeature[i] = new int[counts[i]];
+        allFeatureMembers = new int[allFeatures];
+
+        int[] filled = new int[nFeatures];
+        allFeatures = 0;
+        for(int id=0;id<size();id++) {
+            FeatureMapping mapping = getMapping(id);
+            if(mapping.isAllFeatures) {
+                allFeatureMembers[allFeatures++] = id;
+            } else {
+                for(int feature : mapping.getFeatures())
+                    membersByFeature[feature][filled[feature]++] = id;
+            }
+        }
+    }
+
     private static int countTrue(boolean[] input) {
         int trues = 0;
         for(int i=0;i<input.length;i++) {
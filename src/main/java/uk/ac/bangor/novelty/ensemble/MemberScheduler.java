@@ -0,0 +1,206 @@
+package uk.ac.bangor.novelty.ensemble;
+
+import uk.ac.bangor.novelty.util.Footprints;
+import lombok.Getter;
+
+import java.util.Arrays;
+
+/**
+ * Decides which members of an ensemble are updated with each example, so that the estimated cost of the updates stays
+ * within a per-sample budget, whatever the members.
+ *
+ * The cost of each member's update is measured as it runs, and estimated as a smoothed mean plus twice a smoothed
+ * mean absolute deviation, so that members with erratic costs are budgeted near their worst case. For each sample,
+ * members whose estimate is within an equal share of the budget run at full rate. The rest of the budget goes to the
+ * more expensive members in turn, starting after the last of them to run, so those which do not fit together are
+ * decimated in round-robin order. A member which has not run yet has no estimate, and runs so that it can be measured.
+ * The estimate of a deferred member decays a little with every sample, so that a member which was measured on a slow
+ * update, such as its first, is tried again once it would fit, rather than being held back on that measurement.
+ *
+ * A member which is not run carries its last decision forward, with its staleness: the number of samples since it
+ * last ran, which a {@link VotingScheme} can use to down-weight it (see
+ * {@link VotingScheme#recordDecision(int, boolean, int)}). A member which costs more than the whole budget would never
+ * fit, so one member which has been deferred for {@link #getMaxStaleness()} samples is run regardless on each sample;
+ * only those samples can exceed the budget.
+ */
+public class MemberScheduler {
+
+    private static final double SMOOTHING = 0.1;
+    private static final double DEFERRED_DECAY = 0.99;
+    private static final int DEFAULT_MAX_STALENESS = 1000;
+
+    /**
+     * The per-sample budget, in nanoseconds.
+     */
+    @Getter
+    private final long budget;
+    @Getter
+    private int maxStaleness = DEFAULT_MAX_STALENESS;
+
+    private double[] costs = new double[8];
+    private double[] deviations = new double[8];
+    private boolean[] measured = new boolean[8];
+    private boolean[] scheduled = new boolean[8];
+    private int[] staleness = new int[8];
+    private int size;
+    private int cursor;
+
+    /**
+     * @param budget
+     *          The per-sample budget for member updates, in nanoseconds.
+     */
+    public MemberScheduler(long budget) {
+        if(budget < 1)
+            throw new IllegalArgumentException("The budget must be at least one nanosecond.");
+        this.budget = budget;
+    }
+
+    /**
+     * @param maxStaleness
+     *          The number of samples a member can be deferred for before it is run regardless of the budget.
+     */
+    public void setMaxStaleness(int maxStaleness) {
+        if(maxStaleness < 1)
+            throw new IllegalArgumentException("Maximum staleness must be at least 1.");
+        this.maxStaleness = maxStaleness;
+    }
+
+    /**
+     * @return
+     *          A rough estimate of the heap this scheduler occupies, in bytes.
+     */
+    public long estimatedFootprintBytes() {
+        return Footprints.object(getClass()) + Footprints.of(costs) + Footprints.of(deviations)
+                + Footprints.of(measured) + Footprints.of(scheduled) + Footprints.of(staleness);
+    }
+
+    /**
+     * @return
+     *          A scheduler with the same budget, cost estimates and staleness, for a copy of the ensemble using this one.
+     */
+    public MemberScheduler copy() {
+        MemberScheduler copy = new MemberScheduler(budget);
+        copy.maxStaleness = maxStaleness;
+        copy.costs = costs.clone();
+        copy.deviations = deviations.clone();
+        copy.measured = measured.clone();
+        copy.scheduled = scheduled.clone();
+        copy.staleness = staleness.clone();
+        copy.size = size;
+        copy.cursor = cursor;
+        return copy;
+    }
+
+    /**
+     * Decide which members run for the next sample.
+     * @param members
+     *          The number of members, with ids 0 to members - 1. Members are added with increasing ids.
+     */
+    public void plan(int members) {
+        ensureCapacity(members);
+
+        double share = (double) budget / size;
+        double remaining = budget;
+        for(int id=0;id<size;id++) {
+            double cost = estimate(id);
+            scheduled[id] = cost <= share;
+            if(scheduled[id])
+                remaining -= cost;
+        }
+
+        boolean overdue = false;
+        int last = -1;
+        for(int k=0;k<size;k++) {
+            int id = (cursor + k) % size;
+            if(scheduled[id])
+                continue;
+            double cost = estimate(id);
+            if(cost <= remaining || (!overdue && staleness[id] >= maxStaleness)) {
+                overdue |= cost > remaining;
+                scheduled[id] = true;
+                remaining -= cost;
+                last = id;
+            }
+        }
+        if(last >= 0)
+            cursor = (last + 1) % size;
+
+        for(int id=0;id<size;id++) {
+            if(scheduled[id]) {
+                staleness[id] = 0;
+            } else {
+                staleness[id]++;
+                costs[id] *= DEFERRED_DECAY;
+                deviations[id] *= DEFERRED_DECAY;
+            }
+        }
+    }
+
+    /**
+     * Forget how long each member has been deferred, for an ensemble whose members have been reset. The cost estimates
+     * still hold, so they are kept.
+     */
+    public void reset() {
+        Arrays.fill(staleness, 0);
+        Arrays.fill(scheduled, false);
+    }
+
+    /**
+     * @return
+     *          True if the member runs for the sample last planned.
+     */
+    public boolean isScheduled(int id) {
+        return scheduled[id];
+    }
+
+    /**
+     * Record the measured cost of a member's update. Each member's cost is only recorded by the thread updating it.
+     * @param nanos
+     *          The time the update took, in nanoseconds.
+     */
+    public void record(int id, long nanos) {
+        if(!measured[id]) {
+            costs[id] = nanos;
+            deviations[id] = 0;
+            measured[id] = true;
+            return;
+        }
+        double error = nanos - costs[id];
+        costs[id] += SMOOTHING * error;
+        deviations[id] += SMOOTHING * (Math.abs(error) - deviations[id]);
+    }
+
+    /**
+     * @return
+     *          The number of samples since the member last ran, 0 if it runs for the sample last planned.
+     */
+    public int getStaleness(int id) {
+        return id < size ? staleness[id] : 0;
+    }
+
+    /**
+     * @return
+     *          The cost the member is budgeted at, in nanoseconds, or 0 if it has not been measured yet.
+     */
+    public double getEstimatedCost(int id) {
+        return id < size ? estimate(id) : 0;
+    }
+
+    private double estimate(int id) {
+        return measured[id] ? costs[id] + 2 * deviations[id] : 0;
+    }
+
+    private void ensureCapacity(int members) {
+        if(members > costs.length) {
+            int capacity = Math.max(members, costs.length * 2);
+            costs = Arrays.copyOf(costs, capacity);
+            deviations = Arrays.copyOf(deviations, capacity);
+            measured = Arrays.copyOf(measured, capacity);
+            scheduled = Arrays.copyOf(scheduled, capacity);
+            staleness = Arrays.copyOf(staleness, capacity);
+        }
+        size = members;
+        if(cursor >= size)
+            cursor = 0;
+    }
+}
@@ -0,0 +1,390 @@
+package uk.ac.bangor.novelty.ensemble;
+
+import uk.ac.bangor.novelty.MultivariateRealDetector;
+import uk.ac.bangor.novelty.util.Footprints;
+import uk.ac.bangor.novelty.util.Snapshots;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/**
+ * Stands in for a set of ensembles which differ only in their quorum, each of which is replaced with a fresh ensemble
+ * as soon as it detects change, and runs them all in one pass over the stream.
+ *
+ * Ensembles with the same members, started on the same example, vote identically for as long as they run, and only
+ * their final threshold differs. So the quorums are grouped into runs: one ensemble, built by the supplier, updated once
+ * per example, whose votes are tallied once by a {@link MultiQuorumScheme} and compared with the quorum of every group
+ * member. When quorums detect change, they leave their run, and those which detected on the same example start a
+ * fresh run together on the next one, built by the supplier. A run which no quorum follows any longer is dropped. Every
+ * quorum starts on the same run, and the lowest reaches its threshold first, so the stream is processed once, with only
+ * as many member updates as there are distinct reset points at any time.
+ *
+ * Two alternatives to a fresh run are opt-in. With {@link #setResetInPlace(boolean)}, runs no quorum follows any longer
+ * are set aside and {@link MultivariateRealEnsemble#reset()} to start the next fresh run, so the supplier is only asked
+ * for as many ensembles as there are quorums at most. This only gives the same results when the supplier builds the
+ * same ensemble every time. With {@link #setWarmRearm(boolean)}, the quorums which detected on a run carry on with it
+ * {@link MultivariateRealEnsemble#rearm() re-armed}, on a copy if other quorums still follow it.
+ *
+ * {@link #isChangeDetected()} is true when any quorum has detected change on the latest example, and
+ * {@link #isChangeDetected(int)} tells which. The quorums that detected are reset on the next update, so unlike other
+ * detectors this one should not be reset or replaced by its driver on detection.
+ *
+ * A copy or snapshot holds the runs in progress, and which quorums follow each. A snapshot is read back into a
+ * detector with the same quorums, whose supplier builds the same ensembles.
+ */
+public class MultiQuorumEnsemble implements MultivariateRealDetector {
+
+    private final double[] quorums;
+    private final Supplier<MultivariateRealEnsemble> ensembleSupplier;
+
+    // The run each quorum follows, or null if it is waiting for a fresh one, and that run's voting scheme.
+    private final MultivariateRealEnsemble[] runs;
+    private final MultiQuorumScheme[] schemes;
+    private final boolean[] decisions;
+
+    // Distinct runs, in the order they were started.
+    private MultivariateRealEnsemble[] active;
+    private int activeCount;
+    // Runs no quorum follows any longer, to be reset and reused if resetting in place.
+    private final MultivariateRealEnsemble[] spare;
+    private int spareCount;
+    private boolean change;
+
+    private boolean resetInPlace = false;
+    private boolean warmRearm = false;
+
+    private static final int SNAPSHOT_VERSION = 1;
+
+    /**
+     * @param quorums
+     *          Values between 0.0 and 1.0, one for each of the ensembles to stand in for.
+     * @param ensembleSupplier
+     *          Builds a new ensemble of fresh members. Its voting scheme is replaced.
+     */
+    public MultiQuorumEnsemble(double[] quorums, Supplier<MultivariateRealEnsemble> ensembleSupplier) {
+        MultiQuorumScheme.validate(quorums);
+        this.quorums = quorums.clone();
+        this.ensembleSupplier = ensembleSupplier;
+        this.runs = new MultivariateRealEnsemble[quorums.length];
+        this.schemes = new MultiQuorumScheme[quorums.length];
+        this.decisions = new boolean[quorums.length];
+        this.active = new MultivariateRealEnsemble[quorums.length];
+        this.spare = new MultivariateRealEnsemble[quorums.length];
+    }
+
+    @Override
+    public void update(double[] example) {
+        startRuns();
+
+        for(int r=0;r<activeCount;r++)
+            active[r].update(example);
+
+        change = false;
+        for(int q=0;q<quorums.length;q++) {
+            decisions[q] = schemes[q].isReached(q);
+            change |= decisions[q];
+        }
+
+        if(change)
+            resetDetected();
+    }
+
+    @Override
+    public boolean isChangeDetected() {
+        return change;
+    }
+
+    /**
+     * @param quorum
+     *          The index of a quorum, in the order they were given.
+     * @return
+     *          True if the ensemble at that quorum detected change on the latest example.
+     */
+    public boolean isChangeDetected(int quorum) {
+        return decisions[quorum];
+    }
+
+    /**
+     * @param resetInPlace
+     *          True to reset runs which are no longer followed and reuse them, rather than have the supplier build new
+     *          ones. False by default.
+     */
+    public void setResetInPlace(boolean resetInPlace) {
+        this.resetInPlace = resetInPlace;
+        if(!resetInPlace) {
+            Arrays.fill(spare, 0, spareCount, null);
+            spareCount = 0;
+        }
+    }
+
+    public boolean isResetInPlace() {
+        return resetInPlace;
+    }
+
+    /**
+     * @param warmRearm
+     *          True to have the quorums which detected carry on with their run re-armed, rather than start a fresh
+     *          one. False by default.
+     */
+    public void setWarmRearm(boolean warmRearm) {
+        this.warmRearm = warmRearm;
+    }
+
+    public boolean isWarmRearm() {
+        return warmRearm;
+    }
+
+    /**
+     * Put every quorum back on one fresh run, as at construction.
+     */
+    @Override
+    public void reset() {
+        for(int r=0;r<activeCount;r++)
+            setAside(active[r]);
+        Arrays.fill(active, 0, activeCount, null);
+        activeCount = 0;
+        Arrays.fill(runs, null);
+        Arrays.fill(schemes, null);
+        Arrays.fill(decisions, false);
+        change = false;
+    }
+
+    @Override
+    public MultiQuorumEnsemble copy() {
+        MultiQuorumEnsemble copy = new MultiQuorumEnsemble(quorums, ensembleSupplier);
+        copy.resetInPlace = resetInPlace;
+        copy.warmRearm = warmRearm;
+        for(int r=0;r<activeCount;r++) {
+            MultivariateRealEnsemble run = active[r].copy();
+            copy.active[copy.activeCount++] = run;
+            for(int q=0;q<quorums.length;q++) {
+                if(runs[q] == active[r]) {
+                    copy.runs[q] = run;
+                    copy.schemes[q] = (MultiQuorumScheme) run.getVotingScheme();
+                }
+            }
+        }
+        System.arraycopy(decisions, 0, copy.decisions, 0, decisions.length);
+        copy.change = change;
+        return copy;
+    }
+
+    /**
+     * Counts the runs in progress and those set aside for reuse.
+     */
+    @Override
+    public long estimatedFootprintBytes() {
+        long bytes = Footprints.object(getClass()) + Footprints.of(quorums) + Footprints.of(runs)
+                + Footprints.of(schemes) + Footprints.of(decisions) + Footprints.of(active) + Footprints.of(spare);
+        for(int r=0;r<activeCount;r++)
+            bytes += active[r].estimatedFootprintBytes();
+        for(int r=0;r<spareCount;r++)
+            bytes += spare[r].estimatedFootprintBytes();
+        return bytes;
+    }
+
+    /**
+     * True if every run in progress supports snapshots. Runs not yet started are assumed to, like those before them.
+     */
+    @Override
+    public boolean supportsSnapshots() {
+        for(int r=0;r<activeCount;r++)
+            if(!active[r].supportsSnapshots())
+                return false;
+        return true;
+    }
+
+    @Override
+    public int snapshotSize() {
+        int bytes = Snapshots.HEADER_BYTES + 2 * Integer.BYTES + Integer.BYTES * quorums.length + quorums.length + 1;
+        for(int r=0;r<activeCount;r++)
+            bytes += active[r].snapshotSize();
+        return bytes;
+    }
+
+    @Override
+    public void writeSnapshot(ByteBuffer buffer) {
+        Snapshots.writeHeader(buffer, this, SNAPSHOT_VERSION);
+        buffer.putInt(quorums.length);
+        buffer.putInt(activeCount);
+        for(int q=0;q<quorums.length;q++)
+            buffer.putInt(indexOf(runs[q]));
+        Snapshots.putBooleans(buffer, decisions, decisions.length);
+        Snapshots.putBoolean(buffer, change);
+        for(int r=0;r<activeCount;r++)
+            active[r].writeSnapshot(buffer);
+    }
+
+    @Override
+    public void readSnapshot(ByteBuffer buffer) {
+        Snapshots.readHeader(buffer, this, SNAPSHOT_VERSION);
+        Snapshots.checkEqual("quorums", quorums.length, buffer.getInt());
+        int runCount = buffer.getInt();
+        if(runCount < 0 || runCount > quorums.length)
+            throw new IllegalArgumentException("Snapshot has " + runCount + " runs for " + quorums.length + " quorums.");
+        int[] followed = new int[quorums.length];
+        Snapshots.getInts(buffer, followed, followed.length);
+
+        reset();
+        Snapshots.getBooleans(buffer, decisions, decisions.length);
+        change = Snapshots.getBoolean(buffer);
+        for(int r=0;r<runCount;r++) {
+            MultivariateRealEnsemble run = nextRun();
+            run.setVotingScheme(new MultiQuorumScheme(quorums));
+            run.readSnapshot(buffer);
+            active[activeCount++] = run;
+        }
+        for(int q=0;q<quorums.length;q++) {
+            if(followed[q] < 0)
+                continue;
+            runs[q] = active[followed[q]];
+            schemes[q] = (MultiQuorumScheme) runs[q].getVotingScheme();
+        }
+    }
+
+    /**
+     * @return
+     *          The number of quorums.
+     */
+    public int size() {
+        return quorums.length;
+    }
+
+    public double getQuorum(int quorum) {
+        return quorums[quorum];
+    }
+
+    /**
+     * @return
+     *          The number of distinct runs, each an ensemble which is updated with every example.
+     */
+    public int getRuns() {
+        return activeCount;
+    }
+
+    /**
+     * Examples are only passed whole to the members of the runs, so this depends on the ensembles the supplier builds,
+     * and is assumed to be true.
+     */
+    @Override
+    public boolean retainsExample() {
+        return true;
+    }
+
+    /**
+     * Give every quorum which is waiting for a run the same fresh one.
+     */
+    private void startRuns() {
+        MultivariateRealEnsemble fresh = null;
+        MultiQuorumScheme scheme = null;
+        for(int q=0;q<quorums.length;q++) {
+            if(runs[q] != null)
+                continue;
+            if(fresh == null) {
+                fresh = nextRun();
+                scheme = new MultiQuorumScheme(quorums);
+                fresh.setVotingScheme(scheme);
+                active[activeCount++] = fresh;
+            }
+            runs[q] = fresh;
+            schemes[q] = scheme;
+        }
+    }
+
+    private MultivariateRealEnsemble nextRun() {
+        if(spareCount == 0)
+            return ensembleSupplier.get();
+        MultivariateRealEnsemble run = spare[--spareCount];
+        spare[spareCount] = null;
+        run.reset();
+        return run;
+    }
+
+    /**
+     * Take the quorums which detected change off their runs, and set aside the runs which are no longer followed. When
+     * re-arming, the quorums are instead moved onto their run re-armed.
+     */
+    private void resetDetected() {
+        if(warmRearm) {
+            rearmDetected();
+            return;
+        }
+
+        for(int q=0;q<quorums.length;q++) {
+            if(decisions[q]) {
+                runs[q] = null;
+                schemes[q] = null;
+            }
+        }
+
+        int kept = 0;
+        for(int r=0;r<activeCount;r++) {
+            if(isFollowed(active[r]))
+                active[kept++] = active[r];
+            else
+                setAside(active[r]);
+        }
+        Arrays.fill(active, kept, activeCount, null);
+        activeCount = kept;
+    }
+
+    /**
+     * Re-arm each run some quorums detected on, in place if every quorum on it detected, or else on a copy which the
+     * quorums that detected move to.
+     */
+    private void rearmDetected() {
+        int started = activeCount;
+        for(int r=0;r<started;r++) {
+            MultivariateRealEnsemble run = active[r];
+            boolean detected = false;
+            boolean undetected = false;
+            for(int q=0;q<quorums.length;q++) {
+                if(runs[q] == run) {
+                    detected |= decisions[q];
+                    undetected |= !decisions[q];
+                }
+            }
+            if(!detected)
+                continue;
+            if(!undetected) {
+                run.rearm();
+                continue;
+            }
+
+            MultivariateRealEnsemble rearmed = run.copy();
+            rearmed.rearm();
+            MultiQuorumScheme scheme = (MultiQuorumScheme) rearmed.getVotingScheme();
+            active[activeCount++] = rearmed;
+            for(int q=0;q<quorums.length;q++) {
+                if(runs[q] == run && decisions[q]) {
+                    runs[q] = rearmed;
+                    schemes[q] = scheme;
+                }
+            }
+        }
+    }
+
+    /**
+     * Keep a run no quorum follows any longer for reuse, if resetting in place. No more runs can be needed at once than
+     * there are quorums, so once that many are spare, any more are dropped.
+     */
+    private void setAside(MultivariateRealEnsemble run) {
+        if(resetInPlace && spareCount < spare.length)
+            spare[spareCount++] = run;
+    }
+
+    private int indexOf(MultivariateRealEnsemble run) {
+        for(int r=0;r<activeCount;r++)
+            if(active[r] == run)
+                return r;
+        return -1;
+    }
+
+    private boolean isFollowed(MultivariateRealEnsemble run) {
+        for(MultivariateRealEnsemble followed : runs)
+            if(followed == run)
+                return true;
+        return false;
+    }
+}
@@ -0,0 +1,85 @@
+package uk.ac.bangor.novelty.ensemble;
+
+/**
+ * A quorum scheme which decides at several quorums at once, from one tally of the votes.
+ *
+ * {@link #getResult()} and {@link #getRecordedResult()} decide at the lowest of the quorums, so the scheme signals
+ * change when any quorum has been reached. The decision at each quorum is available from {@link #isReached(int)} and
+ * {@link #getRecordedResults(boolean[])}, after the decisions of the voters have been recorded or polled.
+ */
+public class MultiQuorumScheme extends QuorumScheme {
+
+    private final double[] quorums;
+
+    /**
+     * @param quorums
+     *              Values between 0.0 and 1.0, each the size of a quorum that must be achieved to signal an outcome.
+     */
+    public MultiQuorumScheme(double... quorums) {
+        super(lowest(quorums));
+        this.quorums = quorums.clone();
+    }
+
+    @Override
+    public MultiQuorumScheme copy() {
+        MultiQuorumScheme copy = new MultiQuorumScheme(quorums);
+        copy.setStalenessDecay(getStalenessDecay());
+        return copy;
+    }
+
+    /**
+     * @param quorum
+     *              The index of a quorum, in the order they were given.
+     * @return
+     *              True if the recorded votes in favour reach that quorum.
+     */
+    public boolean isReached(int quorum) {
+        return getVotesFor() / getWeightedTotal() >= quorums[quorum];
+    }
+
+    /**
+     * @param destination
+     *              Array of at least {@link #size()} elements, which receives the decision at each quorum.
+     * @return
+     *              The destination array.
+     */
+    public boolean[] getRecordedResults(boolean[] destination) {
+        for(int q=0;q<quorums.length;q++)
+            destination[q] = isReached(q);
+        return destination;
+    }
+
+    /**
+     * @return
+     *              The number of quorums.
+     */
+    public int size() {
+        return quorums.length;
+    }
+
+    public double getQuorum(int quorum) {
+        return quorums[quorum];
+    }
+
+    /**
+     * @throws IllegalArgumentException
+     *          If there are no quorums, or one is not between 0.0 and 1.0.
+     */
+    static void validate(double[] quorums) {
+        if(quorums.length == 0)
+            throw new IllegalArgumentException("At least one quorum is required.");
+        for(double quorum : quorums) {
+            if(quorum < 0 || quorum > 1.0) {
+                throw new IllegalArgumentException("Quorum value must be between 0.0 and 1.0.");
+            }
+        }
+    }
+
+    private static double lowest(double[] quorums) {
+        validate(quorums);
+        double lowest = quorums[0];
+        for(double quorum : quorums)
+            lowest = Math.min(lowest, quorum);
+        return lowest;
+    }
+}
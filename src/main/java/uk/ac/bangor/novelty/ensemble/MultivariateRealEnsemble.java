@@ -3,65 +3,614 @@ package uk.ac.bangor.novelty.ensemble;
 import uk.ac.bangor.novelty.Detector;
 import uk.ac.bangor.novelty.MultivariateRealDetector;
 import uk.ac.bangor.novelty.UnivariateRealDetector;
+import uk.ac.bangor.novelty.util.Footprints;
+import uk.ac.bangor.novelty.util.Snapshots;
+import uk.ac.bangor.novelty.windowing.SharedWindowStatistics;
 import lombok.Getter;
-import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * A flexible ensemble implementation which accepts univariate and multivariate voters.
+ *
+ * Members are held in dense arrays in the order they were added, and each member's id is its index. After the members
+ * have been updated with an example, their decisions are recorded with the voting scheme (see
+ * {@link VotingScheme#recordDecision(int, boolean)}), and the ensemble decision is taken from
+ * {@link VotingScheme#getRecordedResult()}, so a scheme which keeps a running tally need not ask every member again.
+ *
+ * By default the members are updated one after another on the calling thread. With {@link #setParallel(Executor, int)}
+ * they are split into a fixed number of partitions, each always holding the same members. The calling thread updates the
+ * first partition, and each of the others has a worker on the given executor, which stays on one of its threads and
+ * updates that partition with every example, so a member keeps to one thread for as long as examples keep coming. A
+ * worker leaves its thread after a second without an example, and another is started with the next. The ensemble
+ * waits for every partition before the voting scheme is consulted, and each member only ever sees its own examples in
+ * order, so the decisions are exactly those of the sequential mode. Members must not share mutable state with one
+ * another.
+ *
+ * Members may instead read their windows from {@link SharedWindowStatistics} held by the ensemble (see
+ * {@link #setSharedStatistics(SharedWindowStatistics)}), which are updated with each example before any member is, and
+ * only read by the members, so they are safe to share between partitions.
+ *
+ * With a latency budget (see {@link #setLatencyBudget(long)}), a {@link MemberScheduler} measures the cost of each
+ * member's updates, and decides for each example which members are updated, so that their estimated total cost stays
+ * within the budget. The others carry their last decision forward, and the voting scheme is told how stale it is. In
+ * parallel mode the budget is on the total time of the member updates across partitions, not the elapsed time.
+ *
+ * {@link #reset()} and {@link #rearm()} are passed on to every member, and to the shared statistics, and every member
+ * then takes part again with a vote against change. The members, the voting scheme and any scheduler cost estimates
+ * are kept.
+ *
+ * {@link #copy()} copies every member, with the shared statistics and scheduler, onto a copy of the voting scheme.
+ * Members are copied against the copy of the shared statistics (see {@link Detector#copy(SharedWindowStatistics)}),
+ * so those reading from them carry on reading from the copy. A snapshot holds the shared statistics and, for each member, its weight, whether
+ * it took part in the latest example and its own snapshot; it is read back into an ensemble built with the same members
+ * in the same order. The scheduler's cost estimates are not part of it.
  * @author Will Faithfull
  */
 @Slf4j
 public class MultivariateRealEnsemble implements MultivariateRealDetector {
 
-    Map<Detector, FeatureMapping> detectors;
-
     @Getter
-    @Setter
     VotingScheme votingScheme;
 
+    // Members, their mappings and voting weights, indexed by member id.
+    private final Map<Detector<?>, Integer> ids = new IdentityHashMap<>();
+    private Detector<?>[] members = new Detector<?>[8];
+    private FeatureMapping[] mappings = new FeatureMapping[8];
+    private double[] weights = new double[8];
+    private int size;
+
+    // Whether each member took part in the latest example (see activate), as those which did not vote against change.
+    private boolean[] participating = new boolean[8];
+
+    @Getter
+    private SharedWindowStatistics sharedStatistics;
+
+    @Getter
+    private MemberScheduler scheduler;
+
+    private Executor executor;
+    @Getter
+    private int partitions = 1;
+    private Partition[] partitionTasks;
+    // Handed from the calling thread to the workers with each example, and counted down by them as they finish it.
+    private double[] pendingExample;
+    private volatile Thread caller;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    private static final long WORKER_IDLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final int SNAPSHOT_VERSION = 1;
+
     public MultivariateRealEnsemble() {
         this(new QuorumScheme(0.5)); // simple majority
     }
 
     public MultivariateRealEnsemble(VotingScheme votingScheme) {
         this.votingScheme = votingScheme;
-        detectors = new HashMap<>();
+    }
+
+    /**
+     * Replace the voting scheme, registering every member with it under its id and current weight.
+     */
+    public void setVotingScheme(VotingScheme votingScheme) {
+        this.votingScheme = votingScheme;
+        for(int j=0;j<size;j++) {
+            votingScheme.setWeight(j, members[j], weights[j]);
+            votingScheme.recordDecision(j, members[j].isChangeDetected());
+        }
+    }
+
+    /**
+     * Update the members in parallel from now on.
+     * @param executor
+     *          Runs the workers of the partitions other than the first, which is updated on the calling thread. Each
+     *          worker holds a thread while examples keep coming, so the executor needs at least partitions - 1 threads
+     *          to spare, or the updates stall until a worker gives its thread up. A ForkJoinPool or a fixed thread
+     *          pool of that size is suitable.
+     * @param partitions
+     *          The number of partitions to split the members into. Each member stays in the same partition for as long
+     *          as the membership of the ensemble is unchanged.
+     */
+    public void setParallel(Executor executor, int partitions) {
+        if(executor == null)
+            throw new IllegalArgumentException("An executor is required for parallel updates.");
+        if(partitions < 1)
+            throw new IllegalArgumentException("There must be at least one partition.");
+        retirePartitions();
+        this.executor = executor;
+        this.partitions = partitions;
+    }
+
+    /**
+     * Update the members one after another on the calling thread, which is the default.
+     */
+    public void setSequential() {
+        retirePartitions();
+        this.executor = null;
+        this.partitions = 1;
+    }
+
+    public boolean isParallel() {
+        return executor != null;
+    }
+
+    /**
+     * Schedule the member updates to a per-example budget from now on.
+     * @param nanos
+     *          The budget for updating the members with each example, in nanoseconds.
+     */
+    public void setLatencyBudget(long nanos) {
+        this.scheduler = new MemberScheduler(nanos);
+    }
+
+    /**
+     * Update every member with every example, which is the default.
+     */
+    public void clearLatencyBudget() {
+        this.scheduler = null;
+    }
+
+    /**
+     * @param sharedStatistics
+     *          Window statistics over the full feature space, which the ensemble updates with each example before its
+     *          members, for members constructed on subspaces of them. Null if there are none.
+     */
+    public void setSharedStatistics(SharedWindowStatistics sharedStatistics) {
+        this.sharedStatistics = sharedStatistics;
     }
 
     @Override
     public void update(double[] example) {
 
         // Update all the detectors
-        for(Map.Entry<Detector, FeatureMapping> entry : detectors.entrySet()) {
-            FeatureMapping mapping = entry.getValue();
-            if(entry.getKey() instanceof UnivariateRealDetector) {
-                if(mapping.count() == 0 || mapping.count() > 1) {
-                    throw new RuntimeException("Illegal feature count for univariate detector: " + mapping.count());
-                }
+        updateShared(example);
+        beforeMembersUpdated(example);
+        updateMembers(example);
+        recordDecisions();
+
+        afterMembersUpdated(example);
+    }
+
+    @Override
+    public int updateBatch(double[][] rows, int from, int to, boolean[] decisions) {
+        for(int i=from;i<to;i++) {
+            double[] example = rows[i];
+            updateShared(example);
+            beforeMembersUpdated(example);
+            updateMembers(example);
+            recordDecisions();
+            afterMembersUpdated(example);
+
+            boolean detected = votingScheme.getRecordedResult();
+            if(decisions != null)
+                decisions[i] = detected;
+            if(detected)
+                return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public void reset() {
+        if(sharedStatistics != null)
+            sharedStatistics.reset();
+        for(int j=0;j<size;j++)
+            members[j].reset();
+        clearVotes();
+    }
+
+    @Override
+    public void rearm() {
+        if(sharedStatistics != null)
+            sharedStatistics.rearm();
+        for(int j=0;j<size;j++)
+            members[j].rearm();
+        clearVotes();
+    }
+
+    /**
+     * Subclasses with state of their own must override this, using {@link #copyTo(MultivariateRealEnsemble)}.
+     */
+    @Override
+    public MultivariateRealEnsemble copy() {
+        if(getClass() != MultivariateRealEnsemble.class)
+            throw new UnsupportedOperationException(getClass().getName() + " does not override copy().");
+        return copyTo(new MultivariateRealEnsemble(votingScheme.copy()));
+    }
+
+    /**
+     * Copy the members of this ensemble, with their mappings, weights and decisions, and the shared statistics,
+     * scheduler and parallel configuration, into a new ensemble with no members.
+     * @return
+     *          The copy.
+     */
+    protected <E extends MultivariateRealEnsemble> E copyTo(E copy) {
+        MultivariateRealEnsemble target = copy;
+        SharedWindowStatistics statistics = sharedStatistics != null ? sharedStatistics.copy() : null;
+        target.sharedStatistics = statistics;
+        for(int j=0;j<size;j++) {
+            Detector<?> memberCopy = statistics != null ? members[j].copy(statistics) : members[j].copy();
+            target.addDetectorWithWeight(memberCopy, mappings[j].copy(), weights[j]);
+            target.participating[j] = participating[j];
+        }
+        if(scheduler != null)
+            target.scheduler = scheduler.copy();
+        target.executor = executor;
+        target.partitions = partitions;
+        target.recordDecisions();
+        return copy;
+    }
+
+    /**
+     * Counts the members, with their mappings, the shared statistics and the scheduler. The voting scheme is counted
+     * approximately.
+     */
+    @Override
+    public long estimatedFootprintBytes() {
+        long bytes = Footprints.object(getClass()) + Footprints.of(members) + Footprints.of(mappings)
+                + Footprints.of(weights) + Footprints.of(participating)
+                // The id of each member in the identity map, and its vote in the scheme.
+                + size * (Footprints.object(32) + Footprints.object(24));
+        for(int j=0;j<size;j++)
+            bytes += members[j].estimatedFootprintBytes() + mappings[j].estimatedFootprintBytes();
+        if(sharedStatistics != null)
+            bytes += sharedStatistics.estimatedFootprintBytes();
+        if(scheduler != null)
+            bytes += scheduler.estimatedFootprintBytes();
+        return bytes;
+    }
+
+    /**
+     * True if every member supports snapshots.
+     */
+    @Override
+    public boolean supportsSnapshots() {
+        for(int j=0;j<size;j++)
+            if(!members[j].supportsSnapshots())
+                return false;
+        return true;
+    }
+
+    @Override
+    public int snapshotSize() {
+        int bytes = Snapshots.HEADER_BYTES + Integer.BYTES + 1;
+        if(sharedStatistics != null)
+            bytes += sharedStatistics.snapshotSize();
+        for(int j=0;j<size;j++)
+            bytes += Double.BYTES + 1 + members[j].snapshotSize();
+        return bytes;
+    }
+
+    @Override
+    public void writeSnapshot(ByteBuffer buffer) {
+        Snapshots.writeHeader(buffer, this, SNAPSHOT_VERSION);
+        buffer.putInt(size);
+        Snapshots.putBoolean(buffer, sharedStatistics != null);
+        if(sharedStatistics != null)
+            sharedStatistics.writeSnapshot(buffer);
+        for(int j=0;j<size;j++) {
+            buffer.putDouble(weights[j]);
+            Snapshots.putBoolean(buffer, participating[j]);
+            members[j].writeSnapshot(buffer);
+        }
+    }
+
+    @Override
+    public void readSnapshot(ByteBuffer buffer) {
+        Snapshots.readHeader(buffer, this, SNAPSHOT_VERSION);
+        Snapshots.checkEqual("members", size, buffer.getInt());
+        boolean shared = Snapshots.getBoolean(buffer);
+        if(shared != (sharedStatistics != null))
+            throw new IllegalArgumentException("Snapshot of an ensemble " + (shared ? "with" : "without") + " shared statistics.");
+        if(shared)
+            sharedStatistics.readSnapshot(buffer);
+        for(int j=0;j<size;j++) {
+            setWeight(j, buffer.getDouble());
+            participating[j] = Snapshots.getBoolean(buffer);
+            members[j].readSnapshot(buffer);
+        }
+        if(scheduler != null)
+            scheduler.reset();
+        recordDecisions();
+    }
+
+    private void clearVotes() {
+        if(scheduler != null)
+            scheduler.reset();
+        Arrays.fill(participating, 0, size, true);
+        for(int j=0;j<size;j++)
+            votingScheme.recordDecision(j, false, 0);
+    }
+
+    /**
+     * Called with each example before any member is updated with it.
+     * @param example
+     *          The example the members are about to be updated with.
+     */
+    protected void beforeMembersUpdated(double[] example) {
+    }
 
-                UnivariateRealDetector univariateRealDetector = (UnivariateRealDetector) entry.getKey();
-                univariateRealDetector.update(example[mapping.getFeatures()[0]]);
-            } else {
-                if(!mapping.isAllFeatures()) {
-                    if (mapping.count() == 0 || mapping.count() > example.length) {
-                        throw new RuntimeException("Illegal feature count for multivariate detector: " + mapping.count());
-                    }
+    /**
+     * Decide whether a member takes part in the current example, and prepare it to if need be. A member which does
+     * not take part is not updated, and votes against change. Called once per member per example, after
+     * {@link #beforeMembersUpdated(double[])}, and in parallel mode from the thread updating the member's partition.
+     * Members deferred by the scheduler are not asked.
+     *
+     * Every member takes part by default.
+     * @param id
+     *          The id of the member.
+     * @return
+     *          True if the member should be updated with the current example.
+     */
+    protected boolean activate(int id) {
+        return true;
+    }
+
+    /**
+     * Called once all the members have been updated with an example, and before the ensemble decision is made.
+     * @param example
+     *          The example the members were updated with.
+     */
+    protected void afterMembersUpdated(double[] example) {
+    }
+
+    private void updateShared(double[] example) {
+        if(sharedStatistics != null)
+            sharedStatistics.update(example);
+    }
+
+    private void recordDecisions() {
+        if(scheduler == null) {
+            for(int j=0;j<size;j++) {
+                votingScheme.recordDecision(j, participating[j] && members[j].isChangeDetected());
+            }
+            return;
+        }
+        for(int j=0;j<size;j++) {
+            votingScheme.recordDecision(j, participating[j] && members[j].isChangeDetected(), scheduler.getStaleness(j));
+        }
+    }
+
+    private void updateMembers(double[] example) {
+        if(scheduler != null)
+            scheduler.plan(size);
+
+        if(executor == null || size < 2) {
+            for(int j=0;j<size;j++) {
+                updateMember(j, example);
+            }
+            return;
+        }
+
+        if(partitionTasks == null) {
+            int n = Math.min(partitions, size);
+            partitionTasks = new Partition[n];
+            for(int p=0;p<n;p++)
+                partitionTasks[p] = new Partition(p * size / n, (p + 1) * size / n);
+        }
+
+        // Publishing the round publishes the example to the workers, and counting down publishes the updated members
+        // back to this thread.
+        pendingExample = example;
+        caller = Thread.currentThread();
+        pending.set(partitionTasks.length - 1);
+        failure.set(null);
+        for(int p=1;p<partitionTasks.length;p++)
+            partitionTasks[p].dispatch();
+        try {
+            partitionTasks[0].updateMembers();
+        } catch (Throwable t) {
+            // Still wait for the other partitions, so that no worker is left running against the members.
+            failure.compareAndSet(null, t);
+        }
+
+        boolean interrupted = false;
+        while(pending.get() > 0) {
+            LockSupport.park(this);
+            interrupted |= Thread.interrupted();
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+
+        Throwable cause = failure.get();
+        if(cause instanceof RuntimeException)
+            throw (RuntimeException) cause;
+        if(cause instanceof Error)
+            throw (Error) cause;
+        if(cause != null)
+            throw new RuntimeException(cause);
+    }
+
+    private void retirePartitions() {
+        if(partitionTasks == null)
+            return;
+        for(Partition partition : partitionTasks)
+            partition.retire();
+        partitionTasks = null;
+    }
+
+    /**
+     * A fixed range of members, updated together, by a worker which waits on the executor for each round.
+     */
+    private final class Partition implements Runnable {
+        private final int from;
+        private final int to;
+
+        // Rounds handed out by the calling thread, and those the worker has finished.
+        private volatile long round;
+        private long finished;
+        private volatile boolean retired;
+        // The thread of the latest worker, which may have finished, as unparking one which has is harmless.
+        private volatile Thread worker;
+        private final AtomicBoolean running = new AtomicBoolean();
+
+        Partition(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        void updateMembers() {
+            double[] example = pendingExample;
+            for(int j=from;j<to;j++) {
+                updateMember(j, example);
+            }
+        }
+
+        /**
+         * Hand the pending example to the worker, starting one if there is none.
+         */
+        void dispatch() {
+            round++;
+            if(running.get() || !running.compareAndSet(false, true)) {
+                LockSupport.unpark(worker);
+                return;
+            }
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                running.set(false);
+                finish();
+            }
+        }
+
+        void retire() {
+            retired = true;
+            LockSupport.unpark(worker);
+        }
+
+        @Override
+        public void run() {
+            worker = Thread.currentThread();
+            long idleSince = System.nanoTime();
+            while(!retired) {
+                if(finished < round) {
+                    finish();
+                    idleSince = System.nanoTime();
+                    continue;
+                }
+                if(System.nanoTime() - idleSince < WORKER_IDLE_NANOS) {
+                    LockSupport.parkNanos(this, WORKER_IDLE_NANOS);
+                    continue;
                 }
+                // Give the thread up, unless a round came in meanwhile, in which case whichever of this worker and
+                // the calling thread sets running again carries on.
+                running.set(false);
+                if(finished == round || !running.compareAndSet(false, true))
+                    break;
+            }
+        }
 
-                MultivariateRealDetector multivariateRealDetector = (MultivariateRealDetector) entry.getKey();
-                mapping.update(example, multivariateRealDetector); // Allow mapping to pass appropriate features
+        private void finish() {
+            finished = round;
+            try {
+                updateMembers();
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
             }
+            if(pending.decrementAndGet() == 0)
+                LockSupport.unpark(caller);
         }
+    }
 
+    private void updateMember(int id, double[] example) {
+        // A member the scheduler defers carries its last decision forward, including whether it took part.
+        if(scheduler != null && !scheduler.isScheduled(id))
+            return;
+        participating[id] = activate(id);
+        if(!participating[id])
+            return;
+        if(scheduler == null) {
+            updateMember(members[id], mappings[id], example);
+            return;
+        }
+        long start = System.nanoTime();
+        updateMember(members[id], mappings[id], example);
+        scheduler.record(id, System.nanoTime() - start);
+    }
+
+    private static void updateMember(Detector<?> detector, FeatureMapping mapping, double[] example) {
+        if(detector instanceof UnivariateRealDetector) {
+            if(mapping.count() == 0 || mapping.count() > 1) {
+                throw new RuntimeException("Illegal feature count for univariate detector: " + mapping.count());
+            }
+
+            UnivariateRealDetector univariateRealDetector = (UnivariateRealDetector) detector;
+            univariateRealDetector.update(example[mapping.getFeatures()[0]]);
+        } else {
+            if(!mapping.isAllFeatures()) {
+                if (mapping.count() == 0 || mapping.count() > example.length) {
+                    throw new RuntimeException("Illegal feature count for multivariate detector: " + mapping.count());
+                }
+            }
+
+            MultivariateRealDetector multivariateRealDetector = (MultivariateRealDetector) detector;
+            mapping.update(example, multivariateRealDetector); // Allow mapping to pass appropriate features
+        }
     }
 
     @Override
     public boolean isChangeDetected() {
-        return votingScheme.getResult();
+        return votingScheme.getRecordedResult();
+    }
+
+    /**
+     * The ensemble passes examples whole to the members which see all features, so it retains examples if any of them
+     * do. Members on a subset of the features, and univariate members, are handed copies.
+     */
+    @Override
+    public boolean retainsExample() {
+        for(int j=0;j<size;j++) {
+            if(mappings[j].isAllFeatures() && members[j].retainsExample())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return
+     *          The number of members.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Called whenever a member is added, or added again with a new mapping or weight, for subclasses which index the
+     * members.
+     */
+    protected void membersChanged() {}
+
+    protected Detector<?> getMember(int id) {
+        return members[id];
+    }
+
+    protected FeatureMapping getMapping(int id) {
+        return mappings[id];
+    }
+
+    protected double getWeight(int id) {
+        return weights[id];
+    }
+
+    /**
+     * Change the voting weight of a member.
+     */
+    protected void setWeight(int id, double weight) {
+        weights[id] = weight;
+        votingScheme.setWeight(id, members[id], weight);
     }
 
     public void addUnivariate(UnivariateRealDetector detector, int feature) {
@@ -88,12 +637,29 @@ public class MultivariateRealEnsemble implements MultivariateRealDetector {
         addDetectorWithWeight(detector, FeatureMapping.of(features), weight);
     }
 
-    private void addDetector(Detector detector, FeatureMapping mapping) {
+    private void addDetector(Detector<?> detector, FeatureMapping mapping) {
         addDetectorWithWeight(detector, mapping, 1.0);
     }
 
-    private void addDetectorWithWeight(Detector detector, FeatureMapping mapping, double weight) {
-        detectors.put(detector, mapping);
-        votingScheme.setWeight(detector, weight);
+    private void addDetectorWithWeight(Detector<?> detector, FeatureMapping mapping, double weight) {
+        // Adding a member twice replaces its mapping and weight.
+        Integer id = ids.get(detector);
+        if(id == null) {
+            if(size == members.length) {
+                members = Arrays.copyOf(members, size * 2);
+                mappings = Arrays.copyOf(mappings, size * 2);
+                weights = Arrays.copyOf(weights, size * 2);
+                participating = Arrays.copyOf(participating, size * 2);
+            }
+            id = size++;
+            ids.put(detector, id);
+            members[id] = detector;
+            participating[id] = true;
+        }
+        mappings[id] = mapping;
+        weights[id] = weight;
+        votingScheme.setWeight(id, detector, weight);
+        retirePartitions();
+        membersChanged();
     }
 }
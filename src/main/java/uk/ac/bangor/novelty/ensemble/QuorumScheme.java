@@ -4,27 +4,55 @@ import uk.ac.bangor.novelty.Detector;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.Map;
 
 /**
  * Represents a basic quorum scheme which can be configured to provide simple majority or weighted majority voting, to
  * various quorums.
  *
+ * Voters, their weights and their last known decisions are held in dense arrays indexed by voter id, and the weighted
+ * votes in favour are kept as a running tally, which only changes when a voter's decision or weight does. An ensemble
+ * which records every decision (see {@link #recordDecision(int, boolean)}) gets its result in constant time from
+ * {@link #getRecordedResult()}. {@link #getResult()} asks the voters in id order, but stops as soon as the quorum has
+ * been reached, or can no longer be reached; the votes of voters which were not asked are their last known decisions.
+ *
+ * With a staleness decay below one (see {@link #setStalenessDecay(double)}), a decision carried forward by a voter which
+ * has not been updated for s examples counts with its weight multiplied by decay^s, both for and in the total.
+ *
  * @author Will Faithfull
  */
 @Slf4j
 public class QuorumScheme implements VotingScheme {
 
-    Map<Detector,Double> voters = new HashMap<>();
+    private final Map<Detector<?>, Integer> ids = new IdentityHashMap<>();
+    private Detector<?>[] voters = new Detector<?>[8];
+    private double[] weights = new double[8];
+    private boolean[] decisions = new boolean[8];
+    // The factor each voter's weight is discounted by for the staleness of its decision.
+    private double[] factors = new double[8];
+    private int size;
+
+    @Getter
+    private double stalenessDecay = 1.0;
 
     @Getter
     double votesFor;
 
     @Getter
     double votesAgainst;
+
+    /**
+     * The total weight of the voters.
+     */
+    @Getter
+    private double weightedTotal;
     private double quorum;
 
+    // Changes to the running tallies since they were last summed from scratch.
+    private int tallyChanges;
+
     /**
      * Construct a voting scheme with the specified quorum
      * @param quorum
@@ -38,32 +66,137 @@ public class QuorumScheme implements VotingScheme {
         this.quorum = quorum;
     }
 
+    /**
+     * @param stalenessDecay
+     *              The factor, between 0.0 exclusive and 1.0, by which the weight of a stale decision is discounted for
+     *              each example since its voter was last updated. 1.0, the default, counts stale decisions in full.
+     */
+    public void setStalenessDecay(double stalenessDecay) {
+        if(!(stalenessDecay > 0) || stalenessDecay > 1.0)
+            throw new IllegalArgumentException("Staleness decay must be greater than 0.0 and at most 1.0.");
+        this.stalenessDecay = stalenessDecay;
+    }
+
+    @Override
+    public QuorumScheme copy() {
+        QuorumScheme copy = new QuorumScheme(quorum);
+        copy.stalenessDecay = stalenessDecay;
+        return copy;
+    }
+
     @Override
-    public void registerVoter(Detector voter) {
+    public void registerVoter(Detector<?> voter) {
         setWeight(voter, 1.0);
     }
 
     @Override
-    public void setWeight(Detector voter, double weight) {
-        voters.put(voter, weight);
+    public void setWeight(Detector<?> voter, double weight) {
+        Integer id = ids.get(voter);
+        setWeight(id == null ? size : id, voter, weight);
     }
 
     @Override
-    public boolean getResult() {
-        votesFor = 0;
-        double weightedTotal = 0;
-        for(Map.Entry<Detector, Double> entry : voters.entrySet()) {
-            Detector voter = entry.getKey();
-            Double weight = entry.getValue();
-            if(voter.isChangeDetected())
-                votesFor += weight;
+    public void setWeight(int id, Detector<?> voter, double weight) {
+        if(id < 0 || id > size)
+            throw new IllegalArgumentException("Voter ids must be dense, expected at most " + size + " but got " + id);
 
-            weightedTotal += weight;
+        if(id == size) {
+            if(size == voters.length) {
+                voters = Arrays.copyOf(voters, size * 2);
+                weights = Arrays.copyOf(weights, size * 2);
+                decisions = Arrays.copyOf(decisions, size * 2);
+                factors = Arrays.copyOf(factors, size * 2);
+            }
+            size++;
+            weights[id] = 0;
+            decisions[id] = false;
+            factors[id] = 1;
+        } else if(voters[id] != voter) {
+            ids.remove(voters[id]);
+        }
+        voters[id] = voter;
+        ids.put(voter, id);
+
+        if(weight == weights[id])
+            return;
+        double change = (weight - weights[id]) * factors[id];
+        weights[id] = weight;
+        weightedTotal += change;
+        if(decisions[id])
+            votesFor += change;
+        tallied();
+    }
+
+    @Override
+    public void recordDecision(int id, boolean decision) {
+        if(decisions[id] == decision)
+            return;
+        decisions[id] = decision;
+        double weight = weights[id] * factors[id];
+        votesFor += decision ? weight : -weight;
+        tallied();
+    }
+
+    @Override
+    public void recordDecision(int id, boolean decision, int staleness) {
+        double factor = staleness == 0 || stalenessDecay == 1.0 ? 1 : Math.pow(stalenessDecay, staleness);
+        if(factor != factors[id]) {
+            double change = weights[id] * (factor - factors[id]);
+            factors[id] = factor;
+            weightedTotal += change;
+            if(decisions[id])
+                votesFor += change;
+            tallied();
         }
+        recordDecision(id, decision);
+    }
 
+    @Override
+    public boolean getRecordedResult() {
         votesAgainst = weightedTotal - votesFor;
-        double percentage = votesFor / weightedTotal;
+        return reached(votesFor);
+    }
+
+    @Override
+    public boolean getResult() {
+        // The votes in favour lie between those of the voters asked so far, and that plus the weight of the voters which
+        // have not been asked yet.
+        double askedFor = 0;
+        double unasked = weightedTotal;
+        for(int i=0;i<size;i++) {
+            boolean decision = voters[i].isChangeDetected();
+            recordDecision(i, decision);
+            double weight = weights[i] * factors[i];
+            if(decision)
+                askedFor += weight;
+            unasked -= weight;
 
-        return percentage >= quorum;
+            if(reached(askedFor) || !reached(askedFor + unasked))
+                break;
+        }
+        votesAgainst = weightedTotal - votesFor;
+        return reached(askedFor);
+    }
+
+    private boolean reached(double votes) {
+        return votes / weightedTotal >= quorum;
+    }
+
+    /**
+     * Sum the tallies from scratch once they have changed as many times as there are voters, so that rounding errors in
+     * the running sums cannot accumulate, at an amortised constant cost.
+     */
+    private void tallied() {
+        if(++tallyChanges < size)
+            return;
+        tallyChanges = 0;
+        weightedTotal = 0;
+        votesFor = 0;
+        for(int i=0;i<size;i++) {
+            double weight = weights[i] * factors[i];
+            weightedTotal += weight;
+            if(decisions[i])
+                votesFor += weight;
+        }
     }
 }
@@ -15,7 +15,7 @@ public interface VotingScheme {
      * @param voter
      *              Unique detector with a vote.
      */
-    void registerVoter(Detector voter);
+    void registerVoter(Detector<?> voter);
 
     /**
      * Register a voter with this voting scheme with the specified voting weight.
@@ -24,7 +24,73 @@ public interface VotingScheme {
      * @param weight
      *              Double precision value representing the influence of this voter. Default 1.0.
      */
-    void setWeight(Detector voter, double weight);
+    void setWeight(Detector<?> voter, double weight);
+
+    /**
+     * Register a voter, or change its weight, under a dense id assigned by the ensemble. Ids run from 0 to the number
+     * of voters less one, and stay with the same voter.
+     *
+     * The default implementation ignores the id and delegates to {@link #setWeight(Detector, double)}.
+     * @param id
+     *              The id of the voter in the ensemble.
+     * @param voter
+     *              Unique detector with a vote.
+     * @param weight
+     *              Double precision value representing the influence of this voter.
+     */
+    default void setWeight(int id, Detector<?> voter, double weight) {
+        setWeight(voter, weight);
+    }
+
+    /**
+     * A scheme with the same configuration as this one, but no voters, for a copy of the ensemble using this one to
+     * register its members with (see {@link MultivariateRealEnsemble#copy()}).
+     *
+     * The default implementation throws UnsupportedOperationException.
+     */
+    default VotingScheme copy() {
+        throw new UnsupportedOperationException(getClass().getName() + " cannot be copied.");
+    }
+
+    /**
+     * Tell the scheme the decision of a voter after it has been updated, so that a scheme which keeps a running tally
+     * can maintain it without asking every voter. The default implementation does nothing.
+     * @param id
+     *              The id the voter was registered with, by {@link #setWeight(int, Detector, double)}.
+     * @param decision
+     *              The voter's decision on the latest example.
+     */
+    default void recordDecision(int id, boolean decision) {
+    }
+
+    /**
+     * Tell the scheme the decision of a voter which may not have been updated with the latest example, but carries its
+     * last decision forward (see {@link MemberScheduler}). A scheme may down-weight stale decisions.
+     *
+     * The default implementation ignores the staleness and delegates to {@link #recordDecision(int, boolean)}.
+     * @param id
+     *              The id the voter was registered with, by {@link #setWeight(int, Detector, double)}.
+     * @param decision
+     *              The voter's latest decision.
+     * @param staleness
+     *              The number of examples since the voter was last updated, 0 if it was updated with the latest.
+     */
+    default void recordDecision(int id, boolean decision, int staleness) {
+        recordDecision(id, decision);
+    }
+
+    /**
+     * Work out the result from the decisions given to {@link #recordDecision(int, boolean)}, without asking the voters.
+     * An ensemble which records the decision of every voter after every example can use this in place of
+     * {@link #getResult()}.
+     *
+     * The default implementation delegates to {@link #getResult()}.
+     * @return
+     *          The combined decision of the voters, according to the scheme.
+     */
+    default boolean getRecordedResult() {
+        return getResult();
+    }
 
     /**
      * Ask the voters for their decisions, apply the scheme, and work out the result.
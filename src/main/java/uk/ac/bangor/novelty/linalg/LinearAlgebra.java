@@ -0,0 +1,136 @@
+package uk.ac.bangor.novelty.linalg;
+
+/**
+ * Dense linear algebra kernels over flat, row-major double arrays.
+ *
+ * These exist for the detector hot paths, where building a commons-math RealMatrix for every observation (and a new
+ * matrix for every intermediate result) dominates the cost of the arithmetic. A d x d matrix is a double[] of at least
+ * d * d elements, with element (i, j) at i * d + j. Vectors may be read from an offset into a larger array, so that
+ * rows can be used where they are stored, for example in a {@link uk.ac.bangor.novelty.windowing.FlatWindowPair}.
+ * Nothing here allocates; results are written into arrays supplied by the caller.
+ */
+public final class LinearAlgebra {
+
+    private LinearAlgebra() {}
+
+    /**
+     * a += weight * (x - mean)(x - mean)'. Only the lower triangle of a is updated, so this is suitable for
+     * accumulating a symmetric scatter matrix, which should be completed with {@link #symmetrise(double[], int)}.
+     * @param a
+     *          The d x d matrix to accumulate into.
+     * @param d
+     *          The dimensionality.
+     * @param x
+     *          Array holding the observation.
+     * @param offset
+     *          Offset of the observation in x.
+     * @param mean
+     *          The mean to centre the observation on, or null for no centring.
+     * @param weight
+     *          The weight of the observation.
+     * @param scratch
+     *          Array of at least d elements, to hold the centred observation.
+     */
+    public static void addCentredOuter(double[] a, int d, double[] x, int offset, double[] mean, double weight, double[] scratch) {
+        for(int i=0;i<d;i++)
+            scratch[i] = mean == null ? x[offset + i] : x[offset + i] - mean[i];
+
+        for(int i=0;i<d;i++) {
+            double wi = weight * scratch[i];
+            int row = i * d;
+            for(int j=0;j<=i;j++)
+                a[row + j] += wi * scratch[j];
+        }
+    }
+
+    /**
+     * a += weight * u u', over the whole matrix.
+     */
+    public static void addOuter(double[] a, int d, double[] u, double weight) {
+        for(int i=0;i<d;i++) {
+            double wi = weight * u[i];
+            int row = i * d;
+            for(int j=0;j<d;j++)
+                a[row + j] += wi * u[j];
+        }
+    }
+
+    /**
+     * Copy the lower triangle of a into its upper triangle.
+     */
+    public static void symmetrise(double[] a, int d) {
+        for(int i=0;i<d;i++)
+            for(int j=0;j<i;j++)
+                a[j * d + i] = a[i * d + j];
+    }
+
+    /**
+     * y = a x
+     * @return
+     *          y
+     */
+    public static double[] multiply(double[] a, int d, double[] x, double[] y) {
+        for(int i=0;i<d;i++) {
+            double sum = 0;
+            int row = i * d;
+            for(int j=0;j<d;j++)
+                sum += a[row + j] * x[j];
+            y[i] = sum;
+        }
+        return y;
+    }
+
+    /**
+     * @return
+     *          x' a y
+     */
+    public static double quadraticForm(double[] a, int d, double[] x, double[] y) {
+        double result = 0;
+        for(int i=0;i<d;i++) {
+            double sum = 0;
+            int row = i * d;
+            for(int j=0;j<d;j++)
+                sum += a[row + j] * y[j];
+            result += x[i] * sum;
+        }
+        return result;
+    }
+
+    /**
+     * @return
+     *          x' y
+     */
+    public static double dot(double[] x, double[] y, int d) {
+        double result = 0;
+        for(int i=0;i<d;i++)
+            result += x[i] * y[i];
+        return result;
+    }
+
+    /**
+     * diff = x[offset..offset + d) - y
+     * @return
+     *          diff
+     */
+    public static double[] subtract(double[] x, int offset, double[] y, int d, double[] diff) {
+        for(int i=0;i<d;i++)
+            diff[i] = x[offset + i] - y[i];
+        return diff;
+    }
+
+    /**
+     * @return
+     *          The smallest element on the diagonal of a.
+     */
+    public static double minDiagonal(double[] a, int d) {
+        double min = Double.POSITIVE_INFINITY;
+        for(int i=0;i<d;i++)
+            min = Math.min(min, a[i * d + i]);
+        return min;
+    }
+
+    public static void fill(double[] a, int length, double value) {
+        for(int i=0;i<length;i++)
+            a[i] = value;
+    }
+}
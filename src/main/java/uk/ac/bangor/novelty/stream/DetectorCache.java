@@ -0,0 +1,353 @@
+package uk.ac.bangor.novelty.stream;
+
+import uk.ac.bangor.novelty.MultivariateRealDetector;
+import uk.ac.bangor.novelty.util.Snapshots;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * A {@link DetectorRegistry} which keeps the detectors it holds in memory within a budget.
+ *
+ * The cache tracks the estimated footprint of each detector (see
+ * {@link uk.ac.bangor.novelty.Detector#estimatedFootprintBytes()}), refreshing it every so many updates, and more often
+ * while the detector is new. When the total goes over the budget, the detectors of the streams updated least recently
+ * are spilled to the spill directory as snapshots, and dropped, until the total is back under nine tenths of the
+ * budget. The next example for a spilled stream has the factory build a new detector, reads the snapshot into it and
+ * deletes the file, so apart from the time taken, a stream's decisions are the same whether or not it was spilled.
+ * Detectors built by the factory for the same key must therefore accept each other's snapshots.
+ *
+ * The detectors which can be spilled are kept in order of their streams' last updates, so finding the next one to
+ * spill does not look at the others. A detector which does not support snapshots (see
+ * {@link uk.ac.bangor.novelty.Detector#supportsSnapshots()}) is never spilled, and counts towards the total without
+ * being a candidate, so when every detector in memory is of that kind the cache stays over the budget without trying
+ * to spill anything.
+ *
+ * Spilling is done by the spiller given to the constructor, one pass at a time, while updates carry on. By default that
+ * is whichever thread finds the total over the budget after an update. Spilling a detector takes its stream's lock.
+ * Spill files are only meant to outlive the cache if the process dies, and are not read again by a new cache.
+ * @param <K>
+ *              The stream key type.
+ */
+@Slf4j
+public class DetectorCache<K> extends DetectorRegistry<K> {
+
+    private static final int FOOTPRINT_INTERVAL = 256;
+
+    /**
+     * A stream's entry, with where its detector is kept and what it was last estimated to cost.
+     */
+    private static final class CachedEntry extends Entry {
+        final long serial;
+        long footprint;
+        int footprintInterval;
+        int untilFootprint;
+        // Whether the detector cannot be spilled.
+        boolean pinned;
+        boolean removed;
+        // Whether the entry is in the spill order, and its neighbours there, guarded by the order's lock.
+        boolean ordered;
+        CachedEntry older;
+        CachedEntry newer;
+
+        CachedEntry(MultivariateRealDetector detector, long serial) {
+            super(detector);
+            this.serial = serial;
+        }
+    }
+
+    @Getter
+    private final long budget;
+    private final long lowWater;
+    private final Path spillDirectory;
+
+    private final AtomicLong serials = new AtomicLong();
+    private final AtomicLong residentBytes = new AtomicLong();
+    private final AtomicInteger spilledCount = new AtomicInteger();
+    // The total footprint of the entries in the spill order.
+    private final AtomicLong spillableBytes = new AtomicLong();
+    private final Executor spiller;
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    // The resident detectors which can be spilled, from the least recently updated.
+    private final Object order = new Object();
+    private CachedEntry oldest;
+    private CachedEntry newest;
+
+    /**
+     * @param factory
+     *          Builds a new detector for the stream with the given key.
+     * @param budget
+     *          The total estimated footprint of the detectors to keep in memory, in bytes.
+     * @param spillDirectory
+     *          Where to write the snapshots of the detectors which are spilled, created if it does not exist.
+     */
+    public DetectorCache(Function<? super K, ? extends MultivariateRealDetector> factory, long budget, Path spillDirectory)
+            throws IOException {
+        this(factory, budget, spillDirectory, Runnable::run);
+    }
+
+    /**
+     * @param factory
+     *          Builds a new detector for the stream with the given key.
+     * @param budget
+     *          The total estimated footprint of the detectors to keep in memory, in bytes.
+     * @param spillDirectory
+     *          Where to write the snapshots of the detectors which are spilled, created if it does not exist.
+     * @param spiller
+     *          Runs the passes which spill detectors, so that the thread which finds the total over the budget does
+     *          not have to. It stays the caller's to shut down, after the last update.
+     */
+    public DetectorCache(Function<? super K, ? extends MultivariateRealDetector> factory, long budget, Path spillDirectory,
+            Executor spiller) throws IOException {
+        super(factory);
+        if(budget <= 0)
+            throw new IllegalArgumentException("Budget must be positive.");
+        this.budget = budget;
+        this.lowWater = budget - budget / 10;
+        this.spillDirectory = spillDirectory;
+        this.spiller = spiller;
+        Files.createDirectories(spillDirectory);
+    }
+
+    /**
+     * @return
+     *          The total estimated footprint of the detectors in memory, as last refreshed.
+     */
+    public long getResidentBytes() {
+        return residentBytes.get();
+    }
+
+    /**
+     * @return
+     *          The number of streams whose detectors are spilled.
+     */
+    public int getSpilledCount() {
+        return spilledCount.get();
+    }
+
+    @Override
+    Entry create(K key) {
+        CachedEntry entry = new CachedEntry(build(key), serials.getAndIncrement());
+        entry.pinned = !entry.detector.supportsSnapshots();
+        refreshFootprint(entry);
+        enqueue(entry);
+        return entry;
+    }
+
+    @Override
+    MultivariateRealDetector resident(K key, Entry e) {
+        CachedEntry entry = (CachedEntry) e;
+        if(entry.detector == null) {
+            if(entry.removed)
+                // The stream was removed while this update waited for it, so it goes to a detector nobody keeps.
+                entry.detector = build(key);
+            else
+                rehydrate(key, entry);
+        }
+        return entry.detector;
+    }
+
+    @Override
+    void updated(Entry e) {
+        CachedEntry entry = (CachedEntry) e;
+        if(entry.removed)
+            return;
+        if(--entry.untilFootprint <= 0)
+            refreshFootprint(entry);
+        touch(entry);
+    }
+
+    @Override
+    void afterUpdate() {
+        if(residentBytes.get() <= budget || spillableBytes.get() == 0 || !evicting.compareAndSet(false, true))
+            return;
+        try {
+            spiller.execute(this::evict);
+        } catch (RejectedExecutionException ex) {
+            evicting.set(false);
+            throw ex;
+        }
+    }
+
+    @Override
+    void removed(Entry e) {
+        CachedEntry entry = (CachedEntry) e;
+        synchronized (entry) {
+            entry.removed = true;
+            dequeue(entry);
+            if(entry.detector != null) {
+                residentBytes.addAndGet(-entry.footprint);
+            } else {
+                spilledCount.decrementAndGet();
+                try {
+                    Files.deleteIfExists(spillFile(entry));
+                } catch (IOException ex) {
+                    log.warn("Could not delete spill file {}.", spillFile(entry), ex);
+                }
+            }
+            entry.detector = null;
+        }
+    }
+
+    private void evict() {
+        boolean written;
+        do {
+            try {
+                written = spillOldest();
+            } finally {
+                evicting.set(false);
+            }
+            // Updates which found the total over the budget during the pass did not start another.
+        } while(written && residentBytes.get() > budget && spillableBytes.get() > 0
+                && evicting.compareAndSet(false, true));
+    }
+
+    /**
+     * Spill the least recently updated detectors until the total is back under nine tenths of the budget.
+     * @return
+     *          False if a detector could not be written.
+     */
+    private boolean spillOldest() {
+        while(residentBytes.get() > lowWater) {
+            CachedEntry entry;
+            synchronized (order) {
+                entry = oldest;
+            }
+            if(entry == null)
+                return true;
+            if(!spill(entry))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return
+     *          False if the detector could not be written, and stays in memory.
+     */
+    private boolean spill(CachedEntry entry) {
+        synchronized (entry) {
+            // It may have been updated, spilled or removed since it was the oldest.
+            if(entry.detector == null || !entry.ordered)
+                return true;
+
+            try {
+                Files.write(spillFile(entry), Snapshots.toBytes(entry.detector));
+            } catch (IOException ex) {
+                log.warn("Could not spill a detector to {}, so it stays in memory.", spillFile(entry), ex);
+                return false;
+            }
+            dequeue(entry);
+            entry.detector = null;
+            residentBytes.addAndGet(-entry.footprint);
+            entry.footprint = 0;
+            spilledCount.incrementAndGet();
+            return true;
+        }
+    }
+
+    private void rehydrate(K key, CachedEntry entry) {
+        Path file = spillFile(entry);
+        try {
+            entry.detector = Snapshots.restore(build(key), Files.readAllBytes(file));
+            Files.delete(file);
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Could not read the spilled detector from " + file + ".", ex);
+        }
+        spilledCount.decrementAndGet();
+        refreshFootprint(entry);
+        enqueue(entry);
+    }
+
+    private void refreshFootprint(CachedEntry entry) {
+        long footprint = entry.detector.estimatedFootprintBytes();
+        residentBytes.addAndGet(footprint - entry.footprint);
+        if(entry.ordered)
+            spillableBytes.addAndGet(footprint - entry.footprint);
+        entry.footprint = footprint;
+        // A new detector grows as its windows fill, so its footprint is refreshed often at first.
+        entry.footprintInterval = Math.min(FOOTPRINT_INTERVAL, 2 * entry.footprintInterval + 1);
+        entry.untilFootprint = entry.footprintInterval;
+    }
+
+    // The spill order is only changed under the entry's lock as well as its own, so an entry's place in it does not
+    // change while its lock is held.
+
+    /**
+     * Add a resident detector which can be spilled as the most recently updated.
+     */
+    private void enqueue(CachedEntry entry) {
+        if(entry.pinned)
+            return;
+        synchronized (order) {
+            link(entry);
+        }
+        spillableBytes.addAndGet(entry.footprint);
+    }
+
+    /**
+     * Take an entry out of the spill order, if it is in it.
+     */
+    private void dequeue(CachedEntry entry) {
+        if(!entry.ordered)
+            return;
+        synchronized (order) {
+            unlink(entry);
+        }
+        spillableBytes.addAndGet(-entry.footprint);
+    }
+
+    /**
+     * Make an entry in the spill order the most recently updated.
+     */
+    private void touch(CachedEntry entry) {
+        if(!entry.ordered)
+            return;
+        synchronized (order) {
+            if(newest == entry)
+                return;
+            unlink(entry);
+            link(entry);
+        }
+    }
+
+    private void link(CachedEntry entry) {
+        entry.older = newest;
+        entry.newer = null;
+        if(newest != null)
+            newest.newer = entry;
+        else
+            oldest = entry;
+        newest = entry;
+        entry.ordered = true;
+    }
+
+    private void unlink(CachedEntry entry) {
+        if(entry.older != null)
+            entry.older.newer = entry.newer;
+        else
+            oldest = entry.newer;
+        if(entry.newer != null)
+            entry.newer.older = entry.older;
+        else
+            newest = entry.older;
+        entry.older = null;
+        entry.newer = null;
+        entry.ordered = false;
+    }
+
+    private Path spillFile(CachedEntry entry) {
+        return spillDirectory.resolve("stream-" + entry.serial + ".snap");
+    }
+}
@@ -0,0 +1,205 @@
+package uk.ac.bangor.novelty.stream;
+
+import uk.ac.bangor.novelty.MultivariateRealDetector;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * One detector per stream, for many keyed streams updated concurrently.
+ *
+ * A stream's detector is built by the factory from its key on the stream's first example. Updates to the same stream
+ * are serialised on that stream's own lock, so any number of threads can update different streams at once, and threads
+ * updating the same stream take turns. Examples of one stream are processed in the order their updates acquire the
+ * lock, so a caller which needs them in stream order should update each stream from one thread at a time. Looking up
+ * a stream takes no lock, and neither does reading its latest decision.
+ *
+ * Examples are passed to the detectors as they are, so a caller may only reuse an example's storage if the detectors do
+ * not retain examples (see {@link uk.ac.bangor.novelty.Detector#retainsExample()}).
+ * @param <K>
+ *              The stream key type.
+ */
+public class DetectorRegistry<K> {
+
+    /**
+     * A stream's detector, whose monitor serialises its updates, and its latest decision.
+     */
+    static class Entry {
+        // Null while a subclass has the detector somewhere else.
+        MultivariateRealDetector detector;
+        volatile boolean change;
+
+        Entry(MultivariateRealDetector detector) {
+            this.detector = detector;
+        }
+    }
+
+    private final Function<? super K, ? extends MultivariateRealDetector> factory;
+    private final ConcurrentHashMap<K, Entry> streams = new ConcurrentHashMap<>();
+
+    /**
+     * @param factory
+     *          Builds a new detector for the stream with the given key.
+     */
+    public DetectorRegistry(Function<? super K, ? extends MultivariateRealDetector> factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Update the detector of a stream with its next example, building the detector if this is the stream's first.
+     * @return
+     *          True if the stream's detector detected change on the example.
+     */
+    public boolean update(K key, double[] example) {
+        Entry entry = entry(key);
+        boolean change;
+        synchronized (entry) {
+            MultivariateRealDetector detector = resident(key, entry);
+            detector.update(example);
+            change = detector.isChangeDetected();
+            entry.change = change;
+            updated(entry);
+        }
+        afterUpdate();
+        return change;
+    }
+
+    /**
+     * Update the detector of a stream with a block of its examples, under one acquisition of its lock. See
+     * {@link MultivariateRealDetector#updateBatch(double[][], int, int, boolean[])}.
+     * @return
+     *          The index of the row on which change was detected, or -1 if every row was processed without detecting
+     *          change.
+     */
+    public int updateBatch(K key, double[][] rows, int from, int to, boolean[] decisions) {
+        Entry entry = entry(key);
+        int detected;
+        synchronized (entry) {
+            MultivariateRealDetector detector = resident(key, entry);
+            detected = detector.updateBatch(rows, from, to, decisions);
+            entry.change = detector.isChangeDetected();
+            updated(entry);
+        }
+        afterUpdate();
+        return detected;
+    }
+
+    /**
+     * @return
+     *          True if the stream's detector detected change on its latest example, false if it did not or the stream
+     *          has no detector.
+     */
+    public boolean isChangeDetected(K key) {
+        Entry entry = streams.get(key);
+        return entry != null && entry.change;
+    }
+
+    /**
+     * Apply a function to the detector of a stream under its lock, for anything other than an update, such as
+     * resetting it after a detection or taking a snapshot. The detector must not be used after the function returns.
+     * @return
+     *          The result of the function, or null if the stream has no detector.
+     */
+    public <R> R withDetector(K key, Function<? super MultivariateRealDetector, R> function) {
+        Entry entry = streams.get(key);
+        if(entry == null)
+            return null;
+        R result;
+        synchronized (entry) {
+            MultivariateRealDetector detector = resident(key, entry);
+            result = function.apply(detector);
+            entry.change = detector.isChangeDetected();
+            updated(entry);
+        }
+        afterUpdate();
+        return result;
+    }
+
+    /**
+     * Forget a stream. A later example for it builds a new detector.
+     * @return
+     *          True if the stream had a detector.
+     */
+    public boolean remove(K key) {
+        Entry entry = streams.remove(key);
+        if(entry == null)
+            return false;
+        removed(entry);
+        return true;
+    }
+
+    /**
+     * @return
+     *          A live view of the keys of the streams with detectors.
+     */
+    public Set<K> keys() {
+        return streams.keySet();
+    }
+
+    /**
+     * @return
+     *          The number of streams with detectors.
+     */
+    public int size() {
+        return streams.size();
+    }
+
+    private Entry entry(K key) {
+        Entry entry = streams.get(key);
+        if(entry != null)
+            return entry;
+        // Only one detector is ever built for a key, however many threads see its first example.
+        return streams.computeIfAbsent(key, this::create);
+    }
+
+    /**
+     * @return
+     *          A new detector for the stream with the given key.
+     */
+    MultivariateRealDetector build(K key) {
+        return factory.apply(key);
+    }
+
+    /**
+     * @return
+     *          A live view of the entries of the streams with detectors.
+     */
+    Collection<Entry> entries() {
+        return streams.values();
+    }
+
+    // Extension points for subclasses which manage where the detectors are kept.
+
+    /**
+     * Called once for each new stream, inside the map's computation, so it must not touch other streams.
+     */
+    Entry create(K key) {
+        return new Entry(build(key));
+    }
+
+    /**
+     * Called under the entry's lock before its detector is used.
+     * @return
+     *          The detector, made resident if it was not.
+     */
+    MultivariateRealDetector resident(K key, Entry entry) {
+        return entry.detector;
+    }
+
+    /**
+     * Called under the entry's lock after its detector has been used.
+     */
+    void updated(Entry entry) {}
+
+    /**
+     * Called after an update or other use of a detector, once its lock has been released.
+     */
+    void afterUpdate() {}
+
+    /**
+     * Called once a stream's entry has been removed from the map.
+     */
+    void removed(Entry entry) {}
+}
@@ -1,5 +1,7 @@
 package uk.ac.bangor.novelty.util;
 
+import uk.ac.bangor.novelty.Detector;
+
 import java.io.*;
 
 /**
@@ -7,7 +9,13 @@ import java.io.*;
  */
 public class CopyUtils {
 
+    /**
+     * Copy an object with no shared mutable state. A detector is forked with {@link Detector#copy()}, which is far
+     * cheaper; anything else goes through serialization.
+     */
     public static <T> T deepCopy(T t, Class<T> clazz) throws IOException, ClassNotFoundException {
+        if(t instanceof Detector)
+            return clazz.cast(((Detector<?>) t).copy());
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         ObjectOutputStream oos = new ObjectOutputStream(bos);
         try {
@@ -0,0 +1,99 @@
+package uk.ac.bangor.novelty.util;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+/**
+ * Rough heap sizes of objects and arrays on a 64-bit JVM with compressed references, for estimating the footprint of a
+ * detector. Only the arrays which grow with the window sizes and dimensions matter much; an object's own fields are
+ * counted from its class, ignoring the padding between them.
+ */
+public final class Footprints {
+
+    private static final int OBJECT_HEADER = 12;
+    private static final int ARRAY_HEADER = 16;
+    private static final int REFERENCE = 4;
+
+    // The fields of a class are read once, so the sizes follow the classes as fields are added and removed.
+    private static final ClassValue<Long> INSTANCE_SIZES = new ClassValue<Long>() {
+        @Override
+        protected Long computeValue(Class<?> type) {
+            long fieldBytes = 0;
+            for(Class<?> c = type; c != null; c = c.getSuperclass())
+                for(Field field : c.getDeclaredFields())
+                    if(!Modifier.isStatic(field.getModifiers()))
+                        fieldBytes += fieldBytes(field.getType());
+            return align(OBJECT_HEADER + fieldBytes);
+        }
+    };
+
+    private Footprints() {}
+
+    /**
+     * @return
+     *          The size of an instance of the class, with the fields it declares and inherits, but not the objects they
+     *          refer to.
+     */
+    public static long object(Class<?> type) {
+        return INSTANCE_SIZES.get(type);
+    }
+
+    /**
+     * @param fieldBytes
+     *          The total size of the object's fields.
+     * @return
+     *          The size of an object with those fields.
+     */
+    public static long object(int fieldBytes) {
+        return align(OBJECT_HEADER + fieldBytes);
+    }
+
+    public static long of(double[] array) {
+        return array == null ? 0 : align(ARRAY_HEADER + (long) Double.BYTES * array.length);
+    }
+
+    public static long of(long[] array) {
+        return array == null ? 0 : align(ARRAY_HEADER + (long) Long.BYTES * array.length);
+    }
+
+    public static long of(int[] array) {
+        return array == null ? 0 : align(ARRAY_HEADER + (long) Integer.BYTES * array.length);
+    }
+
+    public static long of(boolean[] array) {
+        return array == null ? 0 : align(ARRAY_HEADER + (long) array.length);
+    }
+
+    /**
+     * @return
+     *          The size of the array of references alone, not of the objects referred to.
+     */
+    public static long of(Object[] array) {
+        return array == null ? 0 : align(ARRAY_HEADER + (long) REFERENCE * array.length);
+    }
+
+    public static long of(double[][] array) {
+        if(array == null)
+            return 0;
+        long bytes = of((Object[]) array);
+        for(double[] row : array)
+            bytes += of(row);
+        return bytes;
+    }
+
+    private static int fieldBytes(Class<?> type) {
+        if(type == long.class || type == double.class)
+            return Long.BYTES;
+        if(type == int.class || type == float.class)
+            return Integer.BYTES;
+        if(type == short.class || type == char.class)
+            return Short.BYTES;
+        if(type == byte.class || type == boolean.class)
+            return 1;
+        return REFERENCE;
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+}
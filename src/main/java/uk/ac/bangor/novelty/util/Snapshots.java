@@ -0,0 +1,125 @@
+package uk.ac.bangor.novelty.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The binary snapshot format of {@link Snapshottable} objects, and helpers for reading and writing it.
+ *
+ * A snapshot starts with a header of the hash of the writer's class name and the version of that class's format,
+ * followed by its state, with primitive arrays copied in bulk. The snapshot of a composite object, such as an ensemble,
+ * holds the snapshots of its parts in turn, each with its own header. Configuration, such as window sizes or
+ * thresholds, is not written: a snapshot is read back into an object constructed with the same configuration, and
+ * one which does not fit is rejected. Buffers are read and written in their own byte order.
+ */
+public final class Snapshots {
+
+    /**
+     * The size of the header at the start of every snapshot.
+     */
+    public static final int HEADER_BYTES = Integer.BYTES + Short.BYTES;
+
+    private Snapshots() {}
+
+    /**
+     * @return
+     *          A snapshot of the object's current state.
+     */
+    public static byte[] toBytes(Snapshottable snapshottable) {
+        ByteBuffer buffer = ByteBuffer.allocate(snapshottable.snapshotSize());
+        snapshottable.writeSnapshot(buffer);
+        if(buffer.hasRemaining())
+            throw new IllegalStateException("Snapshot of " + snapshottable.getClass().getName() + " is shorter than its size.");
+        return buffer.array();
+    }
+
+    /**
+     * Read a snapshot, as written by {@link #toBytes(Snapshottable)}, into an object.
+     * @return
+     *          The target.
+     */
+    public static <T extends Snapshottable> T restore(T target, byte[] snapshot) {
+        ByteBuffer buffer = ByteBuffer.wrap(snapshot);
+        target.readSnapshot(buffer);
+        if(buffer.hasRemaining())
+            throw new IllegalArgumentException("Snapshot has " + buffer.remaining() + " bytes left over.");
+        return target;
+    }
+
+    public static void writeHeader(ByteBuffer buffer, Object writer, int version) {
+        buffer.putInt(writer.getClass().getName().hashCode());
+        buffer.putShort((short) version);
+    }
+
+    /**
+     * Read a header, checking that it was written by an object of the same class as the reader, at a version the
+     * reader supports.
+     * @param version
+     *          The latest version the reader supports.
+     * @return
+     *          The version of the snapshot.
+     */
+    public static int readHeader(ByteBuffer buffer, Object reader, int version) {
+        if(buffer.getInt() != reader.getClass().getName().hashCode())
+            throw new IllegalArgumentException("Not a snapshot of " + reader.getClass().getName());
+        int found = buffer.getShort();
+        if(found < 1 || found > version)
+            throw new IllegalArgumentException("Unsupported version " + found + " of a snapshot of " + reader.getClass().getName());
+        return found;
+    }
+
+    /**
+     * Check a structural property of a snapshot, such as a window size, against the reader's configuration.
+     */
+    public static void checkEqual(String property, int expected, int found) {
+        if(expected != found)
+            throw new IllegalArgumentException("Snapshot has " + property + " " + found + ", expected " + expected);
+    }
+
+    public static void putBoolean(ByteBuffer buffer, boolean value) {
+        buffer.put(value ? (byte) 1 : (byte) 0);
+    }
+
+    public static boolean getBoolean(ByteBuffer buffer) {
+        return buffer.get() != 0;
+    }
+
+    public static void putBooleans(ByteBuffer buffer, boolean[] values, int length) {
+        for(int i=0;i<length;i++)
+            putBoolean(buffer, values[i]);
+    }
+
+    public static void getBooleans(ByteBuffer buffer, boolean[] destination, int length) {
+        for(int i=0;i<length;i++)
+            destination[i] = getBoolean(buffer);
+    }
+
+    public static void putDoubles(ByteBuffer buffer, double[] values, int offset, int length) {
+        buffer.asDoubleBuffer().put(values, offset, length);
+        buffer.position(buffer.position() + length * Double.BYTES);
+    }
+
+    public static void getDoubles(ByteBuffer buffer, double[] destination, int offset, int length) {
+        buffer.asDoubleBuffer().get(destination, offset, length);
+        buffer.position(buffer.position() + length * Double.BYTES);
+    }
+
+    public static void putInts(ByteBuffer buffer, int[] values, int length) {
+        buffer.asIntBuffer().put(values, 0, length);
+        buffer.position(buffer.position() + length * Integer.BYTES);
+    }
+
+    public static void getInts(ByteBuffer buffer, int[] destination, int length) {
+        buffer.asIntBuffer().get(destination, 0, length);
+        buffer.position(buffer.position() + length * Integer.BYTES);
+    }
+
+    public static void putLongs(ByteBuffer buffer, long[] values, int length) {
+        buffer.asLongBuffer().put(values, 0, length);
+        buffer.position(buffer.position() + length * Long.BYTES);
+    }
+
+    public static void getLongs(ByteBuffer buffer, long[] destination, int length) {
+        buffer.asLongBuffer().get(destination, 0, length);
+        buffer.position(buffer.position() + length * Long.BYTES);
+    }
+}
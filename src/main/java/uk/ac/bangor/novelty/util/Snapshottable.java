@@ -0,0 +1,33 @@
+package uk.ac.bangor.novelty.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An object whose state can be written to a compact binary snapshot, and read back into an object of the same type and
+ * configuration. See {@link Snapshots} for the format.
+ */
+public interface Snapshottable {
+
+    /**
+     * @return
+     *          The number of bytes {@link #writeSnapshot(ByteBuffer)} writes for the current state.
+     */
+    int snapshotSize();
+
+    /**
+     * Write the current state at the position of the buffer, advancing it.
+     * @param buffer
+     *          A buffer with at least {@link #snapshotSize()} bytes remaining.
+     */
+    void writeSnapshot(ByteBuffer buffer);
+
+    /**
+     * Replace the current state with the snapshot at the position of the buffer, advancing past it.
+     * @param buffer
+     *          A buffer holding a snapshot written by an object of the same type and configuration.
+     * @throws IllegalArgumentException
+     *          If the snapshot is of another type or an unsupported version, or does not fit the configuration of this
+     *          object.
+     */
+    void readSnapshot(ByteBuffer buffer);
+}
@@ -0,0 +1,190 @@
+package uk.ac.bangor.novelty.windowing;
+
+import uk.ac.bangor.novelty.util.Footprints;
+import uk.ac.bangor.novelty.util.Snapshots;
+import uk.ac.bangor.novelty.util.Snapshottable;
+
+import java.nio.ByteBuffer;
+import java.util.function.DoubleConsumer;
+
+/**
+ * A fixed size sliding window specialised for primitive doubles.
+ *
+ * Observations are held in a single ring buffer which is allocated once, at construction. Updating the window and
+ * reading from it never allocates or boxes; elements are addressed by their age, with index 0 being the oldest. The
+ * boxed {@link Window} methods are implemented for compatibility, but allocate.
+ *
+ * A snapshot holds the observations oldest first, and is read back into a window of the same capacity.
+ */
+public class FixedDoubleWindow implements Window<Double>, Snapshottable {
+
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private final double[] buffer;
+    private int start = 0;
+    private int size = 0;
+
+    public FixedDoubleWindow(int size) {
+        if(size < 1)
+            throw new IllegalArgumentException("Window size must be at least 1.");
+        this.buffer = new double[size];
+    }
+
+    /**
+     * Update the window with the new observation. If the window is full, the oldest observation is overwritten.
+     * @param observation
+     *                      The new observation
+     */
+    public void update(double observation) {
+        if(size == buffer.length) {
+            buffer[start] = observation;
+            start = next(start);
+        } else {
+            buffer[index(size)] = observation;
+            size++;
+        }
+    }
+
+    /**
+     * @return
+     *          An independent window with the same observations.
+     */
+    public FixedDoubleWindow copy() {
+        FixedDoubleWindow copy = new FixedDoubleWindow(buffer.length);
+        System.arraycopy(buffer, 0, copy.buffer, 0, buffer.length);
+        copy.start = start;
+        copy.size = size;
+        return copy;
+    }
+
+    public long estimatedFootprintBytes() {
+        return Footprints.object(getClass()) + Footprints.of(buffer);
+    }
+
+    @Override
+    public int snapshotSize() {
+        return Snapshots.HEADER_BYTES + 2 * Integer.BYTES + size * Double.BYTES;
+    }
+
+    @Override
+    public void writeSnapshot(ByteBuffer buffer) {
+        Snapshots.writeHeader(buffer, this, SNAPSHOT_VERSION);
+        buffer.putInt(this.buffer.length);
+        buffer.putInt(size);
+        int head = Math.min(size, this.buffer.length - start);
+        Snapshots.putDoubles(buffer, this.buffer, start, head);
+        Snapshots.putDoubles(buffer, this.buffer, 0, size - head);
+    }
+
+    @Override
+    public void readSnapshot(ByteBuffer buffer) {
+        Snapshots.readHeader(buffer, this, SNAPSHOT_VERSION);
+        Snapshots.checkEqual("capacity", this.buffer.length, buffer.getInt());
+        int size = buffer.getInt();
+        if(size < 0 || size > this.buffer.length)
+            throw new IllegalArgumentException("Snapshot has " + size + " observations, more than the capacity.");
+        Snapshots.getDoubles(buffer, this.buffer, 0, size);
+        this.start = 0;
+        this.size = size;
+    }
+
+    /**
+     * Empty the window, keeping its buffer.
+     */
+    public void clear() {
+        start = 0;
+        size = 0;
+    }
+
+    @Override
+    public void update(Double observation) {
+        update(observation.doubleValue());
+    }
+
+    /**
+     * Read an observation by age.
+     * @param index
+     *          0 for the oldest observation, up to {@link #size()} - 1 for the newest.
+     * @return
+     *          The observation.
+     */
+    public double get(int index) {
+        if(index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index " + index + " outside window of size " + size);
+        return buffer[index(index)];
+    }
+
+    public double getNewestValue() {
+        return get(size - 1);
+    }
+
+    public double getOldestValue() {
+        return get(0);
+    }
+
+    /**
+     * Visit every observation in the window, oldest first, directly from the ring buffer.
+     * @param visitor
+     *          Receives each observation.
+     */
+    public void forEach(DoubleConsumer visitor) {
+        int head = Math.min(size, buffer.length - start);
+        for(int i=start;i<start+head;i++)
+            visitor.accept(buffer[i]);
+        for(int i=0;i<size-head;i++)
+            visitor.accept(buffer[i]);
+    }
+
+    /**
+     * Copy the observations in the window, oldest first, into the supplied array.
+     * @param destination
+     *          Array with room for at least {@link #size()} elements from the offset.
+     * @param offset
+     *          Position in the destination of the oldest observation.
+     * @return
+     *          The destination array.
+     */
+    public double[] copyTo(double[] destination, int offset) {
+        int head = Math.min(size, buffer.length - start);
+        System.arraycopy(buffer, start, destination, offset, head);
+        System.arraycopy(buffer, 0, destination, offset + head, size - head);
+        return destination;
+    }
+
+    @Override
+    public Double[] getElements() {
+        Double[] elements = new Double[size];
+        for(int i=0;i<size;i++)
+            elements[i] = buffer[index(i)];
+        return elements;
+    }
+
+    @Override
+    public Double getNewest() {
+        return getNewestValue();
+    }
+
+    @Override
+    public Double getOldest() {
+        return getOldestValue();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int capacity() {
+        return buffer.length;
+    }
+
+    private int index(int age) {
+        int i = start + age;
+        return i < buffer.length ? i : i - buffer.length;
+    }
+
+    private int next(int i) {
+        return ++i == buffer.length ? 0 : i;
+    }
+}
@@ -0,0 +1,395 @@
+package uk.ac.bangor.novelty.windowing;
+
+import uk.ac.bangor.novelty.util.Footprints;
+import uk.ac.bangor.novelty.util.Snapshots;
+import uk.ac.bangor.novelty.util.Snapshottable;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A pair of sliding windows over real valued vectors, with W1 holding the oldest observations and W2 the newest, as
+ * {@link FixedWindowPair}, but backed by a single contiguous row-major ring of capacity * d doubles.
+ *
+ * Observations are copied into the ring on {@link #update(double[])}, so the caller is free to reuse the example array.
+ * W1 and W2 are not separate queues - they are two ranges of the same ring, and the boundary between them is an index.
+ * Moving an observation from W2 to W1 therefore costs nothing. {@link #getWindow1()} and {@link #getWindow2()} return
+ * views which read straight from the ring. Rows are addressed by age, with row 0 being the oldest, and each row is
+ * stored contiguously from {@link View#offset(int)} in {@link #getData()}.
+ *
+ * The dimensionality is fixed by the first observation, unless given at construction.
+ *
+ * A snapshot holds the dimensionality and the rows oldest first, and is read back into a pair with the same window
+ * sizes, taking on the dimensionality of the snapshot.
+ */
+public class FlatWindowPair implements Window<double[]>, Snapshottable {
+
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private final int size1;
+    private final int size2;
+    private final int capacity;
+    private final View window1 = new View(true);
+    private final View window2 = new View(false);
+
+    private int d;
+    private double[] data;
+    private int start = 0;
+    private int size = 0;
+
+    public FlatWindowPair(int size1, int size2) {
+        if(size1 < 1 || size2 < 1)
+            throw new IllegalArgumentException("Window sizes must be at least 1.");
+        this.size1 = size1;
+        this.size2 = size2;
+        this.capacity = size1 + size2;
+    }
+
+    public FlatWindowPair(int size1, int size2, int dimensions) {
+        this(size1, size2);
+        allocate(dimensions);
+    }
+
+    /**
+     * W2 is updated with the latest observations. When W2 is full, its oldest element moves into W1, and when W1 is
+     * also full its oldest element is discarded.
+     *
+     * @param observation
+     *          A new observation, which is copied into the window.
+     * @see FixedWindowPair#update(Object)
+     */
+    @Override
+    public void update(double[] observation) {
+        if(data == null)
+            allocate(observation.length);
+        if(observation.length != d)
+            throw new IllegalArgumentException("Expected an observation of " + d + " features, got " + observation.length);
+
+        int slot;
+        if(size == capacity) {
+            slot = start;
+            start = start + 1 == capacity ? 0 : start + 1;
+        } else {
+            slot = slot(size++);
+        }
+        System.arraycopy(observation, 0, data, slot * d, d);
+    }
+
+    /**
+     * @return
+     *          An independent pair with the same window sizes and observations.
+     */
+    public FlatWindowPair copy() {
+        FlatWindowPair copy = new FlatWindowPair(size1, size2);
+        if(data != null) {
+            copy.d = d;
+            copy.data = data.clone();
+        }
+        copy.start = start;
+        copy.size = size;
+        return copy;
+    }
+
+    public long estimatedFootprintBytes() {
+        return Footprints.object(getClass()) + Footprints.of(data);
+    }
+
+    @Override
+    public int snapshotSize() {
+        return Snapshots.HEADER_BYTES + 4 * Integer.BYTES + size * d * Double.BYTES;
+    }
+
+    @Override
+    public void writeSnapshot(ByteBuffer buffer) {
+        Snapshots.writeHeader(buffer, this, SNAPSHOT_VERSION);
+        buffer.putInt(size1);
+        buffer.putInt(size2);
+        buffer.putInt(d);
+        buffer.putInt(size);
+        if(size == 0)
+            return;
+        int head = Math.min(size, capacity - start);
+        Snapshots.putDoubles(buffer, data, start * d, head * d);
+        Snapshots.putDoubles(buffer, data, 0, (size - head) * d);
+    }
+
+    @Override
+    public void readSnapshot(ByteBuffer buffer) {
+        Snapshots.readHeader(buffer, this, SNAPSHOT_VERSION);
+        Snapshots.checkEqual("W1 size", size1, buffer.getInt());
+        Snapshots.checkEqual("W2 size", size2, buffer.getInt());
+        int dimensions = buffer.getInt();
+        int size = buffer.getInt();
+        if(size < 0 || size > capacity)
+            throw new IllegalArgumentException("Snapshot has " + size + " observations, more than the capacity.");
+        if(dimensions > 0 && dimensions != d)
+            allocate(dimensions);
+        if(size > 0)
+            Snapshots.getDoubles(buffer, data, 0, size * d);
+        this.start = 0;
+        this.size = size;
+    }
+
+    /**
+     * Empty both windows, keeping the backing ring and the dimensionality.
+     */
+    public void clear() {
+        start = 0;
+        size = 0;
+    }
+
+    /**
+     * Discard the observations in W1, keeping those in W2. W2 fills first, so the kept observations stay in W2 until
+     * newer ones push them into W1, and the pair is full again after as many updates as W1 holds. Costs nothing, as
+     * the boundary of the ring just moves.
+     */
+    public void clearWindow1() {
+        int split = split();
+        start = slot(split);
+        size -= split;
+    }
+
+    /**
+     * @return
+     *          The backing ring, which should be treated as read-only. Null until the first observation is seen, unless
+     *          the dimensionality was given at construction.
+     */
+    public double[] getData() {
+        return data;
+    }
+
+    /**
+     * @return
+     *          The dimensionality of the observations, or 0 if it is not yet known.
+     */
+    public int getDimensions() {
+        return d;
+    }
+
+    /**
+     * @return
+     *          A view of W1, the older observations.
+     */
+    public View getWindow1() {
+        return window1;
+    }
+
+    /**
+     * @return
+     *          A view of W2, the newer observations.
+     */
+    public View getWindow2() {
+        return window2;
+    }
+
+    /**
+     * @param row
+     *          The age of an observation in the pair, 0 being the oldest.
+     * @return
+     *          The offset of the observation in {@link #getData()}.
+     */
+    public int offset(int row) {
+        return slot(row) * d;
+    }
+
+    public double get(int row, int column) {
+        return data[offset(row) + column];
+    }
+
+    @Override
+    public double[][] getElements() {
+        return copyRows(0, size);
+    }
+
+    @Override
+    public double[] getNewest() {
+        return copyRow(size - 1);
+    }
+
+    @Override
+    public double[] getOldest() {
+        return copyRow(0);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Index of the first W2 row. W2 fills first, so W1 is empty until W2 is full.
+     */
+    private int split() {
+        return Math.max(0, size - size2);
+    }
+
+    private int slot(int row) {
+        int slot = start + row;
+        return slot < capacity ? slot : slot - capacity;
+    }
+
+    private void allocate(int dimensions) {
+        if(dimensions < 1)
+            throw new IllegalArgumentException("Observations must have at least one feature.");
+        this.d = dimensions;
+        this.data = new double[capacity * dimensions];
+    }
+
+    private double[] copyRow(int row) {
+        if(row < 0 || row >= size)
+            throw new IndexOutOfBoundsException("Row " + row + " outside window of size " + size);
+        int offset = offset(row);
+        return Arrays.copyOfRange(data, offset, offset + d);
+    }
+
+    private double[][] copyRows(int from, int to) {
+        double[][] rows = new double[to - from][];
+        for(int i=from;i<to;i++)
+            rows[i - from] = copyRow(i);
+        return rows;
+    }
+
+    /**
+     * A read-only view of one of the two windows, reading directly from the shared ring. Rows are addressed by age
+     * within the window, with row 0 being the oldest.
+     */
+    public class View implements Window<double[]> {
+
+        private final boolean first;
+
+        private View(boolean first) {
+            this.first = first;
+        }
+
+        private int base() {
+            return first ? 0 : split();
+        }
+
+        /**
+         * @param row
+         *          The age of an observation within this window, 0 being the oldest.
+         * @return
+         *          The offset of the observation in {@link #getData()}.
+         */
+        public int offset(int row) {
+            return FlatWindowPair.this.offset(base() + row);
+        }
+
+        public double get(int row, int column) {
+            return data[offset(row) + column];
+        }
+
+        /**
+         * @return
+         *          The backing ring of the pair, which should be treated as read-only.
+         */
+        public double[] getData() {
+            return data;
+        }
+
+        public int getDimensions() {
+            return d;
+        }
+
+        /**
+         * Copy one observation out of the window into the supplied array.
+         * @param row
+         *          The age of an observation within this window, 0 being the oldest.
+         * @param destination
+         *          Array of at least {@link #getDimensions()} elements.
+         * @return
+         *          The destination array.
+         */
+        public double[] copyRow(int row, double[] destination) {
+            System.arraycopy(data, offset(row), destination, 0, d);
+            return destination;
+        }
+
+        /**
+         * Column means of the window, with the same correction term as
+         * {@link org.apache.commons.math3.stat.StatUtils#mean}.
+         * @param destination
+         *          Array of at least {@link #getDimensions()} elements.
+         * @return
+         *          The destination array.
+         */
+        public double[] colMean(double[] destination) {
+            int n = size();
+            for(int c=0;c<d;c++) {
+                double sum = 0;
+                for(int r=0;r<n;r++)
+                    sum += data[offset(r) + c];
+                double xbar = sum / n;
+
+                double correction = 0;
+                for(int r=0;r<n;r++)
+                    correction += data[offset(r) + c] - xbar;
+                destination[c] = xbar + (correction / n);
+            }
+            return destination;
+        }
+
+        /**
+         * Bias corrected sample covariance of the window, as
+         * {@link org.apache.commons.math3.stat.correlation.Covariance}.
+         * @param mean
+         *          The column means of the window, from {@link #colMean(double[])}.
+         * @param destination
+         *          A d x d array to receive the covariance matrix.
+         * @return
+         *          The destination array.
+         */
+        public double[][] covariance(double[] mean, double[][] destination) {
+            int n = size();
+            for(int i=0;i<d;i++) {
+                for(int j=0;j<=i;j++) {
+                    double sum = 0;
+                    for(int r=0;r<n;r++) {
+                        int offset = offset(r);
+                        sum += (data[offset + i] - mean[i]) * (data[offset + j] - mean[j]);
+                    }
+                    destination[i][j] = destination[j][i] = sum / (n - 1);
+                }
+            }
+            return destination;
+        }
+
+        @Override
+        public double[][] getElements() {
+            return copyRows(base(), base() + size());
+        }
+
+        @Override
+        public double[] getNewest() {
+            return FlatWindowPair.this.copyRow(base() + size() - 1);
+        }
+
+        @Override
+        public double[] getOldest() {
+            return FlatWindowPair.this.copyRow(base());
+        }
+
+        /**
+         * Views cannot be updated directly - update the pair.
+         */
+        @Override
+        public void update(double[] observation) {
+            throw new UnsupportedOperationException("Update the window pair, not one of its windows.");
+        }
+
+        @Override
+        public int size() {
+            return first ? split() : size - split();
+        }
+
+        @Override
+        public int capacity() {
+            return first ? size1 : size2;
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package uk.ac.bangor.novelty.windowing;
+
+import uk.ac.bangor.novelty.util.Footprints;
+import uk.ac.bangor.novelty.util.Snapshots;
+import uk.ac.bangor.novelty.util.Snapshottable;
+import lombok.Getter;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * One window pair over the full feature space, with the sums and scatter of each window maintained incrementally, to
+ * be shared by detectors which each look at a subspace of the features.
+ *
+ * Detectors register the features they look at with {@link #subspace(int...)}, and read their window means and pooled
+ * covariance from the returned {@link Subspace} by index selection, instead of keeping windows of their own and
+ * scanning them for every sample. Only the entries of the scatter matrices which some registered subspace needs are
+ * kept, so overlapping subspaces share entries, and the cost of an update is O(d + p) for d features and p distinct
+ * feature pairs across all the subspaces.
+ *
+ * Each update changes the window statistics by a handful of rank-one terms: the evicted observation leaves W1, the
+ * oldest observation of W2 moves into W1 and the new one joins W2. The sums and scatter are taken about an anchor near
+ * the data, and recomputed from the windows every {@link #getRefreshInterval()} updates, which bounds the accumulated
+ * rounding error, and on the update after a new subspace is registered.
+ *
+ * The statistics must be updated with each example before any detector reads them, and are read-only in between, so
+ * detectors on the same statistics may be updated concurrently.
+ *
+ * A snapshot holds only the window pair; the statistics are recomputed from it on the next update. It is read back into
+ * statistics with the same subspaces registered.
+ */
+public class SharedWindowStatistics implements Snapshottable {
+
+    private static final int DEFAULT_REFRESH_INTERVAL = 1000;
+    private static final int SNAPSHOT_VERSION = 1;
+
+    @Getter
+    private final FlatWindowPair windowPair;
+    @Getter
+    private int refreshInterval = DEFAULT_REFRESH_INTERVAL;
+
+    // Distinct feature pairs (i >= j) needed by the registered subspaces, and the index of each in the scatter arrays.
+    private final Map<Long, Integer> pairIndex = new HashMap<>();
+    private int[] pairRows = new int[16];
+    private int[] pairColumns = new int[16];
+    private int pairs;
+    private int maxFeature = -1;
+
+    private int d;
+    private double[] anchor;
+    private double[] sumW1;
+    private double[] sumW2;
+    private double[] scatterW1 = new double[16];
+    private double[] scatterW2 = new double[16];
+    private double[] evicted;
+    private double[] anchored;
+    private boolean stale = true;
+    private int sinceRefresh;
+
+    public SharedWindowStatistics(int size1, int size2) {
+        this(new FlatWindowPair(size1, size2));
+    }
+
+    /**
+     * @param windowPair
+     *          An empty window pair, which from now on should only be updated through these statistics.
+     */
+    public SharedWindowStatistics(FlatWindowPair windowPair) {
+        this(windowPair, true);
+    }
+
+    private SharedWindowStatistics(FlatWindowPair windowPair, boolean checkEmpty) {
+        if(checkEmpty && windowPair.size() > 0)
+            throw new IllegalArgumentException("The window pair must be empty.");
+        this.windowPair = windowPair;
+    }
+
+    /**
+     * @param refreshInterval
+     *          The number of updates between full recomputations of the window statistics.
+     */
+    public void setRefreshInterval(int refreshInterval) {
+        if(refreshInterval < 1)
+            throw new IllegalArgumentException("Refresh interval must be at least 1.");
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * Register a subspace of the features.
+     * @param features
+     *          The indices of the features in the subspace, in the order the detector expects them.
+     * @return
+     *          A view of the window statistics restricted to those features.
+     */
+    public Subspace subspace(int... features) {
+        if(features.length == 0)
+            throw new IllegalArgumentException("A subspace must have at least one feature.");
+
+        int n = features.length;
+        int[] indices = new int[n * (n + 1) / 2];
+        for(int a=0;a<n;a++) {
+            if(features[a] < 0)
+                throw new IllegalArgumentException("Illegal feature index: " + features[a]);
+            maxFeature = Math.max(maxFeature, features[a]);
+            for(int b=0;b<=a;b++)
+                indices[a * (a + 1) / 2 + b] = pair(features[a], features[b]);
+        }
+        return new Subspace(features.clone(), indices);
+    }
+
+    /**
+     * Update the window pair with an example over the full feature space, and the window statistics with it.
+     */
+    public void update(double[] example) {
+        int before = windowPair.size();
+        boolean evicting = before == windowPair.capacity();
+        if(evicting && !stale)
+            windowPair.getWindow1().copyRow(0, evicted);
+
+        windowPair.update(example);
+
+        if(anchor == null)
+            allocate(windowPair.getDimensions());
+        if(stale || ++sinceRefresh >= refreshInterval) {
+            refresh();
+            return;
+        }
+
+        FlatWindowPair.View w1 = windowPair.getWindow1();
+        FlatWindowPair.View w2 = windowPair.getWindow2();
+        double[] data = windowPair.getData();
+
+        if(evicting)
+            accumulate(evicted, 0, sumW1, scatterW1, -1);
+        // Once W2 is full, its oldest observation moves into W1 with every update.
+        if(before >= w2.capacity()) {
+            int promoted = w1.offset(w1.size() - 1);
+            accumulate(data, promoted, sumW2, scatterW2, -1);
+            accumulate(data, promoted, sumW1, scatterW1, 1);
+        }
+        accumulate(data, w2.offset(w2.size() - 1), sumW2, scatterW2, 1);
+    }
+
+    /**
+     * @return
+     *          Independent statistics with the same windows and subspaces. Subspaces of the copy are registered again
+     *          with {@link #subspace(int...)}, which finds the feature pairs already in place.
+     */
+    public SharedWindowStatistics copy() {
+        SharedWindowStatistics copy = new SharedWindowStatistics(windowPair.copy(), false);
+        copy.refreshInterval = refreshInterval;
+        copy.pairIndex.putAll(pairIndex);
+        copy.pairRows = pairRows.clone();
+        copy.pairColumns = pairColumns.clone();
+        copy.pairs = pairs;
+        copy.maxFeature = maxFeature;
+        if(anchor != null) {
+            copy.allocate(d);
+            System.arraycopy(anchor, 0, copy.anchor, 0, d);
+            System.arraycopy(sumW1, 0, copy.sumW1, 0, d);
+            System.arraycopy(sumW2, 0, copy.sumW2, 0, d);
+        }
+        copy.scatterW1 = scatterW1.clone();
+        copy.scatterW2 = scatterW2.clone();
+        copy.stale = stale;
+        copy.sinceRefresh = sinceRefresh;
+        return copy;
+    }
+
+    public long estimatedFootprintBytes() {
+        // Each feature pair also has a boxed entry in the pair index.
+        return Footprints.object(getClass()) + windowPair.estimatedFootprintBytes()
+                + Footprints.of(pairRows) + Footprints.of(pairColumns) + pairs * Footprints.object(40)
+                + Footprints.of(anchor) + Footprints.of(sumW1) + Footprints.of(sumW2) + Footprints.of(scatterW1)
+                + Footprints.of(scatterW2) + Footprints.of(evicted) + Footprints.of(anchored);
+    }
+
+    @Override
+    public int snapshotSize() {
+        return Snapshots.HEADER_BYTES + Integer.BYTES + windowPair.snapshotSize();
+    }
+
+    @Override
+    public void writeSnapshot(ByteBuffer buffer) {
+        Snapshots.writeHeader(buffer, this, SNAPSHOT_VERSION);
+        buffer.putInt(pairs);
+        windowPair.writeSnapshot(buffer);
+    }
+
+    @Override
+    public void readSnapshot(ByteBuffer buffer) {
+        Snapshots.readHeader(buffer, this, SNAPSHOT_VERSION);
+        Snapshots.checkEqual("feature pairs", pairs, buffer.getInt());
+        windowPair.readSnapshot(buffer);
+        if(anchor != null && d != windowPair.getDimensions())
+            anchor = null;
+        stale = true;
+        sinceRefresh = 0;
+    }
+
+    /**
+     * Empty the windows. The statistics are recomputed on the next update.
+     */
+    public void reset() {
+        windowPair.clear();
+        stale = true;
+        sinceRefresh = 0;
+    }
+
+    /**
+     * Discard W1, keeping W2 as the start of the next reference (see {@link FlatWindowPair#clearWindow1()}). The
+     * statistics are recomputed on the next update.
+     */
+    public void rearm() {
+        windowPair.clearWindow1();
+        stale = true;
+        sinceRefresh = 0;
+    }
+
+    /**
+     * @return
+     *          True if both windows are full.
+     */
+    public boolean isFull() {
+        return windowPair.size() == windowPair.capacity();
+    }
+
+    /**
+     * Recompute the anchor, sums and scatter from the windows.
+     */
+    private void refresh() {
+        if(maxFeature >= d)
+            throw new IllegalArgumentException("A subspace refers to feature " + maxFeature + " of " + d);
+
+        double[] data = windowPair.getData();
+        int n = windowPair.size();
+
+        Arrays.fill(anchor, 0);
+        for(int r=0;r<n;r++) {
+            int offset = windowPair.offset(r);
+            for(int j=0;j<d;j++)
+                anchor[j] += data[offset + j];
+        }
+        for(int j=0;j<d;j++)
+            anchor[j] /= n;
+
+        if(scatterW1.length < pairs) {
+            scatterW1 = new double[pairRows.length];
+            scatterW2 = new double[pairRows.length];
+        }
+        Arrays.fill(sumW1, 0);
+        Arrays.fill(sumW2, 0);
+        Arrays.fill(scatterW1, 0);
+        Arrays.fill(scatterW2, 0);
+
+        FlatWindowPair.View w1 = windowPair.getWindow1();
+        FlatWindowPair.View w2 = windowPair.getWindow2();
+        for(int r=0;r<w1.size();r++)
+            accumulate(data, w1.offset(r), sumW1, scatterW1, 1);
+        for(int r=0;r<w2.size();r++)
+            accumulate(data, w2.offset(r), sumW2, scatterW2, 1);
+
+        stale = false;
+        sinceRefresh = 0;
+    }
+
+    private void accumulate(double[] data, int offset, double[] sum, double[] scatter, double sign) {
+        for(int j=0;j<d;j++) {
+            double x = data[offset + j] - anchor[j];
+            anchored[j] = x;
+            sum[j] += sign * x;
+        }
+        for(int p=0;p<pairs;p++)
+            scatter[p] += sign * anchored[pairRows[p]] * anchored[pairColumns[p]];
+    }
+
+    private int pair(int i, int j) {
+        if(i < j)
+            return pair(j, i);
+        long key = ((long) i << 32) | j;
+        Integer index = pairIndex.get(key);
+        if(index != null)
+            return index;
+
+        if(pairs == pairRows.length) {
+            pairRows = Arrays.copyOf(pairRows, pairs * 2);
+            pairColumns = Arrays.copyOf(pairColumns, pairs * 2);
+        }
+        pairRows[pairs] = i;
+        pairColumns[pairs] = j;
+        pairIndex.put(key, pairs);
+        // The new entry has no scatter yet, so recompute everything on the next update.
+        stale = true;
+        return pairs++;
+    }
+
+    private void allocate(int dimensions) {
+        d = dimensions;
+        anchor = new double[d];
+        sumW1 = new double[d];
+        sumW2 = new double[d];
+        evicted = new double[d];
+        anchored = new double[d];
+    }
+
+    private void checkCurrent() {
+        if(stale)
+            throw new IllegalStateException("The statistics have not been updated since a subspace was registered.");
+    }
+
+    /**
+     * The window statistics of a subset of the features, selected from the shared statistics.
+     */
+    public final class Subspace {
+
+        private final int[] features;
+        // Index into the shared scatter of each lower triangular entry, a * (a + 1) / 2 + b for b <= a.
+        private final int[] pairs;
+
+        private Subspace(int[] features, int[] pairs) {
+            this.features = features;
+            this.pairs = pairs;
+        }
+
+        public SharedWindowStatistics getStatistics() {
+            return SharedWindowStatistics.this;
+        }
+
+        public int getDimensions() {
+            return features.length;
+        }
+
+        /**
+         * @return
+         *          A copy of the feature indices of the subspace.
+         */
+        public int[] getFeatures() {
+            return features.clone();
+        }
+
+        /**
+         * @param destination
+         *          Array of at least {@link #getDimensions()} elements.
+         * @return
+         *          The destination array, holding the mean of W1 over the subspace.
+         */
+        public double[] meanW1(double[] destination) {
+            return mean(sumW1, windowPair.getWindow1().size(), destination);
+        }
+
+        /**
+         * @param destination
+         *          Array of at least {@link #getDimensions()} elements.
+         * @return
+         *          The destination array, holding the mean of W2 over the subspace.
+         */
+        public double[] meanW2(double[] destination) {
+            return mean(sumW2, windowPair.getWindow2().size(), destination);
+        }
+
+        /**
+         * The pooled covariance of the windows over the subspace, (m1.C1 + m2.C2) / (m1+m2-2) for bias corrected
+         * window covariances Ci and window sizes mi, as used by {@link uk.ac.bangor.novelty.Hotelling}.
+         * @param destination
+         *          A d x d row-major array, for d = {@link #getDimensions()}.
+         * @return
+         *          The destination array.
+         */
+        public double[] pooledCovariance(double[] destination) {
+            checkCurrent();
+            double m1 = windowPair.getWindow1().size();
+            double m2 = windowPair.getWindow2().size();
+            double w1 = m1 / ((m1 - 1) * (m1 + m2 - 2));
+            double w2 = m2 / ((m2 - 1) * (m1 + m2 - 2));
+
+            int n = features.length;
+            for(int a=0;a<n;a++) {
+                int i = features[a];
+                for(int b=0;b<=a;b++) {
+                    int j = features[b];
+                    int p = pairs[a * (a + 1) / 2 + b];
+                    double c1 = scatterW1[p] - sumW1[i] * sumW1[j] / m1;
+                    double c2 = scatterW2[p] - sumW2[i] * sumW2[j] / m2;
+                    destination[a * n + b] = destination[b * n + a] = w1 * c1 + w2 * c2;
+                }
+            }
+            return destination;
+        }
+
+        private double[] mean(double[] sum, int m, double[] destination) {
+            checkCurrent();
+            for(int a=0;a<features.length;a++)
+                destination[a] = anchor[features[a]] + sum[features[a]] / m;
+            return destination;
+        }
+    }
+}
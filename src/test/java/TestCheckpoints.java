@@ -0,0 +1,220 @@
+import uk.ac.bangor.novelty.Hotelling;
+import uk.ac.bangor.novelty.MultivariateRealDetector;
+import uk.ac.bangor.novelty.checkpoint.CheckpointedDetector;
+import uk.ac.bangor.novelty.checkpoint.Checkpointer;
+import uk.ac.bangor.novelty.windowing.FlatWindowPair;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestCheckpoints {
+
+    private static final int FEATURES = 3;
+
+    private Path directory;
+    private double[][] rows;
+
+    @Before
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("checkpoints");
+        Random random = new Random(59);
+        rows = new double[1200][FEATURES];
+        for(int t=0;t<rows.length;t++)
+            for(int i=0;i<FEATURES;i++)
+                rows[t][i] = random.nextGaussian() + (t > 700 ? 1 : 0);
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        try(Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private static MultivariateRealDetector detector() {
+        return new Hotelling(new FlatWindowPair(25, 25));
+    }
+
+    /**
+     * Counts the snapshots taken of a detector.
+     */
+    private static final class CountingDetector implements MultivariateRealDetector {
+        final MultivariateRealDetector detector = detector();
+        int snapshots;
+
+        public void update(double[] example) { detector.update(example); }
+        public boolean isChangeDetected() { return detector.isChangeDetected(); }
+        public MultivariateRealDetector copy() { return detector.copy(); }
+        public boolean supportsSnapshots() { return true; }
+        public int snapshotSize() { return detector.snapshotSize(); }
+        public void readSnapshot(ByteBuffer buffer) { detector.readSnapshot(buffer); }
+
+        public void writeSnapshot(ByteBuffer buffer) {
+            snapshots++;
+            detector.writeSnapshot(buffer);
+        }
+    }
+
+    /**
+     * Update a checkpointed and a plain detector with the first rows, restart the checkpointed one, and check that it
+     * decides like the plain one on the rest.
+     */
+    private void assertRestoreMatches(int checkpointInterval, int restartAt, boolean tearJournal) throws IOException {
+        MultivariateRealDetector reference = detector();
+        try(Checkpointer checkpointer = new Checkpointer(directory, checkpointInterval, 2048)) {
+            CheckpointedDetector checkpointed = checkpointer.register("hotelling", detector());
+            for(int t=0;t<restartAt;t++) {
+                checkpointed.update(rows[t]);
+                reference.update(rows[t]);
+            }
+            checkpointer.flush();
+        }
+
+        if(tearJournal) {
+            try(Stream<Path> paths = Files.list(directory)) {
+                Path segment = paths.filter(path -> path.getFileName().toString().startsWith("journal-"))
+                        .max(Comparator.naturalOrder()).get();
+                Files.write(segment, new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20},
+                        StandardOpenOption.APPEND);
+            }
+        }
+
+        try(Checkpointer checkpointer = new Checkpointer(directory, checkpointInterval, 2048)) {
+            CheckpointedDetector restored = checkpointer.register("hotelling", detector());
+            assertEquals(restartAt - 1, restored.getSequence());
+            int detections = 0;
+            for(int t=restartAt;t<rows.length;t++) {
+                restored.update(rows[t]);
+                reference.update(rows[t]);
+                assertEquals("At " + t, reference.isChangeDetected(), restored.isChangeDetected());
+                if(reference.isChangeDetected())
+                    detections++;
+            }
+            assertTrue(detections > 0);
+        }
+    }
+
+    @Test
+    public void testRestoreFromCheckpointAndJournal() throws IOException {
+        assertRestoreMatches(100, 350, false);
+    }
+
+    @Test
+    public void testRestoreFromJournalAlone() throws IOException {
+        assertRestoreMatches(10_000, 350, false);
+    }
+
+    @Test
+    public void testRestoreIgnoresTornJournal() throws IOException {
+        assertRestoreMatches(100, 350, true);
+    }
+
+    @Test
+    public void testRepeatedRestarts() throws IOException {
+        MultivariateRealDetector reference = detector();
+        for(int restart=0;restart<4;restart++) {
+            try(Checkpointer checkpointer = new Checkpointer(directory, 64, 2048)) {
+                CheckpointedDetector checkpointed = checkpointer.register("hotelling", detector());
+                for(int t=restart*300;t<(restart+1)*300;t++) {
+                    checkpointed.update(rows[t]);
+                    reference.update(rows[t]);
+                    assertEquals("At " + t, reference.isChangeDetected(), checkpointed.isChangeDetected());
+                }
+                checkpointer.flush();
+            }
+        }
+
+        // Journal segments covered by checkpoints are deleted.
+        try(Stream<Path> paths = Files.list(directory)) {
+            assertTrue(paths.filter(path -> path.getFileName().toString().startsWith("journal-")).count() <= 2);
+        }
+    }
+
+    @Test
+    public void testIdleDetectorDoesNotPinTheJournal() throws IOException {
+        MultivariateRealDetector busyReference = detector();
+        MultivariateRealDetector idleReference = detector();
+        // Segments of about 90 samples, and checkpoints only when a new segment is started.
+        try(Checkpointer checkpointer = new Checkpointer(directory, 10_000, 2048, 4096)) {
+            CheckpointedDetector busy = checkpointer.register("busy", detector());
+            CheckpointedDetector idle = checkpointer.register("idle", detector());
+            for(int t=0;t<50;t++) {
+                idle.update(rows[t]);
+                idleReference.update(rows[t]);
+            }
+            for(int t=0;t<1000;t++) {
+                busy.update(rows[t]);
+                busyReference.update(rows[t]);
+                if(t % 20 == 0)
+                    checkpointer.flush();
+            }
+            checkpointer.flush();
+            try(Stream<Path> paths = Files.list(directory)) {
+                assertTrue(paths.filter(path -> path.getFileName().toString().startsWith("journal-")).count() <= 4);
+            }
+        }
+
+        try(Checkpointer checkpointer = new Checkpointer(directory, 10_000, 2048, 4096)) {
+            CheckpointedDetector busy = checkpointer.register("busy", detector());
+            CheckpointedDetector idle = checkpointer.register("idle", detector());
+            assertEquals(999, busy.getSequence());
+            assertEquals(49, idle.getSequence());
+            for(int t=1000;t<rows.length;t++) {
+                busy.update(rows[t]);
+                idle.update(rows[t]);
+                busyReference.update(rows[t]);
+                idleReference.update(rows[t]);
+                assertEquals("At " + t, busyReference.isChangeDetected(), busy.isChangeDetected());
+                assertEquals("At " + t, idleReference.isChangeDetected(), idle.isChangeDetected());
+            }
+        }
+    }
+
+    @Test
+    public void testWriterFallingBehindDoesNotSnapshotEverySample() throws IOException {
+        CountingDetector counting = new CountingDetector();
+        MultivariateRealDetector reference = detector();
+        try(Checkpointer checkpointer = new Checkpointer(directory, 1, 16)) {
+            CheckpointedDetector checkpointed = checkpointer.register("hotelling", counting);
+            // The writer only picks up every 100ms, so the ring fills and checkpoints fall due on every sample, but
+            // only one is taken for each the writer picks up.
+            for(int t=0;t<1000;t++) {
+                checkpointed.update(rows[t]);
+                reference.update(rows[t]);
+            }
+            assertTrue("Took " + counting.snapshots + " snapshots", counting.snapshots < 100);
+            checkpointer.flush();
+            checkpointed.update(rows[1000]);
+            reference.update(rows[1000]);
+            checkpointer.flush();
+        }
+
+        // Nothing is journaled or snapshot once the checkpointer is closed.
+        try(Checkpointer checkpointer = new Checkpointer(directory, 1, 16)) {
+            CheckpointedDetector restored = checkpointer.register("hotelling", detector());
+            assertEquals(1000, restored.getSequence());
+            CountingDetector closed = new CountingDetector();
+            CheckpointedDetector unpersisted = checkpointer.register("closed", closed);
+            checkpointer.close();
+            for(int t=1001;t<rows.length;t++) {
+                restored.update(rows[t]);
+                unpersisted.update(rows[t]);
+                reference.update(rows[t]);
+                assertEquals("At " + t, reference.isChangeDetected(), restored.isChangeDetected());
+            }
+            assertEquals(0, closed.snapshots);
+        }
+    }
+}
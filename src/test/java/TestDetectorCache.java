@@ -0,0 +1,180 @@
+import uk.ac.bangor.novelty.Hotelling;
+import uk.ac.bangor.novelty.MultivariateRealDetector;
+import uk.ac.bangor.novelty.stream.DetectorCache;
+import uk.ac.bangor.novelty.util.Footprints;
+import uk.ac.bangor.novelty.windowing.FlatWindowPair;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestDetectorCache {
+
+    private static final int STREAMS = 20;
+    private static final int SAMPLES = 600;
+    private static final int BURST = 40;
+
+    private Path directory;
+
+    @Before
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("spill");
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        try(Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private static MultivariateRealDetector detector() {
+        return new Hotelling(new FlatWindowPair(25, 25));
+    }
+
+    private static long spillFiles(Path directory) throws IOException {
+        try(Stream<Path> paths = Files.list(directory)) {
+            return paths.count();
+        }
+    }
+
+    @Test
+    public void testSpilledStreamsMatchSeparateDetectors() throws Exception {
+        spilledStreamsMatchSeparateDetectors(null);
+    }
+
+    @Test
+    public void testStreamsSpilledInTheBackgroundMatchSeparateDetectors() throws Exception {
+        spilledStreamsMatchSeparateDetectors(Executors.newSingleThreadExecutor());
+    }
+
+    /**
+     * @param spiller
+     *          Spills the detectors, or null to spill them on the updating thread.
+     */
+    private void spilledStreamsMatchSeparateDetectors(ExecutorService spiller) throws Exception {
+        Random random = new Random(67);
+        double[][][] rows = new double[STREAMS][SAMPLES][3];
+        for(int s=0;s<STREAMS;s++)
+            for(int t=0;t<SAMPLES;t++)
+                for(int i=0;i<3;i++)
+                    rows[s][t][i] = random.nextGaussian() + (t > 300 + 5 * s ? 1 : 0);
+
+        MultivariateRealDetector sample = detector();
+        for(int t=0;t<SAMPLES;t++)
+            sample.update(rows[0][t]);
+        long budget = 4 * sample.estimatedFootprintBytes();
+
+        DetectorCache<Integer> cache = spiller == null ? new DetectorCache<>(key -> detector(), budget, directory)
+                : new DetectorCache<>(key -> detector(), budget, directory, spiller);
+        boolean[][] decisions = new boolean[STREAMS][SAMPLES];
+        // Streams are updated in bursts, so that each is spilled and rehydrated several times.
+        for(int t=0;t<SAMPLES;t+=BURST) {
+            for(int s=0;s<STREAMS;s++)
+                for(int b=t;b<t+BURST;b++)
+                    decisions[s][b] = cache.update(s, rows[s][b]);
+            if(spiller == null) {
+                assertTrue(cache.getResidentBytes() <= budget);
+                assertEquals(cache.getSpilledCount(), spillFiles(directory));
+            }
+        }
+        if(spiller != null) {
+            spiller.shutdown();
+            assertTrue(spiller.awaitTermination(10, TimeUnit.SECONDS));
+            assertTrue(cache.getResidentBytes() <= budget);
+            assertEquals(cache.getSpilledCount(), spillFiles(directory));
+        }
+        assertTrue(cache.getSpilledCount() >= STREAMS / 2);
+
+        int detections = 0;
+        for(int s=0;s<STREAMS;s++) {
+            MultivariateRealDetector separate = detector();
+            for(int t=0;t<SAMPLES;t++) {
+                separate.update(rows[s][t]);
+                assertEquals("Stream " + s + " at " + t, separate.isChangeDetected(), decisions[s][t]);
+                if(decisions[s][t])
+                    detections++;
+            }
+        }
+        assertTrue(detections > 0);
+
+        for(int s=0;s<STREAMS;s++)
+            cache.remove(s);
+        assertEquals(0, cache.getSpilledCount());
+        assertEquals(0, cache.getResidentBytes());
+        assertEquals(0, spillFiles(directory));
+    }
+
+    @Test
+    public void testDetectorsWithoutSnapshotsStayResident() throws IOException {
+        // Counts its updates, and cannot be written to a snapshot.
+        class Counter implements MultivariateRealDetector {
+            int updates;
+            public void update(double[] example) { updates++; }
+            public boolean isChangeDetected() { return false; }
+            public long estimatedFootprintBytes() { return 1000; }
+            public Counter copy() { return this; }
+        }
+        Counter[] counters = new Counter[STREAMS];
+        DetectorCache<Integer> cache = new DetectorCache<>(key -> counters[key] = new Counter(), 1000, directory);
+        for(int t=0;t<BURST;t++)
+            for(int s=0;s<STREAMS;s++)
+                cache.update(s, new double[3]);
+
+        assertEquals(0, cache.getSpilledCount());
+        assertEquals(0, spillFiles(directory));
+        for(int s=0;s<STREAMS;s++)
+            assertEquals(BURST, counters[s].updates);
+    }
+
+    @Test
+    public void testFootprintGrowsWithWindowsAndDimensions() {
+        long small = footprint(25, 3);
+        long wider = footprint(100, 3);
+        long higher = footprint(25, 30);
+        assertTrue(wider >= small + 2 * 75 * 3 * Double.BYTES);
+        assertTrue(higher > small + 2 * 25 * 27 * Double.BYTES);
+    }
+
+    static class Base {
+        static long shared;
+        double value;
+        int count;
+    }
+
+    static class Derived extends Base {
+        boolean flag;
+        double[] values;
+    }
+
+    @Test
+    public void testObjectSizeCountsDeclaredAndInheritedFields() {
+        // A 12 byte header and the fields, rounded up to a multiple of 8.
+        assertEquals(24, Footprints.object(Base.class));
+        assertEquals(32, Footprints.object(Derived.class));
+    }
+
+    private static long footprint(int window, int dimensions) {
+        MultivariateRealDetector hotelling = new Hotelling(new FlatWindowPair(window, window));
+        Random random = new Random(71);
+        for(int t=0;t<3*window;t++) {
+            double[] row = new double[dimensions];
+            for(int i=0;i<dimensions;i++)
+                row[i] = random.nextGaussian();
+            hotelling.update(row);
+        }
+        return hotelling.estimatedFootprintBytes();
+    }
+}
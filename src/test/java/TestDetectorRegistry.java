@@ -0,0 +1,103 @@
+import uk.ac.bangor.novelty.CUSUMBank;
+import uk.ac.bangor.novelty.Hotelling;
+import uk.ac.bangor.novelty.MultivariateRealDetector;
+import uk.ac.bangor.novelty.stream.DetectorRegistry;
+import uk.ac.bangor.novelty.windowing.FlatWindowPair;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class TestDetectorRegistry {
+
+    private static final int STREAMS = 40;
+    private static final int THREADS = 4;
+    private static final int SAMPLES = 600;
+
+    private static double[][][] streams() {
+        Random random = new Random(61);
+        double[][][] rows = new double[STREAMS][SAMPLES][3];
+        for(int s=0;s<STREAMS;s++)
+            for(int t=0;t<SAMPLES;t++)
+                for(int i=0;i<3;i++)
+                    rows[s][t][i] = random.nextGaussian() + (t > 300 + s ? 1 : 0);
+        return rows;
+    }
+
+    @Test
+    public void testConcurrentStreamsMatchSeparateDetectors() throws Exception {
+        double[][][] rows = streams();
+        DetectorRegistry<Integer> registry = new DetectorRegistry<>(key -> new Hotelling(new FlatWindowPair(25, 25)));
+        boolean[][] decisions = new boolean[STREAMS][SAMPLES];
+
+        // Each thread updates its share of the streams, interleaved.
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> futures = new ArrayList<>();
+        for(int thread=0;thread<THREADS;thread++) {
+            int first = thread;
+            futures.add(pool.submit(() -> {
+                for(int t=0;t<SAMPLES;t++)
+                    for(int s=first;s<STREAMS;s+=THREADS)
+                        decisions[s][t] = registry.update(s, rows[s][t]);
+            }));
+        }
+        for(Future<?> future : futures)
+            future.get();
+        pool.shutdown();
+
+        assertEquals(STREAMS, registry.size());
+        for(int s=0;s<STREAMS;s++) {
+            MultivariateRealDetector separate = new Hotelling(new FlatWindowPair(25, 25));
+            for(int t=0;t<SAMPLES;t++) {
+                separate.update(rows[s][t]);
+                assertEquals("Stream " + s + " at " + t, separate.isChangeDetected(), decisions[s][t]);
+            }
+            assertEquals(decisions[s][SAMPLES - 1], registry.isChangeDetected(s));
+        }
+    }
+
+    @Test
+    public void testUpdatesOfOneStreamAreSerialised() throws Exception {
+        AtomicInteger built = new AtomicInteger();
+        AtomicBoolean overlapped = new AtomicBoolean();
+        DetectorRegistry<String> registry = new DetectorRegistry<>(key -> {
+            built.incrementAndGet();
+            return new CUSUMBank(3, 0.5) {
+                private final AtomicBoolean busy = new AtomicBoolean();
+
+                @Override
+                public void update(double[] example) {
+                    if(!busy.compareAndSet(false, true))
+                        overlapped.set(true);
+                    super.update(example);
+                    busy.set(false);
+                }
+            };
+        });
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> futures = new ArrayList<>();
+        for(int thread=0;thread<THREADS;thread++) {
+            futures.add(pool.submit(() -> {
+                Random random = new Random();
+                for(int t=0;t<5000;t++)
+                    registry.update("shared", new double[] {random.nextGaussian(), random.nextGaussian(), random.nextGaussian()});
+            }));
+        }
+        for(Future<?> future : futures)
+            future.get();
+        pool.shutdown();
+
+        assertEquals(1, built.get());
+        assertFalse(overlapped.get());
+    }
+}
@@ -0,0 +1,120 @@
+import uk.ac.bangor.novelty.linalg.Cholesky;
+import uk.ac.bangor.novelty.linalg.LinearAlgebra;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.SingularValueDecomposition;
+import org.apache.commons.math3.stat.correlation.Covariance;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestLinearAlgebra {
+
+    private static double[][] sample(Random random, int n, int d) {
+        double[][] data = new double[n][d];
+        for(int i=0;i<n;i++)
+            for(int j=0;j<d;j++)
+                data[i][j] = random.nextGaussian() * (1 + j) + (j > 0 ? 0.5 * data[i][j-1] : 0);
+        return data;
+    }
+
+    private static double[] covariance(double[][] data, int d) {
+        double[] mean = new double[d];
+        for(double[] row : data)
+            for(int j=0;j<d;j++)
+                mean[j] += row[j] / data.length;
+
+        double[] covariance = new double[d * d];
+        double[] scratch = new double[d];
+        for(double[] row : data)
+            LinearAlgebra.addCentredOuter(covariance, d, row, 0, mean, 1.0 / (data.length - 1), scratch);
+        LinearAlgebra.symmetrise(covariance, d);
+        return covariance;
+    }
+
+    @Test
+    public void testCovarianceMatchesCommons() {
+        int d = 6;
+        double[][] data = sample(new Random(1), 100, d);
+        double[] covariance = covariance(data, d);
+        RealMatrix expected = new Covariance(data).getCovarianceMatrix();
+
+        for(int i=0;i<d;i++)
+            for(int j=0;j<d;j++)
+                assertEquals(expected.getEntry(i, j), covariance[i * d + j], 1e-10);
+    }
+
+    @Test
+    public void testCholeskyMatchesCommons() {
+        int d = 6;
+        Random random = new Random(2);
+        double[] covariance = covariance(sample(random, 100, d), d);
+        RealMatrix matrix = new Array2DRowRealMatrix(d, d);
+        for(int i=0;i<d;i++)
+            for(int j=0;j<d;j++)
+                matrix.setEntry(i, j, covariance[i * d + j]);
+        SingularValueDecomposition svd = new SingularValueDecomposition(matrix);
+        RealMatrix expectedInverse = svd.getSolver().getInverse();
+
+        Cholesky cholesky = new Cholesky(d);
+        assertTrue(cholesky.decompose(covariance));
+
+        double[] inverse = cholesky.inverse(new double[d * d]);
+        for(int i=0;i<d;i++)
+            for(int j=0;j<d;j++)
+                assertEquals(expectedInverse.getEntry(i, j), inverse[i * d + j], 1e-9);
+
+        double[] x = new double[d];
+        double[] y = new double[d];
+        for(int i=0;i<d;i++) {
+            x[i] = random.nextGaussian();
+            y[i] = random.nextGaussian();
+        }
+        double expected = LinearAlgebra.quadraticForm(inverse, d, x, y);
+        assertEquals(expected, cholesky.inverseBilinearForm(x, y), 1e-9);
+        assertEquals(LinearAlgebra.quadraticForm(inverse, d, x, x), cholesky.inverseQuadraticForm(x), 1e-9);
+
+        double condition = cholesky.conditionEstimate(covariance);
+        assertTrue(condition >= svd.getConditionNumber() * (1 - 1e-9));
+        assertTrue(condition <= d * svd.getConditionNumber() * (1 + 1e-9));
+    }
+
+    @Test
+    public void testConditionEstimateCatchesCorrelatedFeatures() {
+        // Equicorrelated features, whose factor's diagonal spreads far less than the eigenvalues do.
+        int d = 10;
+        double rho = 1 - 1.0 / 3000;
+        double[] covariance = new double[d * d];
+        RealMatrix matrix = new Array2DRowRealMatrix(d, d);
+        for(int i=0;i<d;i++) {
+            for(int j=0;j<d;j++) {
+                covariance[i * d + j] = i == j ? 1 : rho;
+                matrix.setEntry(i, j, covariance[i * d + j]);
+            }
+        }
+
+        Cholesky cholesky = new Cholesky(d);
+        assertTrue(cholesky.decompose(covariance));
+        double condition = new SingularValueDecomposition(matrix).getConditionNumber();
+        assertTrue(condition > 10000);
+        assertTrue(cholesky.conditionEstimate(covariance) >= condition * (1 - 1e-9));
+    }
+
+    @Test
+    public void testCholeskyRejectsSingular() {
+        int d = 4;
+        double[] covariance = covariance(sample(new Random(3), 50, d), d);
+        // Make the last row and column a copy of the first
+        for(int i=0;i<d;i++) {
+            covariance[(d-1) * d + i] = covariance[i];
+            covariance[i * d + d - 1] = covariance[i * d];
+        }
+        covariance[d * d - 1] = covariance[0];
+
+        assertFalse(new Cholesky(d).decompose(covariance));
+    }
+}
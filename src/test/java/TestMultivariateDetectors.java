@@ -1,21 +1,38 @@
 import uk.ac.bangor.novelty.*;
+import uk.ac.bangor.novelty.clustering.IncrementalKMeans;
 import uk.ac.bangor.novelty.ensemble.EnsembleFactory;
+import uk.ac.bangor.novelty.ensemble.FeatureWeightedSubsetEnsemble;
+import uk.ac.bangor.novelty.ensemble.MemberScheduler;
+import uk.ac.bangor.novelty.ensemble.MultiQuorumEnsemble;
 import uk.ac.bangor.novelty.ensemble.MultivariateRealEnsemble;
 import uk.ac.bangor.novelty.ensemble.QuorumScheme;
+import uk.ac.bangor.novelty.util.Snapshots;
 import uk.ac.bangor.novelty.windowing.FixedWindowPair;
+import uk.ac.bangor.novelty.windowing.FlatWindowPair;
+import uk.ac.bangor.novelty.windowing.SharedWindowStatistics;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.math3.distribution.GammaDistribution;
 import org.apache.commons.math3.distribution.NormalDistribution;
 import org.apache.commons.math3.distribution.RealDistribution;
+import org.junit.Assume;
 import org.junit.Test;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Stream;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
 /**
  * Created by wfaithfull on 06/09/16.
  */
@@ -64,12 +81,119 @@ public class TestMultivariateDetectors {
         evaluate(new KL(new FixedWindowPair<>(25,25, double[].class), 3));
     }
 
+    @Test
+    public void testIncrementalSPLL() {
+        log.info("Starting incremental SPLL test");
+        SPLL spll = new SPLL(new FlatWindowPair(25, 25), 3);
+        spll.setRefitInterval(25);
+        evaluate(spll);
+    }
+
+    @Test
+    public void testCarriedW2Assignments() {
+        int[] checked = new int[1];
+        SPLL spll = new SPLL(new FlatWindowPair(25, 25), 3) {
+            @Override
+            protected boolean change(double[] p1, double[] p2) {
+                double[] distances = getMinClusterToObservationDistances();
+                double sum = 0;
+                for(double distance : distances)
+                    sum += distance;
+                double mean = sum / distances.length;
+                assertEquals(mean, getMeanMinClusterToObservationDistance(), 1e-9 * Math.max(1, mean));
+
+                double total = 0;
+                for(double p : p2)
+                    total += p;
+                assertEquals(1.0, total, 1e-12);
+                checked[0]++;
+                return super.change(p1, p2);
+            }
+        };
+        spll.setReferenceRefreshInterval(20);
+        evaluate(spll);
+        assertEquals(1000 - 49, checked[0]);
+    }
+
+    @Test
+    public void testIncrementalKMeansFollowsWindow() {
+        int d = 4;
+        FlatWindowPair pair = new FlatWindowPair(40, 10);
+        IncrementalKMeans kmeans = new IncrementalKMeans(3, new Random(5));
+        Random random = new Random(6);
+
+        for(int i=0;i<500;i++) {
+            boolean carry = kmeans.isFitted();
+            if(carry)
+                kmeans.remove(pair.getData(), pair.getWindow1().offset(0));
+
+            double[] sample = new double[d];
+            for(int j=0;j<d;j++)
+                sample[j] = random.nextGaussian() + (i % 3) * 4;
+            pair.update(sample);
+
+            FlatWindowPair.View window1 = pair.getWindow1();
+            if(carry)
+                kmeans.add(pair.getData(), window1.offset(window1.size() - 1));
+            else if(pair.size() == pair.capacity())
+                kmeans.fit(window1);
+            else
+                continue;
+
+            // The clusters partition W1, and their centroids are the means of their members.
+            double[] mean = window1.colMean(new double[d]);
+            double[] weighted = new double[d];
+            double[] centroid = new double[d];
+            int total = 0;
+            for(int k=0;k<3;k++) {
+                kmeans.centroid(k, centroid);
+                for(int j=0;j<d;j++)
+                    weighted[j] += kmeans.count(k) * centroid[j];
+                total += kmeans.count(k);
+            }
+            assertEquals(window1.size(), total);
+            for(int j=0;j<d;j++)
+                assertEquals(mean[j], weighted[j] / total, 1e-9);
+        }
+    }
+
     @Test
     public void testHotelling() {
         log.info("Starting Hotelling test");
         evaluate(new Hotelling(new FixedWindowPair<>(25, 25, double[].class)));
     }
 
+    @Test
+    public void testIncrementalHotelling() {
+        Hotelling full = new Hotelling(new FlatWindowPair(25, 25));
+        Hotelling incremental = new Hotelling(new FlatWindowPair(25, 25));
+        incremental.setIncremental(true);
+        incremental.setRefreshInterval(500);
+
+        Random random = new Random(7);
+        for(int i=0;i<2000;i++) {
+            double[] sample = new double[FEATURES / 5];
+            for(int j=0;j<sample.length;j++)
+                sample[j] = random.nextGaussian() * (1 + j) + (i > CHANGE_POINT ? 0.5 : 0);
+
+            full.update(sample);
+            incremental.update(sample);
+            assertEquals(full.isChangeDetected(), incremental.isChangeDetected());
+        }
+    }
+
+    @Test
+    public void testCriticalValueMatchesPValue() {
+        Hotelling hotelling = new Hotelling(new FlatWindowPair(25, 25));
+        hotelling.setSignificance(0.1);
+
+        testDataProviderFactory().limit(1000).forEachOrdered(sample -> {
+            hotelling.update(sample);
+            if(!Double.isNaN(hotelling.getStatistic()))
+                assertEquals(hotelling.getPValue() < 0.1, hotelling.isChangeDetected());
+        });
+    }
+
     @Test
     public void testEnsembleOfUnivariates() {
 
@@ -94,6 +218,803 @@ public class TestMultivariateDetectors {
         evaluate(ensemble);
     }
 
+    @Test
+    public void testControlChartBanksMatchEnsembles() {
+        int features = 70;
+        AbstractControlChartBank[] banks = {
+                new CUSUMBank(features, 0.2),
+                new EWMABank(features, 0.2, 0.25),
+                new MovingRangeBank(features, 0.2)
+        };
+        List<Supplier<UnivariateRealDetector>> charts = new ArrayList<>();
+        charts.add(CUSUM::new);
+        charts.add(() -> new EWMA(0.25));
+        charts.add(MovingRange::new);
+
+        for(int b=0;b<banks.length;b++) {
+            MultivariateRealEnsemble ensemble = new MultivariateRealEnsemble(new QuorumScheme(0.2));
+            UnivariateRealDetector[] members = new UnivariateRealDetector[features];
+            for(int i=0;i<features;i++) {
+                members[i] = charts.get(b).get();
+                ensemble.addUnivariate(members[i], i);
+            }
+
+            Random random = new Random(b);
+            for(int t=0;t<1000;t++) {
+                double[] sample = new double[features];
+                for(int i=0;i<features;i++)
+                    sample[i] = random.nextGaussian() + (t > CHANGE_POINT && i % 3 == 0 ? 2 : 0);
+
+                banks[b].update(sample);
+                ensemble.update(sample);
+
+                int detections = 0;
+                for(int i=0;i<features;i++) {
+                    assertEquals(members[i].isChangeDetected(), banks[b].isChangeDetected(i));
+                    if(members[i].isChangeDetected())
+                        detections++;
+                }
+                assertEquals(detections, banks[b].getDetections());
+                assertEquals(ensemble.isChangeDetected(), banks[b].isChangeDetected());
+            }
+        }
+    }
+
+    @Test
+    public void testParallelEnsembleMatchesSequential() {
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            MultivariateRealEnsemble[] ensembles = new MultivariateRealEnsemble[2];
+            for(int e=0;e<2;e++) {
+                ensembles[e] = new MultivariateRealEnsemble(new QuorumScheme(0.25));
+                for(int i=0;i<FEATURES;i++)
+                    ensembles[e].addUnivariate(new CUSUM(), i);
+                for(int i=0;i<FEATURES-3;i+=3)
+                    ensembles[e].addMultivariate(new Hotelling(new FlatWindowPair(25, 25)), i, i+1, i+2);
+            }
+            ensembles[1].setParallel(pool, 4);
+
+            Random random = new Random(11);
+            double[][] rows = new double[1000][];
+            for(int t=0;t<rows.length;t++) {
+                rows[t] = new double[FEATURES];
+                for(int i=0;i<FEATURES;i++)
+                    rows[t][i] = random.nextGaussian() + (t > CHANGE_POINT && i < 10 ? 1 : 0);
+            }
+
+            for(int t=0;t<500;t++) {
+                ensembles[0].update(rows[t]);
+                ensembles[1].update(rows[t]);
+                assertEquals(ensembles[0].isChangeDetected(), ensembles[1].isChangeDetected());
+            }
+
+            boolean[] sequential = new boolean[rows.length];
+            boolean[] parallel = new boolean[rows.length];
+            int from = 500;
+            while(from < rows.length) {
+                int detected = ensembles[0].updateBatch(rows, from, rows.length, sequential);
+                assertEquals(detected, ensembles[1].updateBatch(rows, from, rows.length, parallel));
+                from = detected < 0 ? rows.length : detected + 1;
+            }
+            assertArrayEquals(sequential, parallel);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testParallelMembersKeepToOneThread() throws InterruptedException {
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            List<Set<Thread>> threads = new ArrayList<>();
+            MultivariateRealEnsemble ensemble = new MultivariateRealEnsemble(new QuorumScheme(0.25));
+            for(int i=0;i<8;i++) {
+                Set<Thread> seen = ConcurrentHashMap.newKeySet();
+                threads.add(seen);
+                ensemble.addUnivariate(new CUSUM() {
+                    @Override
+                    public void update(double input) {
+                        seen.add(Thread.currentThread());
+                        super.update(input);
+                    }
+                }, i);
+            }
+            ensemble.setParallel(pool, 4);
+
+            Random random = new Random(13);
+            double[] row = new double[8];
+            for(int t=0;t<2000;t++) {
+                for(int i=0;i<row.length;i++)
+                    row[i] = random.nextGaussian();
+                ensemble.update(row);
+            }
+            for(Set<Thread> seen : threads)
+                assertEquals(1, seen.size());
+
+            // Idle workers give their threads up, and new ones pick the partitions up again.
+            Thread.sleep(1500);
+            for(int t=0;t<100;t++)
+                ensemble.update(row);
+            for(Set<Thread> seen : threads)
+                assertTrue(seen.size() <= 2);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testQuorumSchemeTally() {
+        int voters = 40;
+        boolean[] votes = new boolean[voters];
+        double[] weights = new double[voters];
+        Detector<?>[] detectors = new Detector<?>[voters];
+        QuorumScheme polled = new QuorumScheme(0.3);
+        QuorumScheme recorded = new QuorumScheme(0.3);
+        for(int i=0;i<voters;i++) {
+            int id = i;
+            detectors[i] = new Detector<double[]>() {
+                public void update(double[] example) {}
+                public boolean isChangeDetected() { return votes[id]; }
+                public Detector<double[]> copy() { return this; }
+            };
+            weights[i] = 1.0;
+            polled.registerVoter(detectors[i]);
+            recorded.setWeight(i, detectors[i], 1.0);
+        }
+
+        Random random = new Random(13);
+        for(int t=0;t<2000;t++) {
+            int flips = random.nextInt(5);
+            for(int f=0;f<flips;f++) {
+                int i = random.nextInt(voters);
+                votes[i] = !votes[i];
+                recorded.recordDecision(i, votes[i]);
+            }
+            if(random.nextInt(10) == 0) {
+                int i = random.nextInt(voters);
+                weights[i] = random.nextInt(4);
+                polled.setWeight(detectors[i], weights[i]);
+                recorded.setWeight(i, detectors[i], weights[i]);
+            }
+
+            double votesFor = 0;
+            double total = 0;
+            for(int i=0;i<voters;i++) {
+                total += weights[i];
+                if(votes[i])
+                    votesFor += weights[i];
+            }
+            boolean expected = votesFor / total >= 0.3;
+
+            assertEquals(expected, recorded.getRecordedResult());
+            assertEquals(votesFor, recorded.getVotesFor(), 1e-9);
+            assertEquals(expected, polled.getResult());
+        }
+    }
+
+    @Test
+    public void testMultiQuorumEnsembleMatchesSeparateEnsembles() {
+        int built = multiQuorumMatchesSeparate(false, false);
+        assertTrue(built > 5);
+        // The ensembles are all the same, so reusing them gives the same results.
+        assertTrue(multiQuorumMatchesSeparate(true, false) <= 5);
+    }
+
+    @Test
+    public void testMultiQuorumEnsembleRearmsDetectedQuorums() {
+        multiQuorumMatchesSeparate(false, true);
+    }
+
+    @Test
+    public void testMultiQuorumEnsembleResetsRepeatedlyWhenReusingAndRearming() {
+        double[] quorums = { 0.1, 0.2, 0.3, 0.4, 0.5 };
+        MultiQuorumEnsemble combined = new MultiQuorumEnsemble(quorums, () -> {
+            MultivariateRealEnsemble ensemble = new MultivariateRealEnsemble(new QuorumScheme(0.5));
+            for(int i=0;i<FEATURES;i++)
+                ensemble.addUnivariate(new CUSUM(), i);
+            return ensemble;
+        });
+        combined.setResetInPlace(true);
+        combined.setWarmRearm(true);
+
+        Random random = new Random(29);
+        double[] row = new double[FEATURES];
+        int resets = 0;
+        for(int t=0;t<5000;t++) {
+            for(int i=0;i<FEATURES;i++)
+                row[i] = random.nextGaussian() + (i < (t / 250) % FEATURES ? 3 : 0);
+            combined.update(row);
+            assertTrue(combined.getRuns() <= quorums.length);
+            // Set the runs aside whenever the quorums have split, while earlier ones may still be spare.
+            if(combined.getRuns() >= 3) {
+                combined.reset();
+                assertEquals(0, combined.getRuns());
+                resets++;
+            }
+        }
+        assertTrue(resets >= 2);
+    }
+
+    /**
+     * @return
+     *          The number of ensembles the multi-quorum ensemble had built.
+     */
+    private int multiQuorumMatchesSeparate(boolean resetInPlace, boolean warmRearm) {
+        double[] quorums = { 0.1, 0.2, 0.3, 0.4, 0.5 };
+        Function<Double, MultivariateRealEnsemble> ensembles = quorum -> {
+            MultivariateRealEnsemble ensemble = new MultivariateRealEnsemble(new QuorumScheme(quorum));
+            ensemble.addMultivariate(new Hotelling(new FlatWindowPair(20, 20)), 0, 1, 2);
+            for(int i=0;i<FEATURES;i++)
+                ensemble.addUnivariate(new CUSUM(), i);
+            return ensemble;
+        };
+        int[] built = new int[1];
+        MultiQuorumEnsemble combined = new MultiQuorumEnsemble(quorums, () -> {
+            built[0]++;
+            return ensembles.apply(0.5);
+        });
+        combined.setResetInPlace(resetInPlace);
+        combined.setWarmRearm(warmRearm);
+        MultivariateRealEnsemble[] separate = new MultivariateRealEnsemble[quorums.length];
+        for(int q=0;q<quorums.length;q++)
+            separate[q] = ensembles.apply(quorums[q]);
+
+        Random random = new Random(23);
+        double[] row = new double[FEATURES];
+        int detections = 0;
+        for(int t=0;t<5000;t++) {
+            // A change in a varying number of features every 250 samples
+            for(int i=0;i<FEATURES;i++)
+                row[i] = random.nextGaussian() + (i < (t / 250) % FEATURES ? 3 : 0);
+            combined.update(row);
+            boolean any = false;
+            for(int q=0;q<quorums.length;q++) {
+                separate[q].update(row);
+                boolean detected = separate[q].isChangeDetected();
+                assertEquals("Quorum " + quorums[q] + " at " + t, detected, combined.isChangeDetected(q));
+                if(detected) {
+                    if(warmRearm)
+                        separate[q].rearm();
+                    else
+                        separate[q] = ensembles.apply(quorums[q]);
+                    detections++;
+                }
+                any |= detected;
+            }
+            assertEquals(any, combined.isChangeDetected());
+            assertTrue(combined.getRuns() <= quorums.length);
+        }
+        assertTrue(detections > 0);
+        return built[0];
+    }
+
+    @Test
+    public void testSchedulerKeepsWithinBudget() {
+        // Five members costing 100ns and five costing 1ms, within 1.5ms per sample.
+        MemberScheduler scheduler = new MemberScheduler(1_500_000);
+        int members = 10;
+        int[] maxStaleness = new int[members];
+        for(int t=0;t<1000;t++) {
+            scheduler.plan(members);
+            long total = 0;
+            for(int id=0;id<members;id++) {
+                if(scheduler.isScheduled(id)) {
+                    long cost = id < 5 ? 100 : 1_000_000;
+                    scheduler.record(id, cost);
+                    total += cost;
+                }
+                maxStaleness[id] = Math.max(maxStaleness[id], scheduler.getStaleness(id));
+            }
+            // Every member runs once to be measured.
+            if(t > 0)
+                assertTrue("Sample " + t + " cost " + total, total <= 1_500_000);
+        }
+        for(int id=0;id<members;id++)
+            assertEquals(id < 5 ? 0 : 4, maxStaleness[id]);
+    }
+
+    @Test
+    public void testStaleVotesAreDiscounted() {
+        Detector<double[]> voter = new Detector<double[]>() {
+            public void update(double[] example) {}
+            public boolean isChangeDetected() { return false; }
+            public Detector<double[]> copy() { return this; }
+        };
+        QuorumScheme scheme = new QuorumScheme(0.5);
+        scheme.setStalenessDecay(0.5);
+        scheme.setWeight(0, voter, 1.0);
+        scheme.setWeight(1, voter, 1.0);
+
+        scheme.recordDecision(0, true, 0);
+        scheme.recordDecision(1, false, 0);
+        assertTrue(scheme.getRecordedResult());
+
+        // The vote in favour is two samples old, so counts a quarter.
+        scheme.recordDecision(0, true, 2);
+        assertFalse(scheme.getRecordedResult());
+        assertEquals(0.25, scheme.getVotesFor(), 1e-12);
+        assertEquals(1.0, scheme.getVotesAgainst(), 1e-12);
+
+        scheme.recordDecision(0, true, 0);
+        assertTrue(scheme.getRecordedResult());
+    }
+
+    @Test
+    public void testLatencyBudgetedEnsemble() {
+        MultivariateRealEnsemble ensemble = new MultivariateRealEnsemble(new QuorumScheme(0.25));
+        for(int i=0;i<FEATURES;i++)
+            ensemble.addUnivariate(new CUSUM(), i);
+        for(int i=0;i<FEATURES-3;i+=3)
+            ensemble.addMultivariate(new SPLL(new FlatWindowPair(25, 25), 3), i, i+1, i+2);
+        ensemble.setLatencyBudget(200_000);
+        evaluate(ensemble);
+    }
+
+    /**
+     * A member which takes a fixed time over each update, and counts them.
+     */
+    private static final class TimedMember implements MultivariateRealDetector {
+        final long nanos;
+        int updates;
+
+        TimedMember(long nanos) {
+            this.nanos = nanos;
+        }
+
+        @Override
+        public void update(double[] example) {
+            long start = System.nanoTime();
+            while(System.nanoTime() - start < nanos);
+            updates++;
+        }
+
+        @Override
+        public boolean isChangeDetected() {
+            return false;
+        }
+
+        @Override
+        public TimedMember copy() {
+            TimedMember copy = new TimedMember(nanos);
+            copy.updates = updates;
+            return copy;
+        }
+    }
+
+    @Test
+    public void testLatencyBudgetIsKeptAndDeferredMembersRun() {
+        // Five members costing next to nothing and five costing 300us, within 1ms per sample.
+        long budget = 1_000_000;
+        int maxStaleness = 20;
+        MultivariateRealEnsemble ensemble = new MultivariateRealEnsemble(new QuorumScheme(0.5));
+        TimedMember[] members = new TimedMember[10];
+        for(int id=0;id<members.length;id++) {
+            members[id] = new TimedMember(id < 5 ? 0 : 300_000);
+            ensemble.addMultivariate(members[id]);
+        }
+        ensemble.setLatencyBudget(budget);
+        MemberScheduler scheduler = ensemble.getScheduler();
+        scheduler.setMaxStaleness(maxStaleness);
+
+        int samples = 500;
+        int[] staleness = new int[members.length];
+        int[] before = new int[members.length];
+        double[] estimates = new double[members.length];
+        double[] row = new double[1];
+        for(int t=0;t<samples;t++) {
+            for(int id=0;id<members.length;id++) {
+                before[id] = members[id].updates;
+                estimates[id] = scheduler.getEstimatedCost(id);
+            }
+            ensemble.update(row);
+
+            // The budget is kept on the costs the members were planned at, as the wall clock is at the mercy of the
+            // machine. Only a member deferred for too long can take it over.
+            double planned = 0;
+            double overdue = 0;
+            for(int id=0;id<members.length;id++) {
+                boolean ran = members[id].updates > before[id];
+                assertEquals(scheduler.isScheduled(id), ran);
+                if(ran) {
+                    planned += estimates[id];
+                    if(staleness[id] >= maxStaleness)
+                        overdue = Math.max(overdue, estimates[id]);
+                    staleness[id] = 0;
+                } else {
+                    staleness[id]++;
+                }
+                assertEquals(staleness[id], scheduler.getStaleness(id));
+                // One overdue member is run each sample, so the others wait their turn.
+                assertTrue(staleness[id] < maxStaleness + members.length);
+            }
+            assertTrue("Sample " + t + " planned at " + planned, planned <= budget + overdue);
+        }
+
+        // Deferred members are run again, at least as often as the staleness bounds allow, so none is starved.
+        int deferred = 0;
+        for(TimedMember member : members) {
+            assertTrue(member.updates >= samples / (maxStaleness + members.length));
+            deferred += samples - member.updates;
+        }
+        assertTrue(deferred > 0);
+    }
+
+    @Test
+    public void testEvaluationStride() {
+        Hotelling every = new Hotelling(new FlatWindowPair(25, 25));
+        Hotelling strided = new Hotelling(new FlatWindowPair(25, 25));
+        strided.setEvaluationStride(5);
+
+        Random random = new Random(31);
+        double[] row = new double[3];
+        int untilTest = 0;
+        int detections = 0;
+        for(int t=0;t<1000;t++) {
+            for(int i=0;i<3;i++)
+                row[i] = random.nextGaussian() + (t > CHANGE_POINT ? 1 : 0);
+            // An out of turn test on every 7th sample
+            boolean requested = t % 7 == 0;
+            if(requested)
+                strided.requestEvaluation();
+            every.update(row);
+            strided.update(row);
+
+            // The windows are full from the 50th sample
+            if(t < 49)
+                continue;
+            boolean due = untilTest == 0 || requested;
+            untilTest = due ? 4 : untilTest - 1;
+            assertEquals("At " + t, due && every.isChangeDetected(), strided.isChangeDetected());
+            if(strided.isChangeDetected())
+                detections++;
+        }
+        assertTrue(detections > 0);
+
+        KL kl = new KL(new FlatWindowPair(25, 25), 3);
+        kl.setEvaluationStride(10);
+        evaluate(kl);
+    }
+
+    @Test
+    public void testResetMatchesFreshDetector() {
+        List<Supplier<MultivariateRealDetector>> suppliers = new ArrayList<>();
+        suppliers.add(() -> new Hotelling(new FlatWindowPair(25, 25)));
+        suppliers.add(() -> {
+            Hotelling hotelling = new Hotelling(new FlatWindowPair(25, 25));
+            hotelling.setIncremental(true);
+            return hotelling;
+        });
+        suppliers.add(() -> new CUSUMBank(5, 0.4));
+        suppliers.add(() -> {
+            MultivariateRealEnsemble ensemble = new MultivariateRealEnsemble(new QuorumScheme(0.5));
+            ensemble.addMultivariate(new Hotelling(new FlatWindowPair(20, 20)), 0, 1, 2);
+            ensemble.addUnivariate(new CUSUM(), 3);
+            ensemble.addUnivariate(new EWMA(0.25), 4);
+            return ensemble;
+        });
+
+        for(Supplier<MultivariateRealDetector> supplier : suppliers) {
+            MultivariateRealDetector reused = supplier.get();
+            Random random = new Random(37);
+            for(int t=0;t<700;t++)
+                reused.update(gaussianRow(random, 5, t > 300 ? 1 : 0));
+            reused.reset();
+
+            MultivariateRealDetector fresh = supplier.get();
+            for(int t=0;t<1000;t++) {
+                double[] row = gaussianRow(random, 5, t > CHANGE_POINT ? 1 : 0);
+                reused.update(row);
+                fresh.update(row);
+                assertEquals("At " + t, fresh.isChangeDetected(), reused.isChangeDetected());
+            }
+        }
+    }
+
+    @Test
+    public void testRearmKeepsWindow2() {
+        Hotelling rearmed = new Hotelling(new FlatWindowPair(25, 25));
+        Random random = new Random(41);
+        double[][] rows = new double[1300][];
+        for(int t=0;t<rows.length;t++)
+            rows[t] = gaussianRow(random, 3, t > 800 ? 1 : 0);
+
+        for(int t=0;t<300;t++)
+            rearmed.update(rows[t]);
+        rearmed.rearm();
+
+        // A fresh detector given the 25 observations which were in W2 is in the same state.
+        Hotelling fresh = new Hotelling(new FlatWindowPair(25, 25));
+        for(int t=275;t<300;t++)
+            fresh.update(rows[t]);
+
+        int detections = 0;
+        for(int t=300;t<rows.length;t++) {
+            rearmed.update(rows[t]);
+            fresh.update(rows[t]);
+            assertEquals("At " + t, fresh.isChangeDetected(), rearmed.isChangeDetected());
+            // Ready again once W1 has filled, 25 samples on rather than 50.
+            assertEquals("At " + t, t >= 324, !Double.isNaN(rearmed.getStatistic()));
+            if(rearmed.isChangeDetected())
+                detections++;
+        }
+        assertTrue(detections > 0);
+    }
+
+    @Test
+    public void testCopyAndSnapshotMatchOriginal() {
+        List<Supplier<MultivariateRealDetector>> suppliers = new ArrayList<>();
+        suppliers.add(() -> new Hotelling(new FlatWindowPair(25, 25)));
+        suppliers.add(() -> {
+            Hotelling hotelling = new Hotelling(new FlatWindowPair(25, 25));
+            hotelling.setIncremental(true);
+            return hotelling;
+        });
+        suppliers.add(() -> new CUSUMBank(5, 0.4));
+        suppliers.add(() -> {
+            MultivariateRealEnsemble ensemble = new MultivariateRealEnsemble(new QuorumScheme(0.5));
+            ensemble.addMultivariate(new Hotelling(new FlatWindowPair(20, 20)), 0, 1, 2);
+            ensemble.addUnivariate(new CUSUM(), 3);
+            ensemble.addUnivariate(new EWMA(0.25), 4);
+            return ensemble;
+        });
+        suppliers.add(() -> EnsembleFactory.buildSharedRandomSubspaceEnsemble(5, 3, 4,
+                new SharedWindowStatistics(25, 25), Hotelling::new));
+        suppliers.add(() -> new FeatureWeightedSubsetEnsemble(5, 3, 4,
+                subspaceSize -> new Hotelling(new FlatWindowPair(25, 25)), () -> new EWMA(0.25)));
+        suppliers.add(() -> {
+            FeatureWeightedSubsetEnsemble ensemble = new FeatureWeightedSubsetEnsemble(5, 3, 4,
+                    subspaceSize -> new Hotelling(new FlatWindowPair(25, 25)), () -> new EWMA(0.25));
+            ensemble.enableCascade(1, 7, 50);
+            return ensemble;
+        });
+        suppliers.add(() -> new MultiQuorumEnsemble(new double[] {0.2, 0.5, 0.8}, () -> {
+            MultivariateRealEnsemble ensemble = new MultivariateRealEnsemble();
+            for(int i=0;i<5;i++)
+                ensemble.addUnivariate(new CUSUM(), i);
+            return ensemble;
+        }));
+
+        for(Supplier<MultivariateRealDetector> supplier : suppliers) {
+            MultivariateRealDetector original = supplier.get();
+            // Random subspaces differ between ensembles from the same supplier, so fork the target of the snapshot
+            // before either is updated. A snapshot replaces whatever state the target had.
+            MultivariateRealDetector restored = original.copy();
+            Random random = new Random(43);
+            for(int t=0;t<60;t++)
+                restored.update(gaussianRow(random, 5, 3));
+            for(int t=0;t<400;t++)
+                original.update(gaussianRow(random, 5, t > 200 ? 1 : 0));
+
+            MultivariateRealDetector copy = original.copy();
+            Snapshots.restore(restored, Snapshots.toBytes(original));
+            assertEquals(original.isChangeDetected(), restored.isChangeDetected());
+
+            int detections = 0;
+            for(int t=0;t<1000;t++) {
+                double[] row = gaussianRow(random, 5, t > CHANGE_POINT ? 1 : 0);
+                original.update(row);
+                copy.update(row);
+                restored.update(row);
+                String at = original.getClass().getSimpleName() + " at " + t;
+                assertEquals(at, original.isChangeDetected(), copy.isChangeDetected());
+                assertEquals(at, original.isChangeDetected(), restored.isChangeDetected());
+                if(original.isChangeDetected())
+                    detections++;
+            }
+            assertTrue(original.getClass().getSimpleName(), detections > 0);
+        }
+    }
+
+    @Test
+    public void testQuantizingDetectorSnapshot() {
+        // Clustering is randomly seeded, so decisions are not reproducible, but the windows are.
+        List<Supplier<AbstractKMeansQuantizingDetector>> suppliers = new ArrayList<>();
+        suppliers.add(() -> new KL(new FlatWindowPair(25, 25), 3));
+        suppliers.add(() -> {
+            SPLL spll = new SPLL(new FlatWindowPair(25, 25), 3);
+            spll.setRefitInterval(25);
+            return spll;
+        });
+
+        for(Supplier<AbstractKMeansQuantizingDetector> supplier : suppliers) {
+            AbstractKMeansQuantizingDetector original = supplier.get();
+            Random random = new Random(53);
+            for(int t=0;t<400;t++)
+                original.update(gaussianRow(random, 3, 0));
+
+            byte[] snapshot = Snapshots.toBytes(original);
+            AbstractKMeansQuantizingDetector copy = original.copy();
+            AbstractKMeansQuantizingDetector restored = Snapshots.restore(supplier.get(), snapshot);
+            assertArrayEquals(snapshot, Snapshots.toBytes(restored));
+
+            int[] detections = new int[3];
+            for(int t=0;t<1000;t++) {
+                double[] row = gaussianRow(random, 3, 0);
+                if(t > CHANGE_POINT)
+                    for(int i=0;i<row.length;i++)
+                        row[i] = 4 * row[i] + 2;
+                original.update(row);
+                copy.update(row);
+                restored.update(row);
+                if(t > CHANGE_POINT) {
+                    detections[0] += original.isChangeDetected() ? 1 : 0;
+                    detections[1] += copy.isChangeDetected() ? 1 : 0;
+                    detections[2] += restored.isChangeDetected() ? 1 : 0;
+                }
+            }
+            for(int detected : detections)
+                assertTrue(original.getClass().getSimpleName() + " " + java.util.Arrays.toString(detections), detected > 0);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSnapshotRejectsOtherConfiguration() {
+        Hotelling hotelling = new Hotelling(new FlatWindowPair(25, 25));
+        Random random = new Random(47);
+        for(int t=0;t<60;t++)
+            hotelling.update(gaussianRow(random, 3, 0));
+        Snapshots.restore(new Hotelling(new FlatWindowPair(20, 30)), Snapshots.toBytes(hotelling));
+    }
+
+    private static double[] gaussianRow(Random random, int features, double shift) {
+        double[] row = new double[features];
+        for(int i=0;i<features;i++)
+            row[i] = random.nextGaussian() + shift;
+        return row;
+    }
+
+    @Test
+    public void testSubspaceEnsembleDoesNotAllocate() {
+        java.lang.management.ThreadMXBean threads = java.lang.management.ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+
+        MultivariateRealEnsemble ensemble = EnsembleFactory.buildRandomSubspaceEnsemble(FEATURES, 5, 10,
+                subspaceSize -> new Hotelling(new FlatWindowPair(25, 25)));
+        assertFalse(ensemble.retainsExample());
+
+        Random random = new Random(17);
+        double[][] rows = new double[1000][FEATURES];
+        for(double[] row : rows)
+            for(int i=0;i<FEATURES;i++)
+                row[i] = random.nextGaussian();
+
+        for(int t=0;t<500;t++)
+            ensemble.update(rows[t]);
+
+        long before = allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for(int t=500;t<1000;t++)
+            ensemble.update(rows[t]);
+        long allocated = allocations.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+
+        // Allow for the odd allocation by the runtime itself, but not one per update.
+        assertTrue("Allocated " + allocated + " bytes", allocated < 500);
+    }
+
+    @Test
+    public void testFeatureWeightsFollowGuardians() {
+        int[] checked = new int[1];
+        FeatureWeightedSubsetEnsemble ensemble = new FeatureWeightedSubsetEnsemble(FEATURES, 5, 12,
+                subspaceSize -> new Hotelling(new FlatWindowPair(25, 25)), () -> new EWMA(0.25)) {
+            @Override
+            protected void afterMembersUpdated(double[] example) {
+                super.afterMembersUpdated(example);
+                for(int id=0;id<size();id++) {
+                    int score = 0;
+                    for(int feature : getMapping(id).getFeatures())
+                        if(isFeatureChanged(feature))
+                            score++;
+                    assertEquals(score, getWeight(id), 0.0);
+                }
+                checked[0]++;
+            }
+        };
+        evaluate(ensemble);
+        assertEquals(1000, checked[0]);
+    }
+
+    @Test
+    public void testFeatureWeightsFollowNewMapping() {
+        int[] remapped = new int[1];
+        FeatureWeightedSubsetEnsemble ensemble = new FeatureWeightedSubsetEnsemble(6, 2, 0,
+                subspaceSize -> new Hotelling(new FlatWindowPair(25, 25)), CUSUM::new) {
+            @Override
+            protected void afterMembersUpdated(double[] example) {
+                super.afterMembersUpdated(example);
+                for(int id=0;id<size();id++) {
+                    int score = 0;
+                    for(int feature : getMapping(id).getFeatures())
+                        if(isFeatureChanged(feature))
+                            score++;
+                    assertEquals(score, getWeight(id), 0.0);
+                    if(id == 0 && score > 0)
+                        remapped[0]++;
+                }
+            }
+        };
+        Hotelling first = new Hotelling(new FlatWindowPair(25, 25));
+        ensemble.addMultivariate(first, 0, 1);
+        ensemble.addMultivariate(new Hotelling(new FlatWindowPair(25, 25)), 2, 3);
+
+        Random random = new Random(23);
+        double[] row = new double[6];
+        for(int t=0;t<400;t++) {
+            // Adding the first member again moves it onto the features which are about to change.
+            if(t == 200)
+                ensemble.addMultivariate(first, 4, 5);
+            for(int i=0;i<row.length;i++)
+                row[i] = random.nextGaussian() + (t >= 250 && i >= 4 ? 5 : 0);
+            ensemble.update(row);
+        }
+        assertTrue(remapped[0] > 0);
+    }
+
+    @Test
+    public void testSharedStatisticsMatchOwnWindows() {
+        SharedWindowStatistics statistics = new SharedWindowStatistics(25, 25);
+        statistics.setRefreshInterval(200);
+        int[][] subspaces = { {0, 1, 2, 3}, {2, 3, 4}, {7, 0, 5, 2}, {9} };
+        Hotelling[] shared = new Hotelling[subspaces.length];
+        Hotelling[] own = new Hotelling[subspaces.length];
+        for(int s=0;s<subspaces.length;s++) {
+            shared[s] = new Hotelling(statistics.subspace(subspaces[s]));
+            own[s] = new Hotelling(new FlatWindowPair(25, 25));
+        }
+
+        Random random = new Random(19);
+        double[] row = new double[FEATURES];
+        for(int t=0;t<1000;t++) {
+            for(int i=0;i<FEATURES;i++)
+                row[i] = random.nextGaussian() * (i + 1) + (t > CHANGE_POINT && i < 5 ? 2 : 0);
+            statistics.update(row);
+            for(int s=0;s<subspaces.length;s++) {
+                double[] projection = new double[subspaces[s].length];
+                for(int j=0;j<projection.length;j++)
+                    projection[j] = row[subspaces[s][j]];
+                shared[s].update(projection);
+                own[s].update(projection);
+                assertEquals(own[s].isChangeDetected(), shared[s].isChangeDetected());
+                assertEquals(own[s].getStatistic(), shared[s].getStatistic(), 1e-9 * Math.abs(own[s].getStatistic()));
+            }
+        }
+    }
+
+    @Test
+    public void testSharedRandomSubspaceEnsemble() {
+        MultivariateRealEnsemble ensemble = EnsembleFactory.buildSharedRandomSubspaceEnsemble(FEATURES, 15, 10,
+                new SharedWindowStatistics(25, 25), Hotelling::new);
+        evaluate(ensemble);
+    }
+
+    @Test
+    public void testCascadeMatchesFullUpdates() {
+        class Subsets extends FeatureWeightedSubsetEnsemble {
+            Subsets(int nSubspaces) {
+                super(FEATURES, 5, nSubspaces, subspaceSize -> new Hotelling(new FlatWindowPair(25, 25)), () -> new EWMA(0.25));
+            }
+
+            int[] features(int id) {
+                return getMapping(id).getFeatures();
+            }
+        }
+        Subsets full = new Subsets(12);
+        // The same subspaces, with the members behind the guardians
+        Subsets cascade = new Subsets(0);
+        for(int id=0;id<full.size();id++)
+            cascade.addMultivariate(new Hotelling(new FlatWindowPair(25, 25)), full.features(id));
+        cascade.enableCascade(1, 0, 50);
+
+        Random random = new Random(29);
+        double[] row = new double[FEATURES];
+        for(int t=0;t<2000;t++) {
+            for(int i=0;i<FEATURES;i++)
+                row[i] = random.nextGaussian() + (t > CHANGE_POINT && i < 10 ? 2 : 0);
+            full.update(row);
+            cascade.update(row);
+            assertEquals("At " + t, full.isChangeDetected(), cascade.isChangeDetected());
+        }
+    }
+
     @Test
     public void testRandomDisjointSubspaceEnsemble() {
         // Define a function that takes the subspace size and returns a detector
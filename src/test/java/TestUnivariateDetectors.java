@@ -1,15 +1,24 @@
 import uk.ac.bangor.novelty.*;
+import uk.ac.bangor.novelty.util.Snapshots;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.math3.distribution.GammaDistribution;
 import org.apache.commons.math3.distribution.NormalDistribution;
 import org.apache.commons.math3.distribution.RealDistribution;
+import org.apache.commons.math3.stat.StatUtils;
 import org.junit.Test;
 
+import java.math.BigDecimal;
+import java.math.MathContext;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.function.Supplier;
 import java.util.stream.Stream;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
 /**
  * Created by wfaithfull on 06/09/16.
  */
@@ -58,6 +67,62 @@ public class TestUnivariateDetectors {
         evaluate(new Grubbs(50, 3));
     }
 
+    @Test
+    public void testGrubbsLargeWindow() {
+        log.info("Starting grubbs large window test");
+        final int windowSize = 20000;
+        double[] values = testDataProviderFactory().limit(100000).mapToDouble(Double::doubleValue).toArray();
+        Grubbs grubbs = new Grubbs(windowSize, 3);
+
+        // The reference takes the window's sums exactly, from prefix sums of the values and their squares.
+        BigDecimal[] sums = new BigDecimal[values.length + 1];
+        BigDecimal[] squares = new BigDecimal[values.length + 1];
+        sums[0] = BigDecimal.ZERO;
+        squares[0] = BigDecimal.ZERO;
+        for(int i=0;i<values.length;i++) {
+            BigDecimal value = new BigDecimal(values[i]);
+            sums[i + 1] = sums[i].add(value);
+            squares[i + 1] = squares[i].add(value.multiply(value));
+        }
+        BigDecimal n = BigDecimal.valueOf(windowSize);
+
+        int detections = 0;
+        for(int i=0;i<values.length;i++) {
+            grubbs.update(values[i]);
+            if(i < windowSize - 1) {
+                assertFalse(grubbs.isChangeDetected());
+                continue;
+            }
+            BigDecimal sum = sums[i + 1].subtract(sums[i + 1 - windowSize]);
+            BigDecimal square = squares[i + 1].subtract(squares[i + 1 - windowSize]);
+            double mu = sum.divide(n, MathContext.DECIMAL128).doubleValue();
+            double sigma = Math.sqrt(square.subtract(sum.multiply(sum).divide(n, MathContext.DECIMAL128))
+                    .divide(n.subtract(BigDecimal.ONE), MathContext.DECIMAL128).doubleValue());
+            double distance = Math.abs(values[i] - mu) - 3 * sigma;
+            // Values within rounding of the limits could go either way.
+            if(Math.abs(distance) < 1e-9 * sigma)
+                continue;
+            assertEquals("At " + i, distance > 0, grubbs.isChangeDetected());
+            if(grubbs.isChangeDetected())
+                detections++;
+        }
+        assertTrue(detections > 0);
+    }
+
+    @Test
+    public void testWindowedStatistics() {
+        double[] values = testDataProviderFactory().limit(5000).mapToDouble(x -> 1e6 + x).toArray();
+        WindowedStatistics stats = new WindowedStatistics(100);
+        for(int i=0;i<values.length;i++) {
+            stats.update(values[i]);
+            if(stats.isFull()) {
+                double[] window = Arrays.copyOfRange(values, i - 99, i + 1);
+                assertEquals(StatUtils.mean(window), stats.mean(), 1e-9);
+                assertEquals(StatUtils.variance(window), stats.var(), 1e-6);
+            }
+        }
+    }
+
     @Test
     public void testMovingRange() {
         log.info("Starting moving range test");
@@ -70,6 +135,81 @@ public class TestUnivariateDetectors {
         evaluate(new CUSUM());
     }
 
+    @Test
+    public void testResetMatchesFreshDetector() {
+        List<Supplier<UnivariateRealDetector>> suppliers = new ArrayList<>();
+        suppliers.add(CUSUM::new);
+        suppliers.add(() -> new EWMA(0.25));
+        suppliers.add(MovingRange::new);
+        suppliers.add(() -> new Grubbs(50, 3));
+
+        double[] values = testDataProviderFactory().limit(1000).mapToDouble(Double::doubleValue).toArray();
+        for(Supplier<UnivariateRealDetector> supplier : suppliers) {
+            UnivariateRealDetector reused = supplier.get();
+            for(int i=0;i<700;i++)
+                reused.update(values[values.length - 1 - i]);
+            reused.reset();
+
+            UnivariateRealDetector fresh = supplier.get();
+            for(int i=0;i<1000;i++) {
+                reused.update(values[i]);
+                fresh.update(values[i]);
+                assertEquals("At " + i, fresh.isChangeDetected(), reused.isChangeDetected());
+            }
+        }
+    }
+
+    @Test
+    public void testCopyAndSnapshotMatchOriginal() {
+        List<Supplier<UnivariateRealDetector>> suppliers = new ArrayList<>();
+        suppliers.add(CUSUM::new);
+        suppliers.add(() -> new EWMA(0.25));
+        suppliers.add(MovingRange::new);
+        suppliers.add(() -> new Grubbs(50, 3));
+
+        double[] values = testDataProviderFactory().limit(1000).mapToDouble(Double::doubleValue).toArray();
+        for(Supplier<UnivariateRealDetector> supplier : suppliers) {
+            UnivariateRealDetector original = supplier.get();
+            for(int i=0;i<400;i++)
+                original.update(values[i]);
+
+            UnivariateRealDetector copy = original.copy();
+            UnivariateRealDetector restored = supplier.get();
+            for(int i=0;i<100;i++)
+                restored.update(values[values.length - 1 - i]);
+            Snapshots.restore(restored, Snapshots.toBytes(original));
+
+            for(int i=400;i<1000;i++) {
+                original.update(values[i]);
+                copy.update(values[i]);
+                restored.update(values[i]);
+                assertEquals("At " + i, original.isChangeDetected(), copy.isChangeDetected());
+                assertEquals("At " + i, original.isChangeDetected(), restored.isChangeDetected());
+            }
+        }
+    }
+
+    @Test
+    public void testBatchUpdate() {
+        double[] values = testDataProviderFactory().limit(1000).mapToDouble(Double::doubleValue).toArray();
+
+        UnivariateRealDetector sequential = new CUSUM();
+        UnivariateRealDetector batched = new CUSUM();
+        boolean[] decisions = new boolean[values.length];
+
+        int from = 0;
+        while(from < values.length) {
+            int detectedAt = batched.updateBatch(values, from, values.length, decisions);
+            for(int i=from;i<(detectedAt < 0 ? values.length : detectedAt + 1);i++) {
+                sequential.update(values[i]);
+                assertEquals(sequential.isChangeDetected(), decisions[i]);
+            }
+            if(detectedAt < 0)
+                break;
+            from = detectedAt + 1;
+        }
+    }
+
     public void evaluate(Detector<Double> univariateDetector) {
 
         Stream<Double> changeStream = testDataProviderFactory();
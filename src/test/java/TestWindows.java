@@ -0,0 +1,83 @@
+import uk.ac.bangor.novelty.util.Snapshots;
+import uk.ac.bangor.novelty.windowing.FixedDoubleWindow;
+import uk.ac.bangor.novelty.windowing.FixedWindow;
+import uk.ac.bangor.novelty.windowing.FixedWindowPair;
+import uk.ac.bangor.novelty.windowing.FlatWindowPair;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestWindows {
+
+    @Test
+    public void testFixedDoubleWindowMatchesFixedWindow() {
+        Random random = new Random(1);
+        FixedWindow<Double> reference = new FixedWindow<>(7, Double.class);
+        FixedDoubleWindow window = new FixedDoubleWindow(7);
+
+        for(int i=0;i<50;i++) {
+            double x = random.nextGaussian();
+            reference.update(x);
+            window.update(x);
+
+            assertEquals(reference.size(), window.size());
+            assertEquals(reference.getOldest(), window.getOldestValue(), 0.0);
+            assertArrayEquals(reference.getElements(), window.getElements());
+            for(int j=0;j<window.size();j++)
+                assertEquals(reference.get(j), window.get(j), 0.0);
+        }
+    }
+
+    @Test
+    public void testFlatWindowPairMatchesFixedWindowPair() {
+        Random random = new Random(2);
+        FixedWindowPair<double[]> reference = new FixedWindowPair<>(5, 3, double[].class);
+        FlatWindowPair pair = new FlatWindowPair(5, 3);
+
+        double[] example = new double[4];
+        for(int i=0;i<30;i++) {
+            for(int j=0;j<example.length;j++)
+                example[j] = random.nextGaussian();
+
+            // The flat pair copies the example in, so it is safe to reuse it.
+            reference.update(example.clone());
+            pair.update(example);
+
+            assertEquals(reference.size(), pair.size());
+            assertEquals(reference.getWindow1().size(), pair.getWindow1().size());
+            assertEquals(reference.getWindow2().size(), pair.getWindow2().size());
+            assertArrayEquals(reference.getWindow1().getElements(), pair.getWindow1().getElements());
+            assertArrayEquals(reference.getWindow2().getElements(), pair.getWindow2().getElements());
+            if(reference.getWindow1().size() > 0)
+                assertArrayEquals(reference.getOldest(), pair.getOldest(), 0.0);
+        }
+    }
+
+    @Test
+    public void testSnapshotsAcrossWrapAround() {
+        Random random = new Random(3);
+        FixedDoubleWindow window = new FixedDoubleWindow(7);
+        FlatWindowPair pair = new FlatWindowPair(5, 3);
+        double[] example = new double[4];
+        for(int i=0;i<30;i++) {
+            window.update(random.nextGaussian());
+            for(int j=0;j<example.length;j++)
+                example[j] = random.nextGaussian();
+            pair.update(example);
+
+            FixedDoubleWindow restoredWindow = Snapshots.restore(new FixedDoubleWindow(7), Snapshots.toBytes(window));
+            assertArrayEquals(window.getElements(), restoredWindow.getElements());
+            assertArrayEquals(window.getElements(), window.copy().getElements());
+
+            FlatWindowPair restoredPair = Snapshots.restore(new FlatWindowPair(5, 3), Snapshots.toBytes(pair));
+            for(FlatWindowPair other : new FlatWindowPair[] {restoredPair, pair.copy()}) {
+                assertEquals(pair.size(), other.size());
+                assertArrayEquals(pair.getWindow1().getElements(), other.getWindow1().getElements());
+                assertArrayEquals(pair.getWindow2().getElements(), other.getWindow2().getElements());
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package uk.ac.bangor.novelty.benchmark;
+
+import uk.ac.bangor.novelty.Hotelling;
+import uk.ac.bangor.novelty.KL;
+import uk.ac.bangor.novelty.windowing.FlatWindowPair;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-sample cost of the multivariate detectors, once their windows are full, and the cost of forking or snapshotting
+ * one. Run with
+ *
+ *      java -cp target/test-classes:target/classes:[test classpath] org.openjdk.jmh.Main DetectorBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DetectorBenchmark {
+
+    private static final int SAMPLES = 1024;
+
+    @Param({"5", "20", "50"})
+    public int features;
+
+    @Param({"50"})
+    public int window;
+
+    private double[][] data;
+    private int next;
+
+    private Hotelling hotelling;
+    private KL kl;
+    private KL incrementalKl;
+    private KL stridedKl;
+    private ByteBuffer snapshot;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        data = new double[SAMPLES][features];
+        for(int i=0;i<SAMPLES;i++)
+            for(int j=0;j<features;j++)
+                data[i][j] = random.nextGaussian() * (1 + j);
+
+        hotelling = new Hotelling(new FlatWindowPair(window, window));
+        kl = new KL(new FlatWindowPair(window, window), 3);
+        incrementalKl = new KL(new FlatWindowPair(window, window), 3);
+        incrementalKl.setRefitInterval(window);
+        stridedKl = new KL(new FlatWindowPair(window, window), 3);
+        stridedKl.setEvaluationStride(10);
+        for(int i=0;i<2*window;i++) {
+            hotelling.update(data[i % SAMPLES]);
+            kl.update(data[i % SAMPLES]);
+            incrementalKl.update(data[i % SAMPLES]);
+            stridedKl.update(data[i % SAMPLES]);
+        }
+        snapshot = ByteBuffer.allocate(hotelling.snapshotSize());
+    }
+
+    private double[] nextSample() {
+        next = (next + 1) % SAMPLES;
+        return data[next];
+    }
+
+    @Benchmark
+    public boolean hotelling() {
+        hotelling.update(nextSample());
+        return hotelling.isChangeDetected();
+    }
+
+    @Benchmark
+    public boolean kl() {
+        kl.update(nextSample());
+        return kl.isChangeDetected();
+    }
+
+    @Benchmark
+    public boolean incrementalKl() {
+        incrementalKl.update(nextSample());
+        return incrementalKl.isChangeDetected();
+    }
+
+    @Benchmark
+    public boolean stridedKl() {
+        stridedKl.update(nextSample());
+        return stridedKl.isChangeDetected();
+    }
+
+    @Benchmark
+    public Hotelling copyHotelling() {
+        return hotelling.copy();
+    }
+
+    @Benchmark
+    public Hotelling snapshotHotelling() {
+        snapshot.clear();
+        hotelling.writeSnapshot(snapshot);
+        snapshot.flip();
+        hotelling.readSnapshot(snapshot);
+        return hotelling;
+    }
+}
@@ -0,0 +1,90 @@
+package uk.ac.bangor.novelty.benchmark;
+
+import uk.ac.bangor.novelty.Hotelling;
+import uk.ac.bangor.novelty.ensemble.EnsembleFactory;
+import uk.ac.bangor.novelty.ensemble.MultivariateRealEnsemble;
+import uk.ac.bangor.novelty.windowing.FlatWindowPair;
+import uk.ac.bangor.novelty.windowing.SharedWindowStatistics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-sample cost of random subspace ensembles of Hotelling detectors, once their windows are full. Run with
+ *
+ *      java -cp target/test-classes:target/classes:[test classpath] org.openjdk.jmh.Main EnsembleBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EnsembleBenchmark {
+
+    private static final int SAMPLES = 1024;
+
+    @Param({"50", "200"})
+    public int features;
+
+    @Param({"10"})
+    public int subspaceSize;
+
+    @Param({"20"})
+    public int members;
+
+    @Param({"50"})
+    public int window;
+
+    private double[][] data;
+    private int next;
+
+    private MultivariateRealEnsemble ownWindows;
+    private MultivariateRealEnsemble sharedStatistics;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        data = new double[SAMPLES][features];
+        for(int i=0;i<SAMPLES;i++)
+            for(int j=0;j<features;j++)
+                data[i][j] = random.nextGaussian() * (1 + j);
+
+        ownWindows = EnsembleFactory.buildRandomSubspaceEnsemble(features, subspaceSize, members,
+                size -> new Hotelling(new FlatWindowPair(window, window)));
+        sharedStatistics = EnsembleFactory.buildSharedRandomSubspaceEnsemble(features, subspaceSize, members,
+                new SharedWindowStatistics(window, window), Hotelling::new);
+        for(int i=0;i<2*window;i++) {
+            ownWindows.update(data[i % SAMPLES]);
+            sharedStatistics.update(data[i % SAMPLES]);
+        }
+    }
+
+    private double[] nextSample() {
+        next = (next + 1) % SAMPLES;
+        return data[next];
+    }
+
+    @Benchmark
+    public boolean ownWindows() {
+        ownWindows.update(nextSample());
+        return ownWindows.isChangeDetected();
+    }
+
+    @Benchmark
+    public boolean sharedStatistics() {
+        sharedStatistics.update(nextSample());
+        return sharedStatistics.isChangeDetected();
+    }
+}